@@ -0,0 +1,65 @@
+import java.util.Random;
+
+/**
+ * Measures SpaceAllocator cost per arrival/departure at growing lot sizes.
+ * Each lot is kept about 90% full while random departures free a space and an
+ * arrival immediately takes the lowest (or nearest) free one, so the numbers
+ * should stay flat from 40 to 1,000,000 spaces.
+ *
+ * Run with: java AllocatorBenchmark
+ */
+public class AllocatorBenchmark {
+    private static final int[] LOT_SIZES = {40, 1_000, 10_000, 100_000, 1_000_000};
+    private static final int OPERATIONS = 2_000_000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        System.out.printf("%12s %18s %18s%n", "spaces", "lowest ns/op", "nearest ns/op");
+        for (int size : LOT_SIZES) {
+            double lowest = Double.MAX_VALUE;
+            double nearest = Double.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                lowest = Math.min(lowest, run(size, false, round));
+                nearest = Math.min(nearest, run(size, true, round));
+            }
+            System.out.printf("%12d %18.1f %18.1f%n", size, lowest, nearest);
+        }
+    }
+
+    private static double run(int size, boolean nearest, long seed) {
+        Random random = new Random(seed);
+        SpaceAllocator allocator = new SpaceAllocator(size);
+        int[] occupied = new int[size];
+        int occupiedCount = 0;
+        int target = Math.max(1, size * 9 / 10);
+        while (occupiedCount < target) {
+            int space = random.nextInt(size);
+            if (allocator.allocate(space)) {
+                occupied[occupiedCount++] = space;
+            }
+        }
+
+        // Pre-draw the random inputs so the timed loop measures only the allocator
+        int[] departures = new int[OPERATIONS];
+        int[] targets = new int[OPERATIONS];
+        for (int i = 0; i < OPERATIONS; i++) {
+            departures[i] = random.nextInt(occupiedCount);
+            targets[i] = random.nextInt(size);
+        }
+
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            int slot = departures[i];
+            allocator.release(occupied[slot]);
+            int space = nearest ? allocator.allocateNearest(targets[i]) : allocator.allocateLowest();
+            occupied[slot] = space;
+            checksum += space;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (checksum == 42) {
+            System.out.println();
+        }
+        return (double) elapsed / OPERATIONS;
+    }
+}
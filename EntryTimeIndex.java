@@ -0,0 +1,207 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped array of {@code (entryTime, row)} pairs kept sorted by entry
+ * time, so the history rows entered in a time range are found with two binary
+ * searches.
+ *
+ * <pre>
+ * header (64 bytes): magic "TIDX", version, entry count, covered rows, CRC32 of the previous 16 bytes
+ * entry (16 bytes):  entry time (long), history row, pad
+ * </pre>
+ *
+ * Sessions are recorded in the order they enter, so inserts almost always land
+ * at the end. An out-of-order one (clock change, a journal rebuilt after
+ * compaction) shifts only the few entries after it. The mapping grows in
+ * 1M-entry steps. Like {@link PlateIndex}, covered rows is -1 while open.
+ */
+public class EntryTimeIndex implements Closeable {
+    private static final int MAGIC = 0x54494458; // "TIDX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int ENTRY_SIZE = 16;
+    private static final int GROWTH = 1 << 20;
+
+    private final Path file;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int count;
+    private int coveredRows;
+
+    private EntryTimeIndex(Path file) {
+        this.file = file;
+    }
+
+    public static EntryTimeIndex open(Path file) throws IOException {
+        EntryTimeIndex index = new EntryTimeIndex(file);
+        index.coveredRows = -1;
+        if (Files.exists(file)) {
+            ByteBuffer header = readHeader(file);
+            if (header != null) {
+                index.count = header.getInt(8);
+                index.coveredRows = header.getInt(12);
+            }
+        }
+        if (index.coveredRows < 0) {
+            index.count = 0;
+            Files.deleteIfExists(file);
+        }
+        index.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index.map(Math.max(GROWTH, index.count + GROWTH - index.count % GROWTH));
+        index.writeHeader(-1);
+        return index;
+    }
+
+    /**
+     * History rows this index described when it was last closed, or -1.
+     */
+    public int getCoveredRows() {
+        return coveredRows;
+    }
+
+    public void reset() throws IOException {
+        count = 0;
+        writeHeader(-1);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public void insert(long entryTime, int row) throws IOException {
+        if (count == capacity) {
+            if ((long) HEADER_SIZE + (long) (capacity + GROWTH) * ENTRY_SIZE > Integer.MAX_VALUE) {
+                throw new IOException("Entry time index is full");
+            }
+            map(capacity + GROWTH);
+        }
+        int position = upperBound(entryTime);
+        if (position < count) {
+            // Shift the later entries up by one
+            byte[] tail = new byte[(count - position) * ENTRY_SIZE];
+            buffer.position(entryPosition(position));
+            buffer.get(tail);
+            buffer.position(entryPosition(position + 1));
+            buffer.put(tail);
+        }
+        buffer.putLong(entryPosition(position), entryTime);
+        buffer.putInt(entryPosition(position) + 8, row);
+        count++;
+    }
+
+    /**
+     * First position whose entry time is at least {@code entryTime}.
+     */
+    public int lowerBound(long entryTime) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (entryTimeAt(middle) < entryTime) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * First position whose entry time is after {@code entryTime}.
+     */
+    public int upperBound(long entryTime) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (entryTimeAt(middle) <= entryTime) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    public long entryTimeAt(int position) {
+        return buffer.getLong(entryPosition(position));
+    }
+
+    public int rowAt(int position) {
+        return buffer.getInt(entryPosition(position) + 8);
+    }
+
+    public void force() {
+        buffer.force();
+    }
+
+    /**
+     * Closes the index, recording that it covers {@code rows} history rows.
+     */
+    public void close(int rows) throws IOException {
+        writeHeader(rows);
+        close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            buffer.force();
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private static int entryPosition(int position) {
+        return HEADER_SIZE + position * ENTRY_SIZE;
+    }
+
+    private void map(int newCapacity) throws IOException {
+        capacity = newCapacity;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * ENTRY_SIZE);
+    }
+
+    private void writeHeader(int rows) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putInt(8, count);
+        header.putInt(12, rows);
+        header.putInt(16, headerCrc(header));
+        buffer.position(0);
+        buffer.put(header);
+        buffer.force();
+    }
+
+    private static ByteBuffer readHeader(Path file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (header.hasRemaining() && in.read(header) > 0) {
+                // keep reading
+            }
+        }
+        if (header.position() < HEADER_SIZE || header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+                || header.getInt(16) != headerCrc(header)) {
+            return null;
+        }
+        if (Files.size(file) < HEADER_SIZE + (long) header.getInt(8) * ENTRY_SIZE) {
+            return null;
+        }
+        return header;
+    }
+
+    private static int headerCrc(ByteBuffer header) {
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, 16);
+        return (int) crc.getValue();
+    }
+}
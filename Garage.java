@@ -0,0 +1,599 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Every site and level that is managed, each level a {@link LotShard} with
+ * its own engine and lot state file. Global space numbers run through the
+ * levels in layout order, so the rest of the application (journal, history,
+ * revenue, dialogs) keeps working with plain space numbers; the garage routes
+ * each one to its level. A plate can be parked only once across all levels.
+ *
+ * The levels come from {@code data/layout.txt}, one {@code site/level: rows x columns}
+ * per line, optionally followed by one {@link SpaceClass} letter per row (e.g.
+ * {@code Main/P1: 5x8 TCCCM}). Without that file there is a single level sized
+ * by the {@code rows} and {@code columns} settings, kept in the old data/lot.dat.
+ * New levels must be added at the end, or recorded space numbers would move.
+ *
+ * Gates come from {@code data/gates.txt}, one {@code site/level/gate: row, column}
+ * per line ({@code gate: row, column} when there is a single level).
+ */
+public class Garage {
+    public static final String LAYOUT_FILE = "data/layout.txt";
+    public static final String GATES_FILE = "data/gates.txt";
+    // Below this many levels a plain loop is faster than handing a query to the common pool
+    private static final int PARALLEL_THRESHOLD = 8;
+    // Marks a plate claimed by a park that has not found its level yet
+    private static final Integer PENDING = -1;
+    private static final Pattern LEVEL_SIZE = Pattern.compile("(\\d+)\\s*[xX]\\s*(\\d+)(?:\\s+([A-Za-z]+))?");
+
+    private final List<LotShard> shards;
+    private final int[] firstSpaces;
+    private final int totalSpaces;
+    // Plate -> index of the level it is parked on
+    private final ConcurrentMap<String, Integer> shardByPlate = new ConcurrentHashMap<>();
+    private final List<ParkingEngine.Listener> listeners = new CopyOnWriteArrayList<>();
+    private final LongAdder failedAllocations = new LongAdder();
+    private final LongAdder duplicatePlates = new LongAdder();
+
+    public Garage(List<LotShard> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("Garage must have at least one level");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        this.firstSpaces = new int[shards.size()];
+        int expected = 1;
+        for (int i = 0; i < shards.size(); i++) {
+            LotShard shard = shards.get(i);
+            if (shard.getFirstSpace() != expected) {
+                throw new IllegalArgumentException("Level " + shard + " should start at space " + expected);
+            }
+            firstSpaces[i] = expected;
+            expected += shard.getSize();
+            shard.getEngine().addListener(new ShardListener(shard));
+        }
+        this.totalSpaces = expected - 1;
+    }
+
+    /**
+     * Reads the layout file, or makes a single {@code rows} x {@code columns}
+     * level with {@code rowClasses} when there is none. Every level's engine
+     * gets {@code zoneCount} zones.
+     */
+    public static Garage load(Path layoutFile, int rows, int columns, String rowClasses, int zoneCount) throws IOException {
+        List<LotShard> shards = new ArrayList<>();
+        if (!Files.exists(layoutFile)) {
+            try {
+                shards.add(new LotShard("Lot", "Ground", rows, columns, rowClasses, 1, zoneCount));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Bad row.classes setting: " + e.getMessage());
+            }
+            return new Garage(shards);
+        }
+        Set<String> names = new LinkedHashSet<>();
+        int firstSpace = 1;
+        for (String line : Files.readAllLines(layoutFile)) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            int colon = trimmed.lastIndexOf(':');
+            int slash = trimmed.lastIndexOf('/', colon);
+            Matcher size = LEVEL_SIZE.matcher(colon < 0 ? "" : trimmed.substring(colon + 1).trim());
+            if (slash <= 0 || !size.matches()) {
+                throw new IOException("Bad layout line (expected site/level: rows x columns [row classes]): " + line);
+            }
+            String site = trimmed.substring(0, slash).trim();
+            String level = trimmed.substring(slash + 1, colon).trim();
+            int levelRows;
+            int levelColumns;
+            try {
+                levelRows = Integer.parseInt(size.group(1));
+                levelColumns = Integer.parseInt(size.group(2));
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad level size in layout line: " + line);
+            }
+            if (levelRows <= 0 || levelColumns <= 0 || !names.add(fileName(site, level))) {
+                throw new IOException("Empty or repeated level in layout line: " + line);
+            }
+            try {
+                shards.add(new LotShard(site, level, levelRows, levelColumns, size.group(3), firstSpace, zoneCount));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage() + " in layout line: " + line);
+            }
+            firstSpace += levelRows * levelColumns;
+        }
+        if (shards.isEmpty()) {
+            throw new IOException("No levels in " + layoutFile);
+        }
+        return new Garage(shards);
+    }
+
+    /**
+     * Adds the gates listed in {@code gatesFile}, if it exists, to their levels.
+     */
+    public void loadGates(Path gatesFile) throws IOException {
+        if (!Files.exists(gatesFile)) {
+            return;
+        }
+        for (String line : Files.readAllLines(gatesFile)) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            int colon = trimmed.lastIndexOf(':');
+            String[] position = colon < 0 ? new String[0] : trimmed.substring(colon + 1).split(",");
+            if (position.length != 2) {
+                throw new IOException("Bad gate line (expected site/level/gate: row, column): " + line);
+            }
+            String key = trimmed.substring(0, colon).trim();
+            int slash = key.lastIndexOf('/');
+            LotShard level = slash < 0 && shards.size() == 1 ? shards.get(0) : findLevel(slash < 0 ? "" : key.substring(0, slash));
+            if (level == null) {
+                throw new IOException("Unknown level in gate line: " + line);
+            }
+            try {
+                level.addGate(key.substring(slash + 1).trim(), Integer.parseInt(position[0].trim()),
+                        Integer.parseInt(position[1].trim()));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage() + " in gate line: " + line);
+            }
+        }
+    }
+
+    /**
+     * Returns the level called {@code site/level}, or null.
+     */
+    public LotShard findLevel(String name) {
+        int slash = name.lastIndexOf('/');
+        for (LotShard shard : shards) {
+            if (slash > 0 && shard.getSite().equalsIgnoreCase(name.substring(0, slash).trim())
+                    && shard.getLevel().equalsIgnoreCase(name.substring(slash + 1).trim())) {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Opens every level's lot state file. A single level uses {@code singleLevelFile}
+     * (converted from {@code legacyCsv} on first use); otherwise each level gets
+     * its own file in {@code levelDirectory}. Levels whose file fails to open are
+     * still usable, just not persisted; the first failure is rethrown at the end.
+     */
+    public void openLotStates(Path singleLevelFile, Path legacyCsv, Path levelDirectory) throws IOException {
+        if (shards.size() == 1) {
+            shards.get(0).openLotState(singleLevelFile, legacyCsv);
+            return;
+        }
+        Files.createDirectories(levelDirectory);
+        IOException failure = null;
+        for (LotShard shard : shards) {
+            try {
+                shard.openLotState(levelDirectory.resolve(fileName(shard.getSite(), shard.getLevel())), null);
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Loads the vehicles recorded in each level's lot state file, without
+     * notifying listeners. A plate recorded more than once keeps its first
+     * space; the others are left free, logged and counted as duplicate plates,
+     * and cleared in the lot state file so they are not reported again on the
+     * next start. Returns how many were left free.
+     */
+    public int restore() {
+        int[] duplicates = new int[1];
+        for (int i = 0; i < shards.size(); i++) {
+            LotShard shard = shards.get(i);
+            LotStateFile lotState = shard.getLotState();
+            if (lotState == null) {
+                continue;
+            }
+            Integer shardIndex = i;
+            List<Integer> leftFree = new ArrayList<>();
+            lotState.forEachOccupied((spaceNumber, vehicleType, licensePlate, entryTime) -> {
+                String plate;
+                try {
+                    plate = ParkingEngine.normalizePlate(licensePlate);
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Lot state of " + shard + " has an invalid plate in space " + shard.toGlobal(spaceNumber)
+                            + " (" + e.getMessage() + "); space left free");
+                    leftFree.add(spaceNumber);
+                    return;
+                }
+                Integer parkedOn = shardByPlate.putIfAbsent(plate, shardIndex);
+                boolean duplicate = parkedOn != null && !parkedOn.equals(shardIndex)
+                        || shard.getEngine().restore(spaceNumber, plate, vehicleType, entryTime) == ParkingEngine.DUPLICATE_PLATE;
+                if (duplicate) {
+                    duplicatePlates.increment();
+                    duplicates[0]++;
+                    System.err.println("Lot state of " + shard + " lists " + plate + " in space " + shard.toGlobal(spaceNumber)
+                            + ", but it is already parked in space " + findSpace(plate) + "; space " + shard.toGlobal(spaceNumber) + " left free");
+                    leftFree.add(spaceNumber);
+                }
+            });
+            // Cleared after the scan, which reads the file through the same record buffer
+            for (int spaceNumber : leftFree) {
+                lotState.clear(spaceNumber);
+            }
+        }
+        return duplicates[0];
+    }
+
+    public void addListener(ParkingEngine.Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ParkingEngine.Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public void setFareCalculator(ParkingEngine.FareCalculator fareCalculator) {
+        for (LotShard shard : shards) {
+            shard.getEngine().setFareCalculator(fareCalculator);
+        }
+    }
+
+    public List<LotShard> getShards() {
+        return shards;
+    }
+
+    public List<String> getSites() {
+        Set<String> sites = new LinkedHashSet<>();
+        for (LotShard shard : shards) {
+            sites.add(shard.getSite());
+        }
+        return new ArrayList<>(sites);
+    }
+
+    /**
+     * Returns the level holding {@code spaceNumber}.
+     */
+    public LotShard shardOf(int spaceNumber) {
+        checkSpace(spaceNumber);
+        return shards.get(shardIndex(spaceNumber));
+    }
+
+    /**
+     * Parks a vehicle in {@code preferredSpace} if it is free, otherwise on the
+     * preferred space's level as {@link ParkingEngine#park} would, then on the
+     * other levels of the same site and then on the other sites. Without a
+     * preferred space the levels are tried in layout order. Returns the global
+     * space number, {@link ParkingEngine#NO_SPACE} or {@link ParkingEngine#DUPLICATE_PLATE}.
+     */
+    public int park(String licensePlate, VehicleType vehicleType, int preferredSpace) {
+        String plate = ParkingEngine.normalizePlate(licensePlate);
+        if (vehicleType == null) {
+            throw new IllegalArgumentException("Vehicle type is required");
+        }
+        if (shardByPlate.putIfAbsent(plate, PENDING) != null) {
+            duplicatePlates.increment();
+            return ParkingEngine.DUPLICATE_PLATE;
+        }
+        boolean preferred = preferredSpace > 0 && preferredSpace <= totalSpaces;
+        int home = preferred ? shardIndex(preferredSpace) : 0;
+        String site = shards.get(home).getSite();
+        // Two passes: the preferred level's site first, then everywhere else
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < shards.size(); i++) {
+                int index = (home + i) % shards.size();
+                LotShard shard = shards.get(index);
+                if (shard.getSite().equals(site) != (pass == 0) || shard.getEngine().getAvailableSpaces(vehicleType) == 0) {
+                    continue;
+                }
+                int localSpace = shard.getEngine().park(plate, vehicleType, i == 0 && preferred ? shard.toLocal(preferredSpace) : 0);
+                if (localSpace > 0) {
+                    shardByPlate.put(plate, index);
+                    return shard.toGlobal(localSpace);
+                }
+            }
+        }
+        shardByPlate.remove(plate, PENDING);
+        failedAllocations.increment();
+        return ParkingEngine.NO_SPACE;
+    }
+
+    /**
+     * Parks a vehicle arriving at {@code gate} on {@code level} in the closest
+     * bay it fits there; when the level is full for it, parks as {@link #park}
+     * would on the other levels. Returns the global space number,
+     * {@link ParkingEngine#NO_SPACE} or {@link ParkingEngine#DUPLICATE_PLATE}.
+     */
+    public int parkAtGate(String licensePlate, VehicleType vehicleType, LotShard level, String gate) {
+        int gateNumber = level.getEngine().getGate(gate);
+        if (gateNumber < 0) {
+            throw new IllegalArgumentException("No gate " + gate + " on " + level);
+        }
+        String plate = ParkingEngine.normalizePlate(licensePlate);
+        if (vehicleType == null) {
+            throw new IllegalArgumentException("Vehicle type is required");
+        }
+        if (shardByPlate.putIfAbsent(plate, PENDING) != null) {
+            duplicatePlates.increment();
+            return ParkingEngine.DUPLICATE_PLATE;
+        }
+        int localSpace = level.getEngine().parkAtGate(plate, vehicleType, gateNumber);
+        if (localSpace > 0) {
+            shardByPlate.put(plate, shards.indexOf(level));
+            return level.toGlobal(localSpace);
+        }
+        shardByPlate.remove(plate, PENDING);
+        // The level is full for this vehicle; the level's own first space makes its site come first
+        return park(plate, vehicleType, level.getFirstSpace());
+    }
+
+    /**
+     * Checks a vehicle out and prices the stay. Returns {@code null} when the
+     * plate is not parked.
+     */
+    public ParkingRecord unpark(String licensePlate) {
+        String plate = ParkingEngine.normalizePlate(licensePlate);
+        Integer index = shardByPlate.get(plate);
+        if (index == null || index < 0) {
+            return null;
+        }
+        LotShard shard = shards.get(index);
+        ParkingRecord record = shard.getEngine().unpark(plate);
+        if (record == null) {
+            return null;
+        }
+        // Released after the exit was announced, as the engine does
+        shardByPlate.remove(plate, index);
+        return toGlobal(shard, record);
+    }
+
+    public ParkingRecord unparkSpace(int spaceNumber) {
+        LotShard shard = shardOf(spaceNumber);
+        ParkingRecord record = shard.getEngine().unparkSpace(shard.toLocal(spaceNumber));
+        if (record == null) {
+            return null;
+        }
+        shardByPlate.remove(record.getLicensePlate(), shardIndex(spaceNumber));
+        return toGlobal(shard, record);
+    }
+
+    public int getTotalSpaces() {
+        return totalSpaces;
+    }
+
+    public int getOccupiedSpaces() {
+        return (int) sum(shard -> shard.getEngine().getOccupiedSpaces());
+    }
+
+    public int getAvailableSpaces() {
+        return totalSpaces - getOccupiedSpaces();
+    }
+
+    public int getAvailableSpaces(String site) {
+        return (int) sum(shard -> shard.getSite().equals(site) ? shard.getEngine().getAvailableSpaces() : 0);
+    }
+
+    /**
+     * Free bays that {@code vehicleType} fits on any level; 0 means the garage
+     * is full for that type.
+     */
+    public int getAvailableSpaces(VehicleType vehicleType) {
+        return (int) sum(shard -> shard.getEngine().getAvailableSpaces(vehicleType));
+    }
+
+    public int getFreeSpaces(SpaceClass spaceClass) {
+        return (int) sum(shard -> shard.getEngine().getFreeSpaces(spaceClass));
+    }
+
+    public long getParkCount() {
+        return sum(shard -> shard.getEngine().getParkCount());
+    }
+
+    public long getUnparkCount() {
+        return sum(shard -> shard.getEngine().getUnparkCount());
+    }
+
+    // Parks refused because no level had a free bay the vehicle fits
+    public long getFailedAllocationCount() {
+        return failedAllocations.sum();
+    }
+
+    public long getDuplicatePlateCount() {
+        return duplicatePlates.sum();
+    }
+
+    public boolean isOccupied(int spaceNumber) {
+        LotShard shard = shardOf(spaceNumber);
+        return shard.getEngine().isOccupied(shard.toLocal(spaceNumber));
+    }
+
+    public VehicleType getVehicleType(int spaceNumber) {
+        LotShard shard = shardOf(spaceNumber);
+        return shard.getEngine().getVehicleType(shard.toLocal(spaceNumber));
+    }
+
+    public String getLicensePlate(int spaceNumber) {
+        LotShard shard = shardOf(spaceNumber);
+        return shard.getEngine().getLicensePlate(shard.toLocal(spaceNumber));
+    }
+
+    public long getEntryTime(int spaceNumber) {
+        LotShard shard = shardOf(spaceNumber);
+        return shard.getEngine().getEntryTime(shard.toLocal(spaceNumber));
+    }
+
+    /**
+     * Returns the free space on the same level closest to {@code spaceNumber},
+     * or {@link ParkingEngine#NO_SPACE}.
+     */
+    public int findNearestFreeSpace(int spaceNumber) {
+        LotShard shard = shardOf(spaceNumber);
+        int localSpace = shard.getEngine().findNearestFreeSpace(shard.toLocal(spaceNumber));
+        return localSpace < 0 ? ParkingEngine.NO_SPACE : shard.toGlobal(localSpace);
+    }
+
+    /**
+     * Returns the space the plate is parked in, or {@link ParkingEngine#NO_SPACE}.
+     */
+    public int findSpace(String licensePlate) {
+        String plate = ParkingEngine.normalizePlate(licensePlate);
+        Integer index = shardByPlate.get(plate);
+        if (index == null || index < 0) {
+            return ParkingEngine.NO_SPACE;
+        }
+        LotShard shard = shards.get(index);
+        int localSpace = shard.getEngine().findSpace(plate);
+        return localSpace < 0 ? ParkingEngine.NO_SPACE : shard.toGlobal(localSpace);
+    }
+
+    /**
+     * The plate's current session with its global space number, taken in one
+     * read from its level's engine, or null when the plate is not parked.
+     */
+    public ParkingRecord getSession(String licensePlate) {
+        String plate = ParkingEngine.normalizePlate(licensePlate);
+        while (true) {
+            Integer index = shardByPlate.get(plate);
+            if (index == null || index < 0) {
+                return null;
+            }
+            LotShard shard = shards.get(index);
+            ParkingRecord session = shard.getEngine().getSession(plate);
+            if (session != null) {
+                return toGlobal(shard, session);
+            }
+            // Moved to another level meanwhile; look again unless it has left
+            if (index.equals(shardByPlate.get(plate))) {
+                return null;
+            }
+        }
+    }
+
+    public void writeLotState(int spaceNumber, VehicleType vehicleType, String licensePlate, long entryTime) {
+        LotShard shard = shardOf(spaceNumber);
+        LotStateFile lotState = shard.getLotState();
+        if (lotState != null) {
+            lotState.write(shard.toLocal(spaceNumber), vehicleType, licensePlate, entryTime);
+        }
+    }
+
+    public void clearLotState(int spaceNumber) {
+        LotShard shard = shardOf(spaceNumber);
+        LotStateFile lotState = shard.getLotState();
+        if (lotState != null) {
+            lotState.clear(shard.toLocal(spaceNumber));
+        }
+    }
+
+    /**
+     * Forces every level's lot state file to disk.
+     */
+    public void forceLotStates() {
+        for (LotShard shard : shards) {
+            LotStateFile lotState = shard.getLotState();
+            if (lotState != null) {
+                lotState.force();
+            }
+        }
+    }
+
+    public void closeLotStates() throws IOException {
+        IOException failure = null;
+        for (LotShard shard : shards) {
+            try {
+                shard.closeLotState();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private long sum(ToLongFunction<LotShard> perShard) {
+        Stream<LotShard> stream = shards.size() >= PARALLEL_THRESHOLD ? shards.parallelStream() : shards.stream();
+        return stream.mapToLong(perShard).sum();
+    }
+
+    private int shardIndex(int spaceNumber) {
+        int low = 0;
+        int high = firstSpaces.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (firstSpaces[middle] <= spaceNumber) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private void checkSpace(int spaceNumber) {
+        if (spaceNumber <= 0 || spaceNumber > totalSpaces) {
+            throw new IllegalArgumentException("No such space: " + spaceNumber);
+        }
+    }
+
+    private static ParkingRecord toGlobal(LotShard shard, ParkingRecord record) {
+        if (shard.getFirstSpace() == 1) {
+            return record;
+        }
+        return new ParkingRecord(record.getLicensePlate(), record.getVehicleType(), shard.toGlobal(record.getSpaceNumber()),
+                record.getEntryTime(), record.getExitTime(), record.getFare(), record.getRateVersion());
+    }
+
+    private static String fileName(String site, String level) {
+        return (site + "-" + level).toLowerCase().replaceAll("[^a-z0-9]+", "-") + ".dat";
+    }
+
+    /**
+     * Republishes one level's events with global space numbers.
+     */
+    private final class ShardListener implements ParkingEngine.Listener {
+        private final LotShard shard;
+
+        ShardListener(LotShard shard) {
+            this.shard = shard;
+        }
+
+        @Override
+        public void vehicleParked(int spaceNumber, String licensePlate, VehicleType vehicleType, long entryTime) {
+            int globalSpace = shard.toGlobal(spaceNumber);
+            for (ParkingEngine.Listener listener : listeners) {
+                listener.vehicleParked(globalSpace, licensePlate, vehicleType, entryTime);
+            }
+        }
+
+        @Override
+        public void vehicleRemoved(ParkingRecord record) {
+            ParkingRecord globalRecord = toGlobal(shard, record);
+            for (ParkingEngine.Listener listener : listeners) {
+                listener.vehicleRemoved(globalRecord);
+            }
+        }
+    }
+}
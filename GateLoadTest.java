@@ -0,0 +1,184 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Load test for a running {@link GateServer}: many terminals at once, each
+ * parking and unparking plates from a shared pool (so some requests meet an
+ * already parked plate or a full lot, as at a real gate) and now and then
+ * reading the occupancy or looking a plate up. Prints requests per second,
+ * latency percentiles over every request and the count of each status.
+ * Parked test plates are left in the lot.
+ *
+ * Run with: java GateLoadTest [base url] [clients] [seconds] [plates] [token]
+ * where token is the server's api.token.
+ */
+public class GateLoadTest {
+    private static final int[] STATUSES = {200, 201, 400, 401, 403, 404, 409, 500};
+
+    private static String token;
+
+    public static void main(String[] args) throws InterruptedException {
+        String baseUrl = args.length > 0 ? args[0] : "http://localhost:8080";
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        long millis = (args.length > 2 ? Long.parseLong(args[2]) : 10) * 1000;
+        int plateCount = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        token = args.length > 4 ? args[4] : null;
+        String[] plates = new String[plateCount];
+        for (int i = 0; i < plates.length; i++) {
+            plates[i] = "LT" + i;
+        }
+
+        // Warm up the connections and the server's JIT, then measure
+        run(baseUrl, clients, plates, Math.min(millis / 4, 2000), new AtomicLongArray(STATUSES.length + 1));
+        AtomicLongArray statusCounts = new AtomicLongArray(STATUSES.length + 1);
+        long start = System.nanoTime();
+        long[] latencies = run(baseUrl, clients, plates, millis, statusCounts);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Arrays.sort(latencies);
+        System.out.printf("%s, %d clients, %.1f s%n", baseUrl, clients, seconds);
+        System.out.printf("%d requests, %.0f requests/s%n", latencies.length, latencies.length / seconds);
+        System.out.printf("latency ms: p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n",
+                percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+                percentile(latencies, 99.9), percentile(latencies, 100));
+        StringBuilder statuses = new StringBuilder("status:");
+        for (int i = 0; i < STATUSES.length; i++) {
+            if (statusCounts.get(i) > 0) {
+                statuses.append(' ').append(STATUSES[i]).append(" x").append(statusCounts.get(i));
+            }
+        }
+        if (statusCounts.get(STATUSES.length) > 0) {
+            statuses.append(" other/failed x").append(statusCounts.get(STATUSES.length));
+        }
+        System.out.println(statuses);
+    }
+
+    /**
+     * Runs the clients for {@code millis} and returns every request's latency in nanoseconds.
+     */
+    private static long[] run(String baseUrl, int clients, String[] plates, long millis, AtomicLongArray statusCounts)
+            throws InterruptedException {
+        CountDownLatch ready = new CountDownLatch(clients);
+        CountDownLatch go = new CountDownLatch(1);
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        long[][] latencies = new long[clients][];
+        List<Thread> threads = new ArrayList<>();
+        for (int client = 0; client < clients; client++) {
+            int id = client;
+            Thread thread = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                String[] types = {"car", "motor", "truck"};
+                long[] samples = new long[1024];
+                int count = 0;
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (System.nanoTime() < deadline) {
+                    String plate = plates[random.nextInt(plates.length)];
+                    int roll = random.nextInt(10);
+                    long start = System.nanoTime();
+                    int status;
+                    if (roll < 4) {
+                        status = request(baseUrl + "/api/park", "plate=" + plate + "&type=" + types[random.nextInt(types.length)]);
+                    } else if (roll < 8) {
+                        status = request(baseUrl + "/api/unpark", "plate=" + plate);
+                    } else if (roll < 9) {
+                        status = request(baseUrl + "/api/plates/" + plate, null);
+                    } else {
+                        status = request(baseUrl + "/api/occupancy", null);
+                    }
+                    if (count == samples.length) {
+                        samples = Arrays.copyOf(samples, count * 2);
+                    }
+                    samples[count++] = System.nanoTime() - start;
+                    int index = 0;
+                    while (index < STATUSES.length && STATUSES[index] != status) {
+                        index++;
+                    }
+                    statusCounts.incrementAndGet(index);
+                }
+                latencies[id] = Arrays.copyOf(samples, count);
+            }, "load-client-" + client);
+            threads.add(thread);
+            thread.start();
+        }
+        ready.await();
+        go.countDown();
+        int total = 0;
+        for (int client = 0; client < clients; client++) {
+            threads.get(client).join();
+            total += latencies[client] == null ? 0 : latencies[client].length;
+        }
+        long[] all = new long[total];
+        int offset = 0;
+        for (long[] samples : latencies) {
+            if (samples != null) {
+                System.arraycopy(samples, 0, all, offset, samples.length);
+                offset += samples.length;
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Sends a GET, or a form POST when {@code form} is given, reads the whole
+     * answer (so the connection is reused) and returns the status, or -1 when
+     * the request failed.
+     */
+    private static int request(String url, String form) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            if (token != null) {
+                connection.setRequestProperty("Authorization", "Bearer " + token);
+            }
+            if (form != null) {
+                byte[] body = form.getBytes(StandardCharsets.UTF_8);
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                connection.setFixedLengthStreamingMode(body.length);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body);
+                }
+            }
+            int status = connection.getResponseCode();
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                byte[] buffer = new byte[1024];
+                while (in.read(buffer) >= 0) {
+                    // Drained so the connection goes back to the keep-alive pool
+                }
+                in.close();
+            }
+            return status;
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            return -1;
+        }
+    }
+
+    // Value at the given percentile of sorted nanoseconds, in milliseconds
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+}
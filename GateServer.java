@@ -0,0 +1,445 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP/JSON API for gate terminals, pay stations and signs, on the JDK's
+ * built-in server. Parameters come from the query string or a form-encoded
+ * body; every answer is a JSON object, with {@code error} set on failure.
+ *
+ * <pre>
+ * POST /api/park       plate, type, and optionally space, or gate (and level as site/level)
+ * POST /api/unpark     plate or space; answers with the fare
+ * GET  /api/occupancy  totals, free bays per vehicle type and per level
+ * GET  /api/plates/P   where plate P is parked and its fare so far
+ * GET  /api/rates      the current rates per vehicle type
+ * </pre>
+ *
+ * Only the occupancy is open to anyone who can reach the server, for
+ * signs. Everything else needs {@code Authorization: Bearer <token>} with the
+ * shared token, and is refused outright when no token is configured. The
+ * server listens on loopback unless told otherwise.
+ *
+ * Each request runs on its own virtual thread when the JDK has them (21 and
+ * later, looked up reflectively so the source still builds on 8), otherwise
+ * on a cached pool. Requests go straight to the garage, which is thread-safe;
+ * the journal, revenue and the frame (if any) follow through its listeners,
+ * as they do for a click on the lot.
+ */
+public class GateServer implements Closeable {
+    private static final int MAX_BODY_BYTES = 8192;
+
+    private final ParkingBackend backend;
+    private final Garage garage;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final String executorName;
+    // Null when no token is configured, which closes every endpoint but the occupancy
+    private final byte[] token;
+
+    private GateServer(ParkingBackend backend, HttpServer server, String token) {
+        this.backend = backend;
+        this.garage = backend.getGarage();
+        this.server = server;
+        this.token = token == null || token.trim().isEmpty() ? null : token.trim().getBytes(StandardCharsets.UTF_8);
+        ExecutorService virtualThreads = newVirtualThreadExecutor();
+        if (virtualThreads != null) {
+            executor = virtualThreads;
+            executorName = "virtual threads";
+        } else {
+            AtomicInteger threadCount = new AtomicInteger();
+            executor = Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "gate-api-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            executorName = "thread pool";
+        }
+    }
+
+    /**
+     * Starts serving on {@code bindAddress} (e.g. 127.0.0.1, or 0.0.0.0 for
+     * every interface) and {@code port} (0 picks a free one); {@code backlog}
+     * is the listen queue length, 0 for the system default. {@code token} is
+     * the shared token terminals must send, or null.
+     */
+    public static GateServer start(ParkingBackend backend, String bindAddress, int port, int backlog, String token)
+            throws IOException {
+        // Headers and body go out as separate writes; with Nagle on, each answer waits out a delayed ACK (~40 ms)
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(bindAddress), port);
+        GateServer gateServer = new GateServer(backend, HttpServer.create(address, backlog), token);
+        gateServer.server.createContext("/api/park", gateServer.handler("POST", true, gateServer::park));
+        gateServer.server.createContext("/api/unpark", gateServer.handler("POST", true, gateServer::unpark));
+        gateServer.server.createContext("/api/occupancy", gateServer.handler("GET", false, gateServer::occupancy));
+        gateServer.server.createContext("/api/plates/", gateServer.handler("GET", true, gateServer::plate));
+        gateServer.server.createContext("/api/rates", gateServer.handler("GET", true, gateServer::rates));
+        gateServer.server.setExecutor(gateServer.executor);
+        gateServer.server.start();
+        return gateServer;
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor(), or null before JDK 21
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    public boolean hasToken() {
+        return token != null;
+    }
+
+    /**
+     * "virtual threads" or "thread pool", for the startup log.
+     */
+    public String getExecutorName() {
+        return executorName;
+    }
+
+    /**
+     * Stops accepting requests and gives those in flight a second to finish.
+     */
+    @Override
+    public void close() {
+        server.stop(1);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A request already checked for its method, with its parameters parsed.
+     */
+    private interface Endpoint {
+        Response handle(HttpExchange exchange, Map<String, String> params);
+    }
+
+    private static final class Response {
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private static Response ok(Json json) {
+        return new Response(200, json.toString());
+    }
+
+    private static Response error(int status, String message) {
+        return new Response(status, new Json().field("error", message).toString());
+    }
+
+    private HttpHandler handler(String method, boolean needsToken, Endpoint endpoint) {
+        return exchange -> {
+            long start = Instrumentation.start(Instrumentation.API_REQUEST);
+            Response response;
+            try {
+                if (needsToken && token == null) {
+                    response = error(403, "Disabled: set api.token in settings.txt to use this endpoint");
+                } else if (needsToken && !authorized(exchange)) {
+                    exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+                    response = error(401, "Missing or wrong token");
+                } else if (!exchange.getRequestMethod().equalsIgnoreCase(method)) {
+                    exchange.getResponseHeaders().set("Allow", method);
+                    response = error(405, method + " only");
+                } else {
+                    response = endpoint.handle(exchange, params(exchange));
+                }
+            } catch (IllegalArgumentException e) {
+                response = error(400, e.getMessage());
+            } catch (RuntimeException e) {
+                // Details stay in the server's log
+                e.printStackTrace();
+                response = error(500, "Internal error");
+            }
+            byte[] body = response.body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(response.status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+            Instrumentation.record(Instrumentation.API_REQUEST, start);
+        };
+    }
+
+    // Compares the bearer token in constant time
+    private boolean authorized(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header == null || !header.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            return false;
+        }
+        return MessageDigest.isEqual(token, header.substring(7).trim().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Response park(HttpExchange exchange, Map<String, String> params) {
+        String plate = required(params, "plate");
+        VehicleType vehicleType = vehicleType(params);
+        String gate = params.get("gate");
+        int space;
+        if (gate != null) {
+            space = garage.parkAtGate(plate, vehicleType, level(params), gate);
+        } else {
+            space = garage.park(plate, vehicleType, params.containsKey("space") ? number(params, "space") : 0);
+        }
+        if (space == ParkingEngine.DUPLICATE_PLATE) {
+            return error(409, "Plate " + plate + " is already parked");
+        }
+        if (space == ParkingEngine.NO_SPACE) {
+            return error(409, "No available parking space for a " + vehicleType.getLabel().toLowerCase());
+        }
+        ParkingRecord session = garage.getSession(plate);
+        if (session == null || session.getSpaceNumber() != space) {
+            // Already left again; answer with what was assigned
+            session = new ParkingRecord(ParkingEngine.normalizePlate(plate), vehicleType, space, 0, 0, 0);
+        }
+        return new Response(201, sessionJson(session).toString());
+    }
+
+    private Response unpark(HttpExchange exchange, Map<String, String> params) {
+        ParkingRecord record = params.containsKey("plate") ? garage.unpark(params.get("plate"))
+                : garage.unparkSpace(number(params, "space"));
+        if (record == null) {
+            return error(404, params.containsKey("plate") ? "Plate " + params.get("plate") + " is not parked"
+                    : "Space " + params.get("space") + " is not occupied");
+        }
+        return ok(new Json()
+                .field("plate", record.getLicensePlate())
+                .field("type", record.getVehicleType().getLabel())
+                .field("space", record.getSpaceNumber())
+                .field("level", garage.shardOf(record.getSpaceNumber()).toString())
+                .field("entryTime", record.getEntryTime())
+                .field("exitTime", record.getExitTime())
+                .field("hours", record.getDurationHours())
+                .field("fare", record.getFare())
+                .field("rateVersion", record.getRateVersion()));
+    }
+
+    private Response occupancy(HttpExchange exchange, Map<String, String> params) {
+        Json available = new Json();
+        for (VehicleType vehicleType : VehicleType.values()) {
+            available.field(vehicleType.getLabel().toLowerCase(), garage.getAvailableSpaces(vehicleType));
+        }
+        StringBuilder levels = new StringBuilder("[");
+        for (LotShard shard : garage.getShards()) {
+            ParkingEngine engine = shard.getEngine();
+            levels.append(levels.length() > 1 ? "," : "").append(new Json()
+                    .field("level", shard.toString())
+                    .field("firstSpace", shard.getFirstSpace())
+                    .field("totalSpaces", engine.getTotalSpaces())
+                    .field("occupiedSpaces", engine.getOccupiedSpaces())
+                    .field("availableSpaces", engine.getAvailableSpaces()));
+        }
+        return ok(new Json()
+                .field("totalSpaces", garage.getTotalSpaces())
+                .field("occupiedSpaces", garage.getOccupiedSpaces())
+                .field("availableSpaces", garage.getAvailableSpaces())
+                .raw("availableFor", available.toString())
+                .raw("levels", levels.append(']').toString()));
+    }
+
+    private Response plate(HttpExchange exchange, Map<String, String> params) {
+        String plate = decode(exchange.getRequestURI().getRawPath().substring("/api/plates/".length()));
+        ParkingRecord session = garage.getSession(plate);
+        if (session == null) {
+            return error(404, "Plate " + plate + " is not parked");
+        }
+        return ok(sessionJson(session).field("fareSoFar", backend.currentTariff()
+                .fare(session.getVehicleType(), session.getEntryTime(), System.currentTimeMillis())));
+    }
+
+    private Response rates(HttpExchange exchange, Map<String, String> params) {
+        RateBook rateBook = backend.getRateBook();
+        Tariff tariff = backend.currentTariff();
+        Json types = new Json();
+        for (VehicleType vehicleType : VehicleType.values()) {
+            types.raw(vehicleType.getLabel().toLowerCase(), new Json()
+                    .field("hourly", tariff.getHourlyCents(vehicleType) / 100.0)
+                    .field("description", tariff.describe(vehicleType)).toString());
+        }
+        Json json = new Json();
+        if (rateBook != null) {
+            json.field("version", rateBook.current().getVersion()).field("since", rateBook.current().getSince());
+        }
+        return ok(json.raw("rates", types.toString()));
+    }
+
+    // Space number, level, plate and type of one session, with its entry time when known
+    private Json sessionJson(ParkingRecord session) {
+        Json json = new Json()
+                .field("space", session.getSpaceNumber())
+                .field("level", garage.shardOf(session.getSpaceNumber()).toString())
+                .field("plate", session.getLicensePlate())
+                .field("type", session.getVehicleType().getLabel());
+        if (session.getEntryTime() > 0) {
+            json.field("entryTime", session.getEntryTime());
+        }
+        return json;
+    }
+
+    private LotShard level(Map<String, String> params) {
+        String name = params.get("level");
+        List<LotShard> shards = garage.getShards();
+        if (name == null) {
+            if (shards.size() > 1) {
+                throw new IllegalArgumentException("level (site/level) is required with several levels");
+            }
+            return shards.get(0);
+        }
+        LotShard level = garage.findLevel(name);
+        if (level == null) {
+            throw new IllegalArgumentException("No level " + name);
+        }
+        return level;
+    }
+
+    private static VehicleType vehicleType(Map<String, String> params) {
+        VehicleType vehicleType = VehicleType.fromName(required(params, "type"));
+        if (vehicleType == null) {
+            throw new IllegalArgumentException("type must be car, motor or truck");
+        }
+        return vehicleType;
+    }
+
+    private static String required(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null || value.trim().isEmpty()) {
+            throw new IllegalArgumentException(name + " is required");
+        }
+        return value;
+    }
+
+    private static int number(Map<String, String> params, String name) {
+        try {
+            return Integer.parseInt(required(params, name).trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number");
+        }
+    }
+
+    // Query string parameters, then form-encoded body parameters (which win)
+    private static Map<String, String> params(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        parseForm(exchange.getRequestURI().getRawQuery(), params);
+        try (InputStream in = exchange.getRequestBody()) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            for (int read; (read = in.read(buffer)) > 0; ) {
+                if (body.size() + read > MAX_BODY_BYTES) {
+                    throw new IllegalArgumentException("Request body over " + MAX_BODY_BYTES + " bytes");
+                }
+                body.write(buffer, 0, read);
+            }
+            parseForm(new String(body.toByteArray(), StandardCharsets.UTF_8), params);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not read the request body: " + e.getMessage());
+        }
+        return params;
+    }
+
+    private static void parseForm(String form, Map<String, String> params) {
+        if (form == null || form.isEmpty()) {
+            return;
+        }
+        for (String pair : form.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                params.put(decode(pair.substring(0, equals)), decode(pair.substring(equals + 1)));
+            }
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A flat JSON object written field by field; nested values go in with
+     * {@link #raw}.
+     */
+    private static final class Json {
+        private final StringBuilder out = new StringBuilder("{");
+        private int fields;
+
+        Json field(String name, String value) {
+            return raw(name, quote(value));
+        }
+
+        Json field(String name, long value) {
+            return raw(name, Long.toString(value));
+        }
+
+        Json field(String name, double value) {
+            return raw(name, String.format(Locale.ROOT, "%.2f", value));
+        }
+
+        Json raw(String name, String json) {
+            if (fields++ > 0) {
+                out.append(',');
+            }
+            out.append(quote(name)).append(':').append(json);
+            return this;
+        }
+
+        private static String quote(String value) {
+            if (value == null) {
+                return "null";
+            }
+            StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    quoted.append('\\').append(c);
+                } else if (c < 0x20) {
+                    quoted.append(String.format("\\u%04x", (int) c));
+                } else {
+                    quoted.append(c);
+                }
+            }
+            return quoted.append('"').toString();
+        }
+
+        @Override
+        public String toString() {
+            return out + "}";
+        }
+    }
+}
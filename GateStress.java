@@ -0,0 +1,228 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.time.ZoneId;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a ParkingEngine from many gate threads at once and checks that no
+ * space is ever handed to two vehicles and no plate is ever parked twice.
+ * Gates share one pool of plates that is larger than the lot, so they fight
+ * over plates as well as spaces and the lot keeps running full. Each gate
+ * count is run with one zone (a single lock) and with one zone per gate, both
+ * bare and with the listeners the application attaches to every park and
+ * unpark (ParkingStats, MetricsModel and OccupancySeries). First, arrivals at gates are checked against a brute-force search for the
+ * closest fitting bay, with one zone and with several.
+ *
+ * Run with: java GateStress [spaces] [seconds per run] [max gates]
+ */
+public class GateStress {
+    public static void main(String[] args) throws InterruptedException {
+        int spaces = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        long millis = (args.length > 1 ? Long.parseLong(args[1]) : 2) * 1000;
+        int maxGates = args.length > 2 ? Integer.parseInt(args[2]) : 2 * Runtime.getRuntime().availableProcessors();
+        String[] plates = new String[spaces + spaces / 4];
+        for (int i = 0; i < plates.length; i++) {
+            plates[i] = "GS" + i;
+        }
+
+        boolean failed = false;
+        for (int zones : new int[]{1, 3, 8}) {
+            long wrong = checkGateArrivals(zones, 100_000);
+            System.out.printf("gate arrivals, %d zones: %d not the closest bay%n", zones, wrong);
+            failed |= wrong > 0;
+        }
+
+        System.out.printf("%d spaces, %d processors%n", spaces, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%6s %6s %14s %16s %12s%n", "gates", "zones", "ops/s", "with listeners", "violations");
+        for (int gates = 1; gates <= maxGates; gates *= 2) {
+            for (int zones : gates == 1 ? new int[]{1} : new int[]{1, gates}) {
+                long violations = 0;
+                double[] opsPerSecond = new double[2];
+                for (int listeners = 0; listeners < 2; listeners++) {
+                    violations += run(spaces, zones, gates, plates, millis / 4, listeners == 1, null);
+                    Result result = new Result();
+                    violations += run(spaces, zones, gates, plates, millis, listeners == 1, result);
+                    opsPerSecond[listeners] = result.operations * 1000.0 / millis;
+                }
+                System.out.printf("%6d %6d %14.0f %16.0f %12d%n", gates, zones, opsPerSecond[0], opsPerSecond[1], violations);
+                failed |= violations > 0;
+            }
+        }
+        if (failed) {
+            System.out.println("FAILED: wrong gate bays, double allocations or duplicate plates were seen");
+            System.exit(1);
+        }
+        System.out.println("OK: gates got their closest bays and no space or plate was ever held twice");
+    }
+
+    /**
+     * Parks and unparks at random on a small lot of mixed bays with three
+     * gates, comparing every arrival with the closest free bay of the smallest
+     * class that has one (ties to the lower space). Returns the mismatches.
+     */
+    private static long checkGateArrivals(int zoneCount, int operations) {
+        int rows = 8;
+        int columns = 13;
+        SpaceClass[] spaceClasses = SpaceClass.forRows("TCCMCTCM", rows, columns);
+        ParkingEngine engine = new ParkingEngine(spaceClasses, zoneCount);
+        Random random = new Random(7);
+        VehicleType[] types = VehicleType.values();
+        // Park some vehicles first, so the gate indexes start from an occupied lot
+        for (int i = 0; i < 30; i++) {
+            engine.park("GA" + random.nextInt(200), types[random.nextInt(types.length)], 1);
+        }
+        int[][] gates = {{0, 1}, {9, 14}, {4, 7}};
+        int[][] distances = new int[gates.length][rows * columns];
+        for (int gate = 0; gate < gates.length; gate++) {
+            for (int i = 0; i < rows * columns; i++) {
+                distances[gate][i] = Math.abs(i / columns + 1 - gates[gate][0]) + Math.abs(i % columns + 1 - gates[gate][1]);
+            }
+            engine.addGate("G" + gate, distances[gate]);
+        }
+        long wrong = 0;
+        for (int i = 0; i < operations; i++) {
+            String plate = "GA" + random.nextInt(200);
+            if (random.nextBoolean()) {
+                engine.unpark(plate);
+                continue;
+            }
+            VehicleType vehicleType = types[random.nextInt(types.length)];
+            int gate = random.nextInt(gates.length);
+            int expected = ParkingEngine.NO_SPACE;
+            for (int c = SpaceClass.forVehicle(vehicleType).ordinal(); c < SpaceClass.COUNT && expected == ParkingEngine.NO_SPACE; c++) {
+                for (int space = 1; space <= spaceClasses.length; space++) {
+                    if (spaceClasses[space - 1].ordinal() == c && !engine.isOccupied(space)
+                            && (expected == ParkingEngine.NO_SPACE || distances[gate][space - 1] < distances[gate][expected - 1])) {
+                        expected = space;
+                    }
+                }
+            }
+            if (engine.findSpace(plate) > 0) {
+                expected = ParkingEngine.DUPLICATE_PLATE;
+            }
+            if (engine.parkAtGate(plate, vehicleType, gate) != expected) {
+                wrong++;
+            }
+        }
+        return wrong;
+    }
+
+    private static final class Result {
+        long operations;
+    }
+
+    /**
+     * Runs the gates for {@code millis}, with the application's listeners
+     * attached when {@code listeners} is set, and returns the number of
+     * violations seen.
+     */
+    private static long run(int spaces, int zoneCount, int gates, String[] plates, long millis, boolean listeners,
+                            Result result) throws InterruptedException {
+        ParkingEngine engine = new ParkingEngine(spaces, zoneCount);
+        Checker checker = new Checker(spaces);
+        engine.addListener(checker);
+        if (listeners) {
+            ParkingStats stats = new ParkingStats();
+            engine.addListener(stats);
+            engine.addListener(new MetricsModel(spaces, stats, null));
+            engine.addListener(new OccupancySeries(ZoneId.systemDefault()));
+        }
+        AtomicLong operations = new AtomicLong();
+        CountDownLatch ready = new CountDownLatch(gates);
+        CountDownLatch go = new CountDownLatch(1);
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        List<Thread> threads = new ArrayList<>();
+        for (int gate = 0; gate < gates; gate++) {
+            // Each gate sends vehicles to its own zone first
+            int home = engine.getZoneStart(gate % engine.getZoneCount());
+            Thread thread = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                VehicleType[] types = VehicleType.values();
+                long count = 0;
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while ((count & 255) != 0 || System.nanoTime() < deadline) {
+                    String plate = plates[random.nextInt(plates.length)];
+                    if (engine.park(plate, types[random.nextInt(types.length)], home) == ParkingEngine.DUPLICATE_PLATE) {
+                        engine.unpark(plate);
+                    }
+                    count++;
+                }
+                operations.addAndGet(count);
+            }, "gate-" + gate);
+            threads.add(thread);
+            thread.start();
+        }
+        ready.await();
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (result != null) {
+            result.operations = operations.get();
+        }
+        return checker.violations.get() + checker.verify(engine);
+    }
+
+    /**
+     * Tracks every space and plate from the engine's events and counts any
+     * park into a held space or of a held plate.
+     */
+    private static final class Checker implements ParkingEngine.Listener {
+        private final AtomicIntegerArray held;
+        private final ConcurrentMap<String, Integer> plates = new ConcurrentHashMap<>();
+        final AtomicLong violations = new AtomicLong();
+
+        Checker(int spaces) {
+            held = new AtomicIntegerArray(spaces);
+        }
+
+        @Override
+        public void vehicleParked(int spaceNumber, String licensePlate, VehicleType vehicleType, long entryTime) {
+            if (!held.compareAndSet(spaceNumber - 1, 0, 1)) {
+                violations.incrementAndGet();
+            }
+            if (plates.putIfAbsent(licensePlate, spaceNumber) != null) {
+                violations.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void vehicleRemoved(ParkingRecord record) {
+            if (!held.compareAndSet(record.getSpaceNumber() - 1, 1, 0)) {
+                violations.incrementAndGet();
+            }
+            if (!plates.remove(record.getLicensePlate(), record.getSpaceNumber())) {
+                violations.incrementAndGet();
+            }
+        }
+
+        // Compares the engine's final state with the one replayed from its events
+        long verify(ParkingEngine engine) {
+            long mismatches = 0;
+            int occupied = 0;
+            for (int space = 1; space <= held.length(); space++) {
+                boolean taken = held.get(space - 1) == 1;
+                occupied += taken ? 1 : 0;
+                if (engine.isOccupied(space) != taken
+                        || taken && engine.findSpace(engine.getLicensePlate(space)) != space) {
+                    mismatches++;
+                }
+            }
+            if (occupied != engine.getOccupiedSpaces() || plates.size() != occupied) {
+                mismatches++;
+            }
+            return mismatches;
+        }
+    }
+}
@@ -0,0 +1,473 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Parking history as fixed-width rows in data/history.dat, so row {@code n}
+ * sits at a known offset and can be read without touching the rest. A park
+ * appends an open row; the exit rewrites that row's exit time and fare in place.
+ *
+ * <pre>
+ * header (64 bytes): magic "PHST", version, record size, flags, row count (long), CRC32 of the previous 24 bytes
+ * record (96 bytes): entry time, exit time, fare (double), space, type code, plate length, pad,
+ *                    previous row of the same plate (-1 for none), rate version (0 if unknown), pad,
+ *                    plate (UTF-8, up to 48 bytes)
+ * </pre>
+ *
+ * Searches go through two side indexes: {@link PlateIndex} for the latest row
+ * of each plate (older visits follow the back pointers) and
+ * {@link EntryTimeIndex} for entry-time ranges.
+ *
+ * The header is marked dirty while the file is open. A file that was not
+ * closed cleanly, or is missing, is rebuilt from the session journal; an index
+ * that does not match the file is rebuilt from its rows.
+ */
+public class HistoryStore implements Closeable {
+    public static final int MAX_PLATE_BYTES = 48;
+
+    private static final int MAGIC = 0x50485354; // "PHST"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 96;
+    private static final int FLAG_DIRTY = 1;
+    private static final int ENTRY_TIME_OFFSET = 0;
+    private static final int EXIT_TIME_OFFSET = 8;
+    private static final int FARE_OFFSET = 16;
+    private static final int SPACE_OFFSET = 24;
+    private static final int TYPE_OFFSET = 28;
+    private static final int PLATE_LENGTH_OFFSET = 29;
+    private static final int PREVIOUS_ROW_OFFSET = 32;
+    private static final int RATE_VERSION_OFFSET = 36;
+    private static final int PLATE_OFFSET = 48;
+    private static final int SCAN_BATCH = 1024;
+
+    public interface Listener {
+        void rowAppended(int row);
+
+        void rowUpdated(int row);
+    }
+
+    private final FileChannel channel;
+    private PlateIndex plateIndex;
+    private EntryTimeIndex entryTimeIndex;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.BIG_ENDIAN);
+    // Plate -> row of its open session
+    private final Map<String, Integer> openRows = new HashMap<>();
+    private volatile int rowCount;
+    private volatile Listener listener;
+
+    private HistoryStore(FileChannel channel, int rowCount) {
+        this.channel = channel;
+        this.rowCount = rowCount;
+    }
+
+    /**
+     * Opens the history file, rebuilding it from {@code journal} when it is
+     * missing, unreadable or was not closed cleanly.
+     */
+    public static HistoryStore open(Path file, SessionJournal journal) throws IOException {
+        int rows = Files.exists(file) ? readHeader(file) : -1;
+        boolean rebuilt = rows < 0;
+        if (rebuilt) {
+            rebuild(file, journal);
+            rows = readHeader(file);
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        HistoryStore store = new HistoryStore(channel, rows);
+        store.writeHeader(true);
+        channel.force(true);
+        store.openIndexes(sibling(file, "-plates.idx"), sibling(file, "-times.idx"), rebuilt);
+        store.indexOpenRows(journal.getOpenSessions());
+        return store;
+    }
+
+    /**
+     * Rewrites {@code file} with every session in {@code journal}, in the order
+     * the journal reports them.
+     */
+    public static void rebuild(Path file, SessionJournal journal) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Built without side indexes; back pointers are filled in when they are rebuilt
+            HistoryStore store = new HistoryStore(channel, 0);
+            IOException[] failure = new IOException[1];
+            journal.forEachSession(session -> {
+                if (failure[0] == null) {
+                    try {
+                        store.append(session);
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            store.writeHeader(false);
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Called on the writing thread after each change, with the row already
+     * readable through {@link #readRows}.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Appends a session and returns its row number.
+     */
+    public synchronized int append(ParkingRecord session) throws IOException {
+        int row = rowCount;
+        int previousRow = -1;
+        if (plateIndex != null) {
+            previousRow = plateIndex.add(PlateIndex.searchKey(session.getLicensePlate()), row);
+            entryTimeIndex.insert(session.getEntryTime(), row);
+        }
+        writeRecord(row, session, previousRow);
+        if (!session.isClosed()) {
+            openRows.put(session.getLicensePlate(), row);
+        }
+        rowCount = row + 1;
+        Listener current = listener;
+        if (current != null) {
+            current.rowAppended(row);
+        }
+        return row;
+    }
+
+    /**
+     * Rewrites the open row of {@code session} with its exit time, fare and rate
+     * version, or appends the session when no open row exists. Returns the row
+     * number.
+     */
+    public synchronized int close(ParkingRecord session) throws IOException {
+        Integer known = openRows.remove(session.getLicensePlate());
+        int row = known != null ? known : findOpenRow(session.getLicensePlate(), session.getEntryTime());
+        if (row < 0) {
+            return append(session);
+        }
+        long position = HEADER_SIZE + (long) row * RECORD_SIZE;
+        record.clear();
+        record.putLong(session.getExitTime());
+        record.putDouble(session.getFare());
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record, position + EXIT_TIME_OFFSET + record.position());
+        }
+        record.clear();
+        record.putInt(session.getRateVersion());
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record, position + RATE_VERSION_OFFSET + record.position());
+        }
+        Listener current = listener;
+        if (current != null) {
+            current.rowUpdated(row);
+        }
+        return row;
+    }
+
+    /**
+     * Reads {@code count} rows starting at {@code first}. Safe to call from any
+     * thread while rows are being written.
+     */
+    public ParkingRecord[] readRows(int first, int count) throws IOException {
+        ByteBuffer buffer = readRaw(first, count);
+        ParkingRecord[] rows = new ParkingRecord[count];
+        for (int i = 0; i < count; i++) {
+            rows[i] = decode(buffer, i * RECORD_SIZE);
+        }
+        return rows;
+    }
+
+    public ParkingRecord readRow(int row) throws IOException {
+        return readRows(row, 1)[0];
+    }
+
+    /**
+     * Returns up to {@code limit} rows of every visit of {@code licensePlate}
+     * (compared by {@link PlateIndex#searchKey}), newest first.
+     */
+    public synchronized int[] findByPlate(String licensePlate, int limit) throws IOException {
+        String key = PlateIndex.searchKey(licensePlate);
+        if (plateIndex == null || key.isEmpty()) {
+            return new int[0];
+        }
+        int[] rows = new int[Math.min(limit, plateIndex.visits(key))];
+        int found = 0;
+        ByteBuffer pointer = ByteBuffer.allocate(4);
+        for (int row = plateIndex.latestRow(key); row >= 0 && found < rows.length; ) {
+            rows[found++] = row;
+            pointer.clear();
+            long position = HEADER_SIZE + (long) row * RECORD_SIZE + PREVIOUS_ROW_OFFSET;
+            while (pointer.hasRemaining()) {
+                if (channel.read(pointer, position + pointer.position()) < 0) {
+                    throw new IOException("History file ends before row " + row);
+                }
+            }
+            row = pointer.getInt(0);
+        }
+        return found == rows.length ? rows : Arrays.copyOf(rows, found);
+    }
+
+    /**
+     * Number of sessions entered in {@code [from, to)}.
+     */
+    public synchronized int countByEntryTime(long from, long to) {
+        if (entryTimeIndex == null) {
+            return 0;
+        }
+        return Math.max(0, entryTimeIndex.lowerBound(to) - entryTimeIndex.lowerBound(from));
+    }
+
+    /**
+     * Returns the rows of up to {@code limit} sessions entered in {@code [from, to)},
+     * earliest entry first.
+     */
+    public synchronized int[] findByEntryTime(long from, long to, int limit) {
+        if (entryTimeIndex == null) {
+            return new int[0];
+        }
+        int first = entryTimeIndex.lowerBound(from);
+        int end = Math.min(entryTimeIndex.lowerBound(to), first + limit);
+        int[] rows = new int[Math.max(0, end - first)];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = entryTimeIndex.rowAt(first + i);
+        }
+        return rows;
+    }
+
+    public void sync() throws IOException {
+        channel.force(false);
+        synchronized (this) {
+            if (plateIndex != null) {
+                plateIndex.force();
+                entryTimeIndex.force();
+            }
+        }
+    }
+
+    /**
+     * Records the row count and marks the file as cleanly closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        channel.force(false);
+        if (plateIndex != null) {
+            // Indexes are marked clean before the file they describe
+            plateIndex.close(rowCount);
+            entryTimeIndex.close(rowCount);
+        }
+        writeHeader(false);
+        channel.force(true);
+        channel.close();
+    }
+
+    private void openIndexes(Path plateFile, Path entryTimeFile, boolean historyRebuilt) throws IOException {
+        PlateIndex plates = PlateIndex.open(plateFile);
+        EntryTimeIndex entryTimes = EntryTimeIndex.open(entryTimeFile);
+        if (historyRebuilt || plates.getCoveredRows() != rowCount || entryTimes.getCoveredRows() != rowCount) {
+            long start = System.currentTimeMillis();
+            plates.reset();
+            entryTimes.reset();
+            if (rowCount > 0) {
+                rebuildIndexes(plates, entryTimes);
+                System.err.println("Rebuilt history indexes for " + rowCount + " rows in "
+                        + (System.currentTimeMillis() - start) + " ms");
+            }
+        }
+        synchronized (this) {
+            plateIndex = plates;
+            entryTimeIndex = entryTimes;
+        }
+    }
+
+    // One pass over every row, also rewriting the back pointers
+    private void rebuildIndexes(PlateIndex plates, EntryTimeIndex entryTimes) throws IOException {
+        for (int first = 0; first < rowCount; first += SCAN_BATCH) {
+            int count = Math.min(SCAN_BATCH, rowCount - first);
+            ByteBuffer rows = readRaw(first, count);
+            for (int i = 0; i < count; i++) {
+                int offset = i * RECORD_SIZE;
+                int plateLength = rows.get(offset + PLATE_LENGTH_OFFSET);
+                String licensePlate = new String(rows.array(), offset + PLATE_OFFSET, plateLength, StandardCharsets.UTF_8);
+                rows.putInt(offset + PREVIOUS_ROW_OFFSET, plates.add(PlateIndex.searchKey(licensePlate), first + i));
+                entryTimes.insert(rows.getLong(offset + ENTRY_TIME_OFFSET), first + i);
+            }
+            rows.clear();
+            long position = HEADER_SIZE + (long) first * RECORD_SIZE;
+            while (rows.hasRemaining()) {
+                channel.write(rows, position + rows.position());
+            }
+        }
+    }
+
+    private ByteBuffer readRaw(int first, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(count * RECORD_SIZE).order(ByteOrder.BIG_ENDIAN);
+        long position = HEADER_SIZE + (long) first * RECORD_SIZE;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("History file ends before row " + (first + count));
+            }
+        }
+        return buffer;
+    }
+
+    private static Path sibling(Path file, String suffix) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return file.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + suffix);
+    }
+
+    /**
+     * Finds the rows of sessions that were still open at startup in one
+     * backward scan, which stops once all of them are found.
+     */
+    private synchronized void indexOpenRows(List<ParkingRecord> openSessions) throws IOException {
+        Map<String, Long> wanted = new HashMap<>();
+        for (ParkingRecord session : openSessions) {
+            wanted.put(session.getLicensePlate(), session.getEntryTime());
+        }
+        int end = rowCount;
+        while (end > 0 && !wanted.isEmpty()) {
+            int first = Math.max(0, end - SCAN_BATCH);
+            ParkingRecord[] rows = readRows(first, end - first);
+            for (int i = rows.length - 1; i >= 0; i--) {
+                ParkingRecord row = rows[i];
+                Long entryTime = row.isClosed() ? null : wanted.get(row.getLicensePlate());
+                if (entryTime != null && entryTime == row.getEntryTime()) {
+                    wanted.remove(row.getLicensePlate());
+                    openRows.put(row.getLicensePlate(), first + i);
+                }
+            }
+            end = first;
+        }
+    }
+
+    // Only for an exit whose open row was never indexed, e.g. one missing from the journal
+    private int findOpenRow(String licensePlate, long entryTime) throws IOException {
+        int end = rowCount;
+        while (end > 0) {
+            int first = Math.max(0, end - SCAN_BATCH);
+            ParkingRecord[] rows = readRows(first, end - first);
+            for (int i = rows.length - 1; i >= 0; i--) {
+                ParkingRecord row = rows[i];
+                if (!row.isClosed() && row.getEntryTime() == entryTime && row.getLicensePlate().equals(licensePlate)) {
+                    return first + i;
+                }
+            }
+            end = first;
+        }
+        return -1;
+    }
+
+    private void writeRecord(int row, ParkingRecord session, int previousRow) throws IOException {
+        byte[] plate = session.getLicensePlate().getBytes(StandardCharsets.UTF_8);
+        if (plate.length > MAX_PLATE_BYTES) {
+            throw new IllegalArgumentException("License plate too long for history file: " + session.getLicensePlate());
+        }
+        record.clear();
+        record.put(new byte[RECORD_SIZE]);
+        record.putLong(ENTRY_TIME_OFFSET, session.getEntryTime());
+        record.putLong(EXIT_TIME_OFFSET, session.getExitTime());
+        record.putDouble(FARE_OFFSET, session.getFare());
+        record.putInt(SPACE_OFFSET, session.getSpaceNumber());
+        record.put(TYPE_OFFSET, session.getVehicleType().getCode());
+        record.put(PLATE_LENGTH_OFFSET, (byte) plate.length);
+        record.putInt(PREVIOUS_ROW_OFFSET, previousRow);
+        record.putInt(RATE_VERSION_OFFSET, session.getRateVersion());
+        record.position(PLATE_OFFSET);
+        record.put(plate);
+        record.clear();
+        long position = HEADER_SIZE + (long) row * RECORD_SIZE;
+        while (record.hasRemaining()) {
+            channel.write(record, position + record.position());
+        }
+    }
+
+    private static ParkingRecord decode(ByteBuffer buffer, int offset) {
+        int plateLength = buffer.get(offset + PLATE_LENGTH_OFFSET);
+        String licensePlate = new String(buffer.array(), offset + PLATE_OFFSET, plateLength, StandardCharsets.UTF_8);
+        return new ParkingRecord(licensePlate,
+                VehicleType.fromCode(buffer.get(offset + TYPE_OFFSET)),
+                buffer.getInt(offset + SPACE_OFFSET),
+                buffer.getLong(offset + ENTRY_TIME_OFFSET),
+                buffer.getLong(offset + EXIT_TIME_OFFSET),
+                buffer.getDouble(offset + FARE_OFFSET),
+                buffer.getInt(offset + RATE_VERSION_OFFSET));
+    }
+
+    private void writeHeader(boolean dirty) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putInt(8, RECORD_SIZE);
+        header.putInt(12, dirty ? FLAG_DIRTY : 0);
+        header.putLong(16, rowCount);
+        header.putInt(24, headerCrc(header));
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    /**
+     * Returns the row count of a cleanly closed history file, or -1 when it has
+     * to be rebuilt.
+     */
+    private static int readHeader(Path file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (header.hasRemaining() && in.read(header) > 0) {
+                // keep reading
+            }
+        }
+        if (header.position() < HEADER_SIZE || header.getInt(0) != MAGIC) {
+            System.err.println(file + " is not a history file; rebuilding");
+            return -1;
+        }
+        if (header.getInt(4) != VERSION || header.getInt(8) != RECORD_SIZE || header.getInt(24) != headerCrc(header)) {
+            System.err.println(file + " has an unsupported or corrupt header; rebuilding");
+            return -1;
+        }
+        if ((header.getInt(12) & FLAG_DIRTY) != 0) {
+            System.err.println(file + " was not closed cleanly; rebuilding");
+            return -1;
+        }
+        long rows = header.getLong(16);
+        if (rows > Integer.MAX_VALUE || Files.size(file) < HEADER_SIZE + rows * RECORD_SIZE) {
+            System.err.println(file + " is truncated; rebuilding");
+            return -1;
+        }
+        return (int) rows;
+    }
+
+    private static int headerCrc(ByteBuffer header) {
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, 24);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,276 @@
+import javax.swing.SwingUtilities;
+import javax.swing.table.AbstractTableModel;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Table model over a {@link HistoryStore}. Rows are read from disk a page at a
+ * time when the table asks for them, so only what is on screen is loaded.
+ * Store changes are collected off the EDT and turned into row inserted/updated
+ * events in one pass on the EDT.
+ *
+ * A search narrows the table to the matching rows, found through the store's
+ * plate and entry-time indexes; new sessions that match are added as they
+ * arrive.
+ */
+public class HistoryTableModel extends AbstractTableModel implements HistoryStore.Listener {
+    private static final long serialVersionUID = 1L;
+
+    private static final String[] COLUMN_NAMES = {"Date", "Plate Number", "Vehicle Type", "Space Number", "Entry Time", "Exit Time", "Duration", "Fare", "Rates"};
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private static final int PAGE_SIZE = 128;
+    private static final int MAX_CACHED_PAGES = 64;
+    public static final int MAX_SEARCH_RESULTS = 100_000;
+
+    private final transient HistoryStore store;
+    private final transient Map<Integer, ParkingRecord[]> pages = new LinkedHashMap<Integer, ParkingRecord[]>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, ParkingRecord[]> eldest) {
+            return size() > MAX_CACHED_PAGES;
+        }
+    };
+    // Row count as last published to the table; only touched on the EDT
+    private int rowCount;
+
+    // Store rows shown while a search is active, ascending; null shows every row
+    private int[] filterRows;
+    private int filterSize;
+    private String filterKey;
+    private long filterFrom;
+    private long filterTo;
+
+    // Changes waiting for the EDT, guarded by pending
+    private final transient BitSet pendingUpdates = new BitSet();
+    private final transient Object pending = new Object();
+    private boolean drainScheduled;
+
+    public HistoryTableModel(HistoryStore store) {
+        this.store = store;
+        if (store != null) {
+            rowCount = store.getRowCount();
+            store.setListener(this);
+        }
+    }
+
+    @Override
+    public int getRowCount() {
+        return filterRows != null ? filterSize : rowCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+
+    public ParkingRecord getRecord(int row) {
+        if (filterRows != null) {
+            row = filterRows[row];
+        }
+        ParkingRecord[] page = page(row / PAGE_SIZE);
+        int index = row % PAGE_SIZE;
+        return index < page.length ? page[index] : null;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        ParkingRecord record = getRecord(row);
+        if (record == null) {
+            return null;
+        }
+        switch (column) {
+            case 0:
+                return entryDateTime(record).format(DATE_FORMAT);
+            case 1:
+                return record.getLicensePlate();
+            case 2:
+                return record.getVehicleType();
+            case 3:
+                return record.getSpaceNumber();
+            case 4:
+                return entryDateTime(record).format(TIME_FORMAT);
+            case 5:
+                return record.isClosed()
+                        ? LocalDateTime.ofInstant(Instant.ofEpochMilli(record.getExitTime()), ZoneId.systemDefault()).format(TIME_FORMAT)
+                        : "-";
+            case 6:
+                return record.isClosed() ? String.format("%.2f", record.getDurationHours()) + " hours" : "-";
+            case 7:
+                return record.isClosed() ? String.format("$%.2f", record.getFare()) : "-";
+            case 8:
+                return record.getRateVersion() > 0 ? "v" + record.getRateVersion() : "-";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Drops cached pages and re-reads the row count.
+     */
+    public void reload() {
+        pages.clear();
+        rowCount = store != null ? store.getRowCount() : 0;
+        fireTableDataChanged();
+    }
+
+    /**
+     * Shows only sessions of {@code licensePlate} (empty for any plate) entered in
+     * {@code [from, to)}, at most {@link #MAX_SEARCH_RESULTS} of them. Returns the
+     * total number of matches.
+     */
+    public int search(String licensePlate, long from, long to) throws IOException {
+        if (store == null) {
+            return 0;
+        }
+        long start = Instrumentation.start(Instrumentation.HISTORY_SEARCH);
+        pages.clear();
+        rowCount = store.getRowCount();
+        String key = PlateIndex.searchKey(licensePlate);
+        int[] rows;
+        int total;
+        if (!key.isEmpty()) {
+            // A plate has few visits, so the time range is checked row by row
+            int[] visits = store.findByPlate(key, Integer.MAX_VALUE);
+            rows = new int[visits.length];
+            total = 0;
+            for (int row : visits) {
+                long entryTime = store.readRow(row).getEntryTime();
+                if (entryTime >= from && entryTime < to) {
+                    rows[total++] = row;
+                }
+            }
+            rows = Arrays.copyOf(rows, Math.min(total, MAX_SEARCH_RESULTS));
+        } else {
+            rows = store.findByEntryTime(from, to, MAX_SEARCH_RESULTS);
+            total = store.countByEntryTime(from, to);
+        }
+        Arrays.sort(rows);
+        filterRows = rows;
+        filterSize = rows.length;
+        filterKey = key;
+        filterFrom = from;
+        filterTo = to;
+        Instrumentation.record(Instrumentation.HISTORY_SEARCH, start);
+        fireTableDataChanged();
+        return total;
+    }
+
+    public void clearSearch() {
+        filterRows = null;
+        filterKey = null;
+        reload();
+    }
+
+    public boolean isSearching() {
+        return filterRows != null;
+    }
+
+    @Override
+    public void rowAppended(int row) {
+        scheduleDrain();
+    }
+
+    @Override
+    public void rowUpdated(int row) {
+        synchronized (pending) {
+            pendingUpdates.set(row);
+        }
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        synchronized (pending) {
+            if (drainScheduled) {
+                return;
+            }
+            drainScheduled = true;
+        }
+        SwingUtilities.invokeLater(this::drain);
+    }
+
+    private void drain() {
+        BitSet updates;
+        synchronized (pending) {
+            updates = (BitSet) pendingUpdates.clone();
+            pendingUpdates.clear();
+            drainScheduled = false;
+        }
+        int oldCount = rowCount;
+        int newCount = store.getRowCount();
+        for (int row = updates.nextSetBit(0); row >= 0 && row < oldCount; row = updates.nextSetBit(row + 1)) {
+            pages.remove(row / PAGE_SIZE);
+            int viewRow = filterRows != null ? Arrays.binarySearch(filterRows, 0, filterSize, row) : row;
+            if (viewRow >= 0) {
+                fireTableRowsUpdated(viewRow, viewRow);
+            }
+        }
+        if (newCount > oldCount) {
+            // The last page may have been cached short
+            pages.remove(oldCount / PAGE_SIZE);
+            rowCount = newCount;
+            if (filterRows == null) {
+                fireTableRowsInserted(oldCount, newCount - 1);
+            } else {
+                appendMatches(oldCount, newCount);
+            }
+        }
+    }
+
+    private void appendMatches(int first, int end) {
+        int oldSize = filterSize;
+        try {
+            ParkingRecord[] added = store.readRows(first, end - first);
+            for (int i = 0; i < added.length && filterSize < MAX_SEARCH_RESULTS; i++) {
+                ParkingRecord record = added[i];
+                if ((filterKey.isEmpty() || filterKey.equals(PlateIndex.searchKey(record.getLicensePlate())))
+                        && record.getEntryTime() >= filterFrom && record.getEntryTime() < filterTo) {
+                    if (filterSize == filterRows.length) {
+                        filterRows = Arrays.copyOf(filterRows, Math.max(16, filterSize * 2));
+                    }
+                    filterRows[filterSize++] = first + i;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (filterSize > oldSize) {
+            fireTableRowsInserted(oldSize, filterSize - 1);
+        }
+    }
+
+    private ParkingRecord[] page(int pageNumber) {
+        ParkingRecord[] page = pages.get(pageNumber);
+        if (page == null) {
+            int first = pageNumber * PAGE_SIZE;
+            long start = Instrumentation.start(Instrumentation.HISTORY_PAGE);
+            try {
+                page = store.readRows(first, Math.min(PAGE_SIZE, rowCount - first));
+                Instrumentation.record(Instrumentation.HISTORY_PAGE, start);
+            } catch (IOException e) {
+                // Not cached, so the next repaint tries again
+                e.printStackTrace();
+                return new ParkingRecord[0];
+            }
+            pages.put(pageNumber, page);
+        }
+        return page;
+    }
+
+    private static LocalDateTime entryDateTime(ParkingRecord record) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(record.getEntryTime()), ZoneId.systemDefault());
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency distribution in power-of-two buckets of nanoseconds. Recording is two
+ * {@link LongAdder} increments, safe from any number of threads; percentiles
+ * are interpolated within a bucket, so they are estimates.
+ */
+public final class LatencyHistogram {
+    // Bucket b counts values in [2^(b-1), 2^b) ns; the last one also takes everything above ~4.6 minutes
+    private static final int BUCKETS = 40;
+
+    private final String name;
+    // Whether only one call in the sample rate is timed; rare, slow calls are timed every time
+    final boolean sampled;
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder totalNanos = new LongAdder();
+
+    public LatencyHistogram(String name, boolean sampled) {
+        this.name = name;
+        this.sampled = sampled;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void record(long nanos) {
+        int bucket = 64 - Long.numberOfLeadingZeros(Math.max(0, nanos));
+        counts[Math.min(bucket, BUCKETS - 1)].increment();
+        totalNanos.add(nanos);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : counts) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public double getMeanNanos() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) totalNanos.sum() / count;
+    }
+
+    /**
+     * Estimated latency below which {@code percentile} (0-100) of the recorded
+     * values fall, or 0 when nothing was recorded.
+     */
+    public double getPercentileNanos(double percentile) {
+        long[] snapshot = snapshot();
+        long count = 0;
+        for (long bucketCount : snapshot) {
+            count += bucketCount;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        double rank = Math.max(1, Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            if (snapshot[bucket] > 0 && seen + snapshot[bucket] >= rank) {
+                double low = bucket == 0 ? 0 : 1L << (bucket - 1);
+                double high = 1L << bucket;
+                return low + (high - low) * (rank - seen) / snapshot[bucket];
+            }
+            seen += snapshot[bucket];
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    /**
+     * Upper bound of the highest bucket in use.
+     */
+    public double getMaxNanos() {
+        for (int bucket = BUCKETS - 1; bucket >= 0; bucket--) {
+            if (counts[bucket].sum() > 0) {
+                return 1L << bucket;
+            }
+        }
+        return 0;
+    }
+
+    public void reset() {
+        for (LongAdder bucket : counts) {
+            bucket.reset();
+        }
+        totalNanos.reset();
+    }
+
+    private long[] snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+        }
+        return snapshot;
+    }
+}
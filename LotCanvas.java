@@ -0,0 +1,299 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.InputEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.util.function.IntConsumer;
+
+/**
+ * Single custom-painted view of the whole lot. Only the cells intersecting the
+ * clip are painted, a changed space repaints just its own cell, clicks are
+ * resolved by hit-testing and Ctrl+wheel zooms around the mouse pointer.
+ * Meant to live inside a JScrollPane.
+ */
+public class LotCanvas extends JComponent implements Scrollable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int CELL_WIDTH = 80;
+    private static final int CELL_HEIGHT = 60;
+    private static final int GAP = 10;
+    private static final double MIN_ZOOM = 0.1;
+    private static final double MAX_ZOOM = 3.0;
+    // Below this cell width numbers and icons are no longer legible, so only colors are drawn
+    private static final int DETAIL_THRESHOLD = 24;
+    // Icon widths by VehicleType ordinal: narrower for motor, slightly narrower for truck
+    private static final int[] ICON_WIDTHS = {40, 20, 30};
+    private static final int ICON_HEIGHT = 40;
+
+    private ParkingEngine engine;
+    private int rows;
+    private int columns;
+    // Number shown for the engine's space 1, when the lot is one level of a garage
+    private int firstSpaceNumber = 1;
+    // Shared icons for the current zoom and display scale, indexed by VehicleType ordinal
+    private final BufferedImage[] scaledIcons = new BufferedImage[VehicleType.values().length];
+    private double scaledIconZoom;
+    private double scaledIconScale;
+
+    private double zoom = 1.0;
+    private Color availableColor = Color.GREEN;
+    private Color occupiedColor = Color.RED;
+    private IntConsumer spaceClickHandler = spaceNumber -> { };
+
+    public LotCanvas(ParkingEngine engine, int rows, int columns) {
+        this.engine = engine;
+        this.rows = rows;
+        this.columns = columns;
+        setOpaque(true);
+        setFont(new Font("Arial", Font.BOLD, 14));
+        // Registering enables getToolTipText(MouseEvent) hit-testing
+        ToolTipManager.sharedInstance().registerComponent(this);
+
+        MouseAdapter mouseHandler = new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int spaceNumber = spaceAt(e.getPoint());
+                if (spaceNumber > 0 && SwingUtilities.isLeftMouseButton(e)) {
+                    spaceClickHandler.accept(spaceNumber);
+                }
+            }
+
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                if ((e.getModifiersEx() & InputEvent.CTRL_DOWN_MASK) != 0) {
+                    zoomAround(e.getPoint(), Math.pow(1.1, -e.getPreciseWheelRotation()));
+                } else if (getParent() != null) {
+                    // A wheel listener swallows scrolling, so hand plain wheel events to the scroll pane
+                    getParent().dispatchEvent(SwingUtilities.convertMouseEvent(LotCanvas.this, e, getParent()));
+                }
+            }
+        };
+        addMouseListener(mouseHandler);
+        addMouseWheelListener(mouseHandler);
+    }
+
+    /**
+     * Shows another lot (or level) in place of the current one. Space numbers
+     * passed to and from the canvas stay the engine's own; only the labels are
+     * shifted to start at {@code firstSpaceNumber}.
+     */
+    public void setLot(ParkingEngine engine, int rows, int columns, int firstSpaceNumber) {
+        this.engine = engine;
+        this.rows = rows;
+        this.columns = columns;
+        this.firstSpaceNumber = firstSpaceNumber;
+        revalidate();
+        repaint();
+    }
+
+    public void setSpaceClickHandler(IntConsumer spaceClickHandler) {
+        this.spaceClickHandler = spaceClickHandler;
+    }
+
+    public void setSpaceColors(Color availableColor, Color occupiedColor) {
+        this.availableColor = availableColor;
+        this.occupiedColor = occupiedColor;
+        repaint();
+    }
+
+    /**
+     * Repaints only the cell of {@code spaceNumber}. Must be called on the EDT.
+     */
+    public void spaceChanged(int spaceNumber) {
+        repaint(cellBounds(spaceNumber));
+    }
+
+    public double getZoom() {
+        return zoom;
+    }
+
+    public void setZoom(double zoom) {
+        this.zoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom));
+        revalidate();
+        repaint();
+    }
+
+    /**
+     * Returns the space under {@code point}, or 0 when the point falls in a gap.
+     */
+    public int spaceAt(Point point) {
+        int pitchX = cellWidth() + gap();
+        int pitchY = cellHeight() + gap();
+        int x = point.x - gap();
+        int y = point.y - gap();
+        if (x < 0 || y < 0) {
+            return 0;
+        }
+        int column = x / pitchX;
+        int row = y / pitchY;
+        if (column >= columns || row >= rows || x % pitchX >= cellWidth() || y % pitchY >= cellHeight()) {
+            return 0;
+        }
+        return row * columns + column + 1;
+    }
+
+    public Rectangle cellBounds(int spaceNumber) {
+        int index = spaceNumber - 1;
+        int column = index % columns;
+        int row = index / columns;
+        return new Rectangle(gap() + column * (cellWidth() + gap()), gap() + row * (cellHeight() + gap()),
+                cellWidth(), cellHeight());
+    }
+
+    @Override
+    public String getToolTipText(MouseEvent e) {
+        int spaceNumber = spaceAt(e.getPoint());
+        if (spaceNumber <= 0) {
+            return null;
+        }
+        VehicleType vehicleType = engine.getVehicleType(spaceNumber);
+        String label = "Space: " + (firstSpaceNumber + spaceNumber - 1) + " (" + engine.getSpaceClass(spaceNumber);
+        if (vehicleType == null) {
+            return label + ", available)";
+        }
+        return label + "), Type: " + vehicleType + ", Plate: " + engine.getLicensePlate(spaceNumber);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Graphics2D g2 = (Graphics2D) g.create();
+        try {
+            Rectangle clip = g2.getClipBounds();
+            if (clip == null) {
+                clip = new Rectangle(0, 0, getWidth(), getHeight());
+            }
+            g2.setColor(getBackground());
+            g2.fillRect(clip.x, clip.y, clip.width, clip.height);
+            g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+
+            int cellWidth = cellWidth();
+            int cellHeight = cellHeight();
+            int pitchX = cellWidth + gap();
+            int pitchY = cellHeight + gap();
+            int firstColumn = Math.max(0, (clip.x - gap()) / pitchX);
+            int lastColumn = Math.min(columns - 1, (clip.x + clip.width) / pitchX);
+            int firstRow = Math.max(0, (clip.y - gap()) / pitchY);
+            int lastRow = Math.min(rows - 1, (clip.y + clip.height) / pitchY);
+            boolean detailed = cellWidth >= DETAIL_THRESHOLD;
+            Font font = getFont().deriveFont((float) Math.max(8, 14 * zoom));
+            g2.setFont(font);
+            FontMetrics metrics = g2.getFontMetrics();
+
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    int spaceNumber = row * columns + column + 1;
+                    int x = gap() + column * pitchX;
+                    int y = gap() + row * pitchY;
+                    VehicleType vehicleType = engine.getVehicleType(spaceNumber);
+                    g2.setColor(vehicleType == null ? availableColor : occupiedColor);
+                    g2.fillRoundRect(x, y, cellWidth, cellHeight, 8, 8);
+                    if (!detailed) {
+                        continue;
+                    }
+                    g2.setColor(Color.DARK_GRAY);
+                    g2.drawRoundRect(x, y, cellWidth - 1, cellHeight - 1, 8, 8);
+                    if (vehicleType == null) {
+                        String label = String.valueOf(firstSpaceNumber + spaceNumber - 1);
+                        g2.setColor(Color.BLACK);
+                        g2.drawString(label, x + (cellWidth - metrics.stringWidth(label)) / 2,
+                                y + (cellHeight - metrics.getHeight()) / 2 + metrics.getAscent());
+                    } else {
+                        drawVehicle(g2, vehicleType, x, y, cellWidth, cellHeight);
+                    }
+                }
+            }
+        } finally {
+            g2.dispose();
+        }
+    }
+
+    private void drawVehicle(Graphics2D g2, VehicleType vehicleType, int x, int y, int cellWidth, int cellHeight) {
+        double scale = g2.getDeviceConfiguration().getDefaultTransform().getScaleX();
+        if (scaledIconZoom != zoom || scaledIconScale != scale) {
+            for (VehicleType type : VehicleType.values()) {
+                scaledIcons[type.ordinal()] = VehicleIcons.get(type, iconSize(ICON_WIDTHS[type.ordinal()]), iconSize(ICON_HEIGHT), scale);
+            }
+            scaledIconZoom = zoom;
+            scaledIconScale = scale;
+        }
+        BufferedImage icon = scaledIcons[vehicleType.ordinal()];
+        if (icon == null) {
+            return;
+        }
+        // The icon is in device pixels; drawing it at its logical size keeps it sharp on HiDPI screens
+        int iconWidth = iconSize(ICON_WIDTHS[vehicleType.ordinal()]);
+        int iconHeight = iconSize(ICON_HEIGHT);
+        g2.drawImage(icon, x + (cellWidth - iconWidth) / 2, y + (cellHeight - iconHeight) / 2, iconWidth, iconHeight, null);
+    }
+
+    private int iconSize(int size) {
+        return Math.max(1, (int) Math.round(size * zoom));
+    }
+
+    private void zoomAround(Point anchor, double factor) {
+        double oldZoom = zoom;
+        setZoom(zoom * factor);
+        if (zoom == oldZoom || !(getParent() instanceof JViewport)) {
+            return;
+        }
+        // Keep the lot point under the mouse fixed while the canvas grows or shrinks
+        JViewport viewport = (JViewport) getParent();
+        Point view = viewport.getViewPosition();
+        double scale = zoom / oldZoom;
+        int offsetX = anchor.x - view.x;
+        int offsetY = anchor.y - view.y;
+        Point target = new Point((int) Math.round(anchor.x * scale) - offsetX, (int) Math.round(anchor.y * scale) - offsetY);
+        viewport.validate();
+        Dimension size = getPreferredSize();
+        Dimension extent = viewport.getExtentSize();
+        target.x = Math.max(0, Math.min(target.x, size.width - extent.width));
+        target.y = Math.max(0, Math.min(target.y, size.height - extent.height));
+        viewport.setViewPosition(target);
+    }
+
+    private int cellWidth() {
+        return Math.max(2, (int) Math.round(CELL_WIDTH * zoom));
+    }
+
+    private int cellHeight() {
+        return Math.max(2, (int) Math.round(CELL_HEIGHT * zoom));
+    }
+
+    private int gap() {
+        return Math.max(1, (int) Math.round(GAP * zoom));
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        return new Dimension(gap() + columns * (cellWidth() + gap()), gap() + rows * (cellHeight() + gap()));
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return getPreferredSize();
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.HORIZONTAL ? cellWidth() + gap() : cellHeight() + gap();
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.HORIZONTAL ? visibleRect.width : visibleRect.height;
+    }
+
+    // Stretch to fill the viewport when the lot is smaller than it
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return getParent() instanceof JViewport && getParent().getWidth() > getPreferredSize().width;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        return getParent() instanceof JViewport && getParent().getHeight() > getPreferredSize().height;
+    }
+}
@@ -0,0 +1,114 @@
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * One level of one site: a grid of spaces with its own engine (allocator,
+ * locks and occupancy counters) and its own lot state file. Its spaces take
+ * the global space numbers {@code firstSpace .. firstSpace+size-1}, which is
+ * what the journal, history and revenue record; the engine and the lot state
+ * file number them from 1 within the level.
+ */
+public class LotShard {
+    private final String site;
+    private final String level;
+    private final int rows;
+    private final int columns;
+    private final int firstSpace;
+    private final ParkingEngine engine;
+    // Null until opened, or when the file could not be opened
+    private volatile LotStateFile lotState;
+
+    /**
+     * {@code rowClasses} gives one {@link SpaceClass} letter per row, or is
+     * null for a level of truck bays.
+     */
+    public LotShard(String site, String level, int rows, int columns, String rowClasses, int firstSpace, int zoneCount) {
+        this.site = site;
+        this.level = level;
+        this.rows = rows;
+        this.columns = columns;
+        this.firstSpace = firstSpace;
+        this.engine = new ParkingEngine(SpaceClass.forRows(rowClasses, rows, columns), zoneCount);
+    }
+
+    public String getSite() {
+        return site;
+    }
+
+    public String getLevel() {
+        return level;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getFirstSpace() {
+        return firstSpace;
+    }
+
+    public int getSize() {
+        return engine.getTotalSpaces();
+    }
+
+    public ParkingEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Adds a gate at grid position {@code row}, {@code column} (1-based; 0 or
+     * one past the last row or column is just outside the grid). Distance to
+     * a bay is counted in cells along rows and columns, as a driver follows
+     * the aisles.
+     */
+    public int addGate(String name, int row, int column) {
+        if (row < 0 || row > rows + 1 || column < 0 || column > columns + 1) {
+            throw new IllegalArgumentException("Gate " + name + " is off the " + rows + " x " + columns + " grid");
+        }
+        int[] distances = new int[getSize()];
+        for (int i = 0; i < distances.length; i++) {
+            distances[i] = Math.abs(i / columns + 1 - row) + Math.abs(i % columns + 1 - column);
+        }
+        return engine.addGate(name, distances);
+    }
+
+    public LotStateFile getLotState() {
+        return lotState;
+    }
+
+    public boolean contains(int spaceNumber) {
+        return spaceNumber >= firstSpace && spaceNumber < firstSpace + getSize();
+    }
+
+    public int toGlobal(int localSpace) {
+        return firstSpace + localSpace - 1;
+    }
+
+    public int toLocal(int spaceNumber) {
+        return spaceNumber - firstSpace + 1;
+    }
+
+    /**
+     * Opens (or creates) this level's lot state file; {@code legacyCsv}, if
+     * given, is converted on first use.
+     */
+    public void openLotState(Path file, Path legacyCsv) throws IOException {
+        lotState = LotStateFile.open(file, legacyCsv, getSize());
+    }
+
+    public void closeLotState() throws IOException {
+        LotStateFile state = lotState;
+        if (state != null) {
+            state.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return site + " / " + level;
+    }
+}
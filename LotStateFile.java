@@ -0,0 +1,290 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Fixed-width binary lot state, memory-mapped so that parking or vacating a
+ * space rewrites exactly one 64-byte record in place.
+ *
+ * <pre>
+ * header (64 bytes): magic "PLOT", version, slot count, record size, CRC32 of the previous 16 bytes
+ * record (64 bytes): status, type code, plate length, pad, CRC32 of the rest of the record,
+ *                    entry time (long), plate (UTF-8, up to 48 bytes)
+ * </pre>
+ *
+ * The file is only ever created or resized through a temp file and an atomic
+ * rename, so the header cannot be torn. A record whose CRC does not match
+ * (power lost mid-write) is reported and treated as an empty space.
+ */
+public class LotStateFile implements Closeable {
+    public static final int MAX_PLATE_BYTES = 48;
+
+    private static final int MAGIC = 0x504C4F54; // "PLOT"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 64;
+    private static final int STATUS_OFFSET = 0;
+    private static final int TYPE_OFFSET = 1;
+    private static final int PLATE_LENGTH_OFFSET = 2;
+    private static final int CRC_OFFSET = 4;
+    private static final int ENTRY_TIME_OFFSET = 8;
+    private static final int PLATE_OFFSET = 16;
+    private static final byte OCCUPIED = 1;
+
+    public interface SlotVisitor {
+        void visit(int spaceNumber, VehicleType vehicleType, String licensePlate, long entryTime);
+    }
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int slotCount;
+    private final CRC32 crc = new CRC32();
+    private final byte[] record = new byte[RECORD_SIZE];
+
+    private LotStateFile(FileChannel channel, int slotCount) throws IOException {
+        this.channel = channel;
+        this.slotCount = slotCount;
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) RECORD_SIZE * slotCount);
+        this.buffer.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Opens the state file, creating it (from {@code legacyCsv} when that exists)
+     * or resizing it to {@code slotCount} as needed.
+     */
+    public static LotStateFile open(Path file, Path legacyCsv, int slotCount) throws IOException {
+        if (!Files.exists(file)) {
+            if (legacyCsv != null && Files.exists(legacyCsv)) {
+                convertFromCsv(legacyCsv, file, slotCount);
+            } else {
+                create(file, slotCount, null);
+            }
+        }
+        int existingSlots = readHeader(file);
+        if (existingSlots != slotCount) {
+            create(file, slotCount, file);
+        }
+        return new LotStateFile(FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE), slotCount);
+    }
+
+    /**
+     * Converts the old {@code space,status,type,plate,entryTime} lot.txt layout.
+     */
+    public static void convertFromCsv(Path csv, Path file, int slotCount) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        writeEmpty(tmp, slotCount);
+        try (LotStateFile state = new LotStateFile(FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE), slotCount);
+             BufferedReader reader = Files.newBufferedReader(csv, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(",");
+                if (parts.length == 5 && parts[1].equals("occupied")) {
+                    int spaceNumber = Integer.parseInt(parts[0]);
+                    VehicleType vehicleType = VehicleType.fromName(parts[2]);
+                    long entryTime = parts[4].isEmpty() ? 0 : Long.parseLong(parts[4]);
+                    if (spaceNumber <= slotCount && vehicleType != null && !parts[3].isEmpty()) {
+                        state.write(spaceNumber, vehicleType, parts[3], entryTime);
+                    }
+                }
+            }
+            state.force();
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    public synchronized void write(int spaceNumber, VehicleType vehicleType, String licensePlate, long entryTime) {
+        byte[] plate = licensePlate.getBytes(StandardCharsets.UTF_8);
+        if (plate.length > MAX_PLATE_BYTES) {
+            throw new IllegalArgumentException("License plate too long for lot file: " + licensePlate);
+        }
+        ByteBuffer view = ByteBuffer.wrap(record);
+        Arrays.fill(record, (byte) 0);
+        view.put(STATUS_OFFSET, OCCUPIED);
+        view.put(TYPE_OFFSET, vehicleType.getCode());
+        view.put(PLATE_LENGTH_OFFSET, (byte) plate.length);
+        view.putLong(ENTRY_TIME_OFFSET, entryTime);
+        System.arraycopy(plate, 0, record, PLATE_OFFSET, plate.length);
+        view.putInt(CRC_OFFSET, recordCrc());
+        putRecord(spaceNumber);
+    }
+
+    public synchronized void clear(int spaceNumber) {
+        Arrays.fill(record, (byte) 0);
+        ByteBuffer.wrap(record).putInt(CRC_OFFSET, recordCrc());
+        putRecord(spaceNumber);
+    }
+
+    /**
+     * Scans the whole mapping once and reports every occupied space.
+     */
+    public synchronized void forEachOccupied(SlotVisitor visitor) {
+        ByteBuffer view = ByteBuffer.wrap(record);
+        for (int spaceNumber = 1; spaceNumber <= slotCount; spaceNumber++) {
+            int position = HEADER_SIZE + (spaceNumber - 1) * RECORD_SIZE;
+            if (buffer.get(position + STATUS_OFFSET) != OCCUPIED) {
+                continue;
+            }
+            buffer.position(position);
+            buffer.get(record);
+            if (view.getInt(CRC_OFFSET) != recordCrc()) {
+                System.err.println("Ignoring torn lot record for space " + spaceNumber);
+                continue;
+            }
+            VehicleType vehicleType = VehicleType.fromCode(record[TYPE_OFFSET]);
+            int plateLength = record[PLATE_LENGTH_OFFSET];
+            if (vehicleType == null || plateLength <= 0 || plateLength > MAX_PLATE_BYTES) {
+                continue;
+            }
+            String licensePlate = new String(record, PLATE_OFFSET, plateLength, StandardCharsets.UTF_8);
+            visitor.visit(spaceNumber, vehicleType, licensePlate, view.getLong(ENTRY_TIME_OFFSET));
+        }
+    }
+
+    /**
+     * Flushes dirty pages of the mapping to disk.
+     */
+    public synchronized void force() {
+        buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    private void putRecord(int spaceNumber) {
+        if (spaceNumber <= 0 || spaceNumber > slotCount) {
+            throw new IllegalArgumentException("No such space: " + spaceNumber);
+        }
+        buffer.position(HEADER_SIZE + (spaceNumber - 1) * RECORD_SIZE);
+        buffer.put(record);
+    }
+
+    // CRC over the record with the CRC field itself zeroed
+    private int recordCrc() {
+        ByteBuffer view = ByteBuffer.wrap(record);
+        int stored = view.getInt(CRC_OFFSET);
+        view.putInt(CRC_OFFSET, 0);
+        crc.reset();
+        crc.update(record, 0, RECORD_SIZE);
+        view.putInt(CRC_OFFSET, stored);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Returns the slot count recorded in the header, failing on a foreign or
+     * unsupported file.
+     */
+    private static int readHeader(Path file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (header.hasRemaining() && in.read(header) > 0) {
+                // keep reading
+            }
+        }
+        header.flip();
+        if (header.remaining() < HEADER_SIZE || header.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a lot state file");
+        }
+        if (header.getInt(4) != VERSION || header.getInt(12) != RECORD_SIZE) {
+            throw new IOException(file + " has unsupported version " + header.getInt(4));
+        }
+        if (header.getInt(16) != headerCrc(header)) {
+            throw new IOException(file + " has a corrupt header");
+        }
+        int slots = header.getInt(8);
+        if (Files.size(file) < HEADER_SIZE + (long) RECORD_SIZE * slots) {
+            throw new IOException(file + " is truncated");
+        }
+        return slots;
+    }
+
+    /**
+     * Atomically (re)creates {@code file} with {@code slotCount} slots, copying
+     * the occupied records of {@code source} when given.
+     */
+    private static void create(Path file, int slotCount, Path source) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        writeEmpty(tmp, slotCount);
+        if (source != null) {
+            int sourceSlots = readHeader(source);
+            try (LotStateFile from = new LotStateFile(FileChannel.open(source, StandardOpenOption.READ, StandardOpenOption.WRITE), sourceSlots);
+                 LotStateFile to = new LotStateFile(FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE), slotCount)) {
+                from.forEachOccupied((spaceNumber, vehicleType, licensePlate, entryTime) -> {
+                    if (spaceNumber <= slotCount) {
+                        to.write(spaceNumber, vehicleType, licensePlate, entryTime);
+                    } else {
+                        System.err.println("Lot shrank; dropping " + licensePlate + " from space " + spaceNumber);
+                    }
+                });
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void writeEmpty(Path file, int slotCount) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putInt(8, slotCount);
+        header.putInt(12, RECORD_SIZE);
+        header.putInt(16, headerCrc(header));
+
+        byte[] emptyRecord = new byte[RECORD_SIZE];
+        CRC32 crc = new CRC32();
+        crc.update(emptyRecord, 0, RECORD_SIZE);
+        ByteBuffer.wrap(emptyRecord).putInt(CRC_OFFSET, (int) crc.getValue());
+
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            out.write(header);
+            ByteBuffer chunk = ByteBuffer.allocate(RECORD_SIZE * 1024);
+            int remaining = slotCount;
+            while (remaining > 0) {
+                int records = Math.min(remaining, 1024);
+                chunk.clear();
+                for (int i = 0; i < records; i++) {
+                    chunk.put(emptyRecord);
+                }
+                chunk.flip();
+                while (chunk.hasRemaining()) {
+                    out.write(chunk);
+                }
+                remaining -= records;
+            }
+            out.force(true);
+        }
+    }
+
+    private static int headerCrc(ByteBuffer header) {
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, 16);
+        return (int) crc.getValue();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("Usage: java LotStateFile <lot.txt> <lot.dat> <spaces>");
+            System.exit(1);
+        }
+        convertFromCsv(Paths.get(args[0]), Paths.get(args[1]), Integer.parseInt(args[2]));
+        System.out.println("Converted " + args[0] + " to " + args[1]);
+    }
+}
@@ -0,0 +1,225 @@
+import javax.swing.Timer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live lot metrics, updated by engine events on the gate threads and published
+ * to the UI at most once per frame. However many events arrive, each frame
+ * reads the counters once and hands every listener one {@link Snapshot} on the
+ * EDT, so a burst of events costs a few striped increments each plus one
+ * repaint per frame. Events only add to {@link LongAdder}s, so gates in
+ * different zones never contend here; throughput over the last minute is
+ * worked out from totals sampled when the metrics are read.
+ */
+public class MetricsModel implements ParkingEngine.Listener {
+    // Throughput is counted over the last minute in one-second buckets
+    private static final int WINDOW_SECONDS = 60;
+    // Republished at least this often so throughput decays when the lot is quiet
+    private static final long IDLE_PUBLISH_MILLIS = 1000;
+
+    /**
+     * The metrics at one instant.
+     */
+    public static final class Snapshot {
+        private final int totalSpaces;
+        private final int occupiedSpaces;
+        private final double averageStayHours;
+        private final double todayRevenue;
+        private final long sessions;
+        private final long[] typeSessions;
+        private final double totalFare;
+        private final int entriesPerMinute;
+        private final int exitsPerMinute;
+
+        private Snapshot(int totalSpaces, int occupiedSpaces, double averageStayHours, double todayRevenue,
+                         long sessions, long[] typeSessions, double totalFare, int entriesPerMinute, int exitsPerMinute) {
+            this.totalSpaces = totalSpaces;
+            this.occupiedSpaces = occupiedSpaces;
+            this.averageStayHours = averageStayHours;
+            this.todayRevenue = todayRevenue;
+            this.sessions = sessions;
+            this.typeSessions = typeSessions;
+            this.totalFare = totalFare;
+            this.entriesPerMinute = entriesPerMinute;
+            this.exitsPerMinute = exitsPerMinute;
+        }
+
+        public int getTotalSpaces() {
+            return totalSpaces;
+        }
+
+        public int getAvailableSpaces() {
+            return totalSpaces - occupiedSpaces;
+        }
+
+        public int getOccupiedSpaces() {
+            return occupiedSpaces;
+        }
+
+        public double getAverageStayHours() {
+            return averageStayHours;
+        }
+
+        public double getTodayRevenue() {
+            return todayRevenue;
+        }
+
+        public long getSessionCount() {
+            return sessions;
+        }
+
+        public long getSessionCount(VehicleType vehicleType) {
+            return typeSessions[vehicleType.ordinal()];
+        }
+
+        public double getTotalFare() {
+            return totalFare;
+        }
+
+        public int getEntriesPerMinute() {
+            return entriesPerMinute;
+        }
+
+        public int getExitsPerMinute() {
+            return exitsPerMinute;
+        }
+    }
+
+    public interface Listener {
+        void metricsChanged(Snapshot snapshot);
+    }
+
+    private final int totalSpaces;
+    private final ParkingStats stats;
+    // Null when revenue.txt could not be opened
+    private final RevenueLedger revenueLedger;
+    private final LongAdder occupied = new LongAdder();
+    private final LongAdder entries = new LongAdder();
+    private final LongAdder exits = new LongAdder();
+    private final AtomicBoolean changed = new AtomicBoolean(true);
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    // Entry and exit totals as first read in each second of the last minute, indexed by epoch second modulo the window
+    private final long[] sampleSeconds = new long[WINDOW_SECONDS];
+    private final long[] sampleEntries = new long[WINDOW_SECONDS];
+    private final long[] sampleExits = new long[WINDOW_SECONDS];
+
+    private Timer timer;
+    private long lastPublished;
+
+    public MetricsModel(int totalSpaces, ParkingStats stats, RevenueLedger revenueLedger) {
+        this.totalSpaces = totalSpaces;
+        this.stats = stats;
+        this.revenueLedger = revenueLedger;
+        long now = System.currentTimeMillis() / 1000;
+        sampleSeconds[(int) (now % WINDOW_SECONDS)] = now;
+    }
+
+    /**
+     * Sets the occupancy restored from persisted state, which the engine does
+     * not announce as events.
+     */
+    public void setOccupiedSpaces(int occupiedSpaces) {
+        occupied.add(occupiedSpaces - occupied.sum());
+        changed.set(true);
+    }
+
+    @Override
+    public void vehicleParked(int spaceNumber, String licensePlate, VehicleType vehicleType, long entryTime) {
+        occupied.increment();
+        entries.increment();
+        markChanged();
+    }
+
+    @Override
+    public void vehicleRemoved(ParkingRecord record) {
+        occupied.decrement();
+        exits.increment();
+        markChanged();
+    }
+
+    /**
+     * Marks the metrics as changed by something other than an engine event,
+     * such as a fare reaching the revenue ledger.
+     */
+    public void markChanged() {
+        // Read first, so a steady stream of events does not keep writing the shared flag
+        if (!changed.get()) {
+            changed.set(true);
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts publishing changes to the listeners, at most
+     * {@code framesPerSecond} times a second. Must be called on the EDT.
+     */
+    public void start(int framesPerSecond) {
+        if (timer != null) {
+            return;
+        }
+        timer = new Timer(1000 / Math.max(1, Math.min(framesPerSecond, 60)), e -> publishIfChanged());
+        timer.setCoalesce(true);
+        timer.start();
+    }
+
+    public void stop() {
+        if (timer != null) {
+            timer.stop();
+            timer = null;
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] typeSessions = new long[VehicleType.values().length];
+        for (VehicleType type : VehicleType.values()) {
+            typeSessions[type.ordinal()] = stats.getSessionCount(type);
+        }
+        long entriesNow = entries.sum();
+        long exitsNow = exits.sum();
+        long entriesBefore;
+        long exitsBefore;
+        long now = System.currentTimeMillis() / 1000;
+        synchronized (sampleSeconds) {
+            int slot = (int) (now % WINDOW_SECONDS);
+            if (sampleSeconds[slot] != now) {
+                sampleSeconds[slot] = now;
+                sampleEntries[slot] = entriesNow;
+                sampleExits[slot] = exitsNow;
+            }
+            // Counted from the oldest sample still inside the window
+            int oldest = slot;
+            for (int i = 0; i < WINDOW_SECONDS; i++) {
+                if (now - sampleSeconds[i] < WINDOW_SECONDS && sampleSeconds[i] < sampleSeconds[oldest]) {
+                    oldest = i;
+                }
+            }
+            entriesBefore = sampleEntries[oldest];
+            exitsBefore = sampleExits[oldest];
+        }
+        return new Snapshot(totalSpaces, (int) occupied.sum(), stats.getAverageDurationHours(),
+                revenueLedger != null ? revenueLedger.getTodayRevenue() : 0, stats.getSessionCount(), typeSessions, stats.getTotalFare(),
+                (int) (entriesNow - entriesBefore), (int) (exitsNow - exitsBefore));
+    }
+
+    private void publishIfChanged() {
+        long now = System.currentTimeMillis();
+        if (!changed.getAndSet(false) && now - lastPublished < IDLE_PUBLISH_MILLIS) {
+            return;
+        }
+        lastPublished = now;
+        Snapshot snapshot = snapshot();
+        for (Listener listener : listeners) {
+            listener.metricsChanged(snapshot);
+        }
+    }
+}
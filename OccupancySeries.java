@@ -0,0 +1,502 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Occupancy, arrivals and departures over time, in three fixed-size rings: one
+ * slot per minute for the last day, per hour for the last 60 days and per day
+ * for the last ten years. Every engine event updates its minute, hour and day
+ * slot, so each coarser ring is an exact rollup of the finer one and keeps its
+ * history after the finer ring has wrapped. Memory stays the same however long
+ * the system runs. Periods are counted on the local clock.
+ *
+ * Engine events arrive with a zone lock held, so they are only queued there,
+ * without a lock; they are applied in queue order by whichever gate next gets
+ * the series lock without waiting (about one event in {@value #APPLY_EVERY}),
+ * and by every read and save before it looks at the rings.
+ *
+ * The rings are saved to occupancy.dat periodically and on close. The file has
+ * a 64-byte header (magic "OCCS", version, payload length, CRC32 of the
+ * payload) followed by each ring's slots in period order, delta-encoded as
+ * varints: the period gap, arrivals, departures, the opening occupancy less
+ * the previous close (zigzag, almost always 0), the close less the opening
+ * (zigzag) and the peak above the higher of the two.
+ */
+public class OccupancySeries implements ParkingEngine.Listener {
+    private static final int MAGIC = 0x4F434353; // "OCCS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    // A gate tries to apply the queued events on about one event in this many (a power of two)
+    private static final int APPLY_EVERY = 64;
+
+    public enum Resolution {
+        MINUTE(60, 24 * 60),
+        HOUR(60 * 60, 60 * 24),
+        DAY(24 * 60 * 60, 10 * 366);
+
+        private final int seconds;
+        private final int slots;
+
+        Resolution(int seconds, int slots) {
+            this.seconds = seconds;
+            this.slots = slots;
+        }
+
+        public int getSeconds() {
+            return seconds;
+        }
+
+        public int getSlots() {
+            return slots;
+        }
+    }
+
+    /**
+     * Consecutive periods of one resolution, oldest first. Periods without
+     * events carry the previous occupancy.
+     */
+    public static final class Window {
+        private final Resolution resolution;
+        private final long firstPeriod;
+        private final int[] occupancy;
+        private final int[] peak;
+        private final int[] arrivals;
+        private final int[] departures;
+
+        private Window(Resolution resolution, long firstPeriod, int count) {
+            this.resolution = resolution;
+            this.firstPeriod = firstPeriod;
+            this.occupancy = new int[count];
+            this.peak = new int[count];
+            this.arrivals = new int[count];
+            this.departures = new int[count];
+        }
+
+        public Resolution getResolution() {
+            return resolution;
+        }
+
+        /**
+         * The first period, in local minutes, hours or days since the epoch.
+         */
+        public long getFirstPeriod() {
+            return firstPeriod;
+        }
+
+        public int size() {
+            return occupancy.length;
+        }
+
+        // Occupancy at the end of period i
+        public int getOccupancy(int i) {
+            return occupancy[i];
+        }
+
+        public int getPeak(int i) {
+            return peak[i];
+        }
+
+        public int getArrivals(int i) {
+            return arrivals[i];
+        }
+
+        public int getDepartures(int i) {
+            return departures[i];
+        }
+    }
+
+    // Slot i of a ring holds the period congruent to i modulo its size; a stale period means the slot is empty
+    private static final class Ring {
+        final long[] periods;
+        final int[] arrivals;
+        final int[] departures;
+        final int[] open;
+        final int[] close;
+        final int[] peak;
+
+        Ring(int slots) {
+            periods = new long[slots];
+            Arrays.fill(periods, Long.MIN_VALUE);
+            arrivals = new int[slots];
+            departures = new int[slots];
+            open = new int[slots];
+            close = new int[slots];
+            peak = new int[slots];
+        }
+
+        void record(long period, int before, int after, boolean arrival) {
+            int slot = (int) Math.floorMod(period, (long) periods.length);
+            if (periods[slot] != period) {
+                if (periods[slot] > period) {
+                    // Older than the ring reaches
+                    return;
+                }
+                periods[slot] = period;
+                arrivals[slot] = 0;
+                departures[slot] = 0;
+                open[slot] = before;
+                peak[slot] = before;
+            }
+            if (arrival) {
+                arrivals[slot]++;
+            } else {
+                departures[slot]++;
+            }
+            close[slot] = after;
+            peak[slot] = Math.max(peak[slot], after);
+        }
+
+        // Slot holding period, or -1 when it holds nothing for it
+        int slotOf(long period) {
+            int slot = (int) Math.floorMod(period, (long) periods.length);
+            return periods[slot] == period ? slot : -1;
+        }
+    }
+
+    // One queued engine event
+    private static final class Event {
+        final long millis;
+        final boolean arrival;
+
+        Event(long millis, boolean arrival) {
+            this.millis = millis;
+            this.arrival = arrival;
+        }
+    }
+
+    private final ZoneOffsets offsets;
+    private final ConcurrentLinkedQueue<Event> pending = new ConcurrentLinkedQueue<>();
+    // Guards the rings, the occupancy and the file
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Ring[] rings = new Ring[Resolution.values().length];
+    private int occupied;
+    private Path file;
+    private ScheduledExecutorService scheduler;
+
+    public OccupancySeries(ZoneId zone) {
+        this.offsets = ZoneOffsets.of(zone);
+        for (Resolution resolution : Resolution.values()) {
+            rings[resolution.ordinal()] = new Ring(resolution.getSlots());
+        }
+    }
+
+    /**
+     * Loads {@code file} if it exists and saves to it every
+     * {@code checkpointSeconds} (0 disables it) and on {@link #close}.
+     */
+    public void open(Path file, long checkpointSeconds) throws IOException {
+        if (Files.exists(file)) {
+            load(file);
+        }
+        lock.lock();
+        try {
+            this.file = file;
+        } finally {
+            lock.unlock();
+        }
+        if (checkpointSeconds > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "occupancy-checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    save();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, checkpointSeconds, checkpointSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Sets the occupancy restored from persisted state, which the engine does
+     * not announce as events.
+     */
+    public void setOccupiedSpaces(int occupiedSpaces) {
+        lock.lock();
+        try {
+            applyPending();
+            occupied = occupiedSpaces;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void vehicleParked(int spaceNumber, String licensePlate, VehicleType vehicleType, long entryTime) {
+        queue(new Event(entryTime, true));
+    }
+
+    @Override
+    public void vehicleRemoved(ParkingRecord record) {
+        queue(new Event(record.getExitTime(), false));
+    }
+
+    /**
+     * The last {@code count} periods of {@code resolution}, up to and including
+     * the current one. At most the ring's size is returned.
+     */
+    public Window window(Resolution resolution, int count) {
+        lock.lock();
+        try {
+            applyPending();
+            return windowOf(rings[resolution.ordinal()], resolution, count);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held
+    private Window windowOf(Ring ring, Resolution resolution, int count) {
+        int size = Math.max(1, Math.min(count, resolution.getSlots()));
+        long last = Math.floorDiv(offsets.localSeconds(System.currentTimeMillis()), (long) resolution.getSeconds());
+        long first = last - size + 1;
+        Window window = new Window(resolution, first, size);
+
+        // Start from the latest close before the window; without one, from where the first period in it opened
+        int carry = -1;
+        long carryPeriod = Long.MIN_VALUE;
+        for (int slot = 0; slot < ring.periods.length; slot++) {
+            if (ring.periods[slot] < first && ring.periods[slot] > carryPeriod) {
+                carryPeriod = ring.periods[slot];
+                carry = ring.close[slot];
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            int slot = ring.slotOf(first + i);
+            if (slot >= 0) {
+                if (carry < 0) {
+                    Arrays.fill(window.occupancy, 0, i, ring.open[slot]);
+                    Arrays.fill(window.peak, 0, i, ring.open[slot]);
+                }
+                window.occupancy[i] = ring.close[slot];
+                window.peak[i] = ring.peak[slot];
+                window.arrivals[i] = ring.arrivals[slot];
+                window.departures[i] = ring.departures[slot];
+                carry = ring.close[slot];
+            } else {
+                window.occupancy[i] = Math.max(0, carry);
+                window.peak[i] = Math.max(0, carry);
+            }
+        }
+        if (carry < 0) {
+            // Nothing recorded at all yet
+            Arrays.fill(window.occupancy, occupied);
+            Arrays.fill(window.peak, occupied);
+        }
+        return window;
+    }
+
+    /**
+     * Writes the rings to the file given to {@link #open}.
+     */
+    public void save() throws IOException {
+        Path target;
+        byte[] payload;
+        lock.lock();
+        try {
+            if (file == null) {
+                return;
+            }
+            applyPending();
+            target = file;
+            payload = encode();
+        } finally {
+            lock.unlock();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putInt(8, payload.length);
+        header.putInt(12, (int) crc.getValue());
+        byte[] bytes = new byte[HEADER_SIZE + payload.length];
+        header.get(bytes, 0, HEADER_SIZE);
+        System.arraycopy(payload, 0, bytes, HEADER_SIZE, payload.length);
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.write(tmp, bytes);
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public void close() throws IOException {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        save();
+    }
+
+    private void queue(Event event) {
+        pending.add(event);
+        if ((ThreadLocalRandom.current().nextInt() & (APPLY_EVERY - 1)) == 0 && lock.tryLock()) {
+            try {
+                applyPending();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Called with the lock held
+    private void applyPending() {
+        Event event;
+        while ((event = pending.poll()) != null) {
+            if (event.arrival) {
+                occupied++;
+                record(event.millis, occupied - 1, true);
+            } else {
+                occupied--;
+                record(event.millis, occupied + 1, false);
+            }
+        }
+    }
+
+    private void record(long millis, int before, boolean arrival) {
+        long localSeconds = offsets.localSeconds(millis);
+        for (Resolution resolution : Resolution.values()) {
+            rings[resolution.ordinal()].record(Math.floorDiv(localSeconds, (long) resolution.getSeconds()),
+                    before, occupied, arrival);
+        }
+    }
+
+    private byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        for (Ring ring : rings) {
+            int[] order = sortedSlots(ring);
+            writeVarLong(out, order.length);
+            long previousPeriod = 0;
+            int previousClose = 0;
+            for (int i = 0; i < order.length; i++) {
+                int slot = order[i];
+                long period = ring.periods[slot];
+                writeVarLong(out, i == 0 ? zigzag(period) : period - previousPeriod);
+                writeVarLong(out, ring.arrivals[slot]);
+                writeVarLong(out, ring.departures[slot]);
+                writeVarLong(out, zigzag(ring.open[slot] - previousClose));
+                writeVarLong(out, zigzag(ring.close[slot] - ring.open[slot]));
+                writeVarLong(out, ring.peak[slot] - Math.max(ring.open[slot], ring.close[slot]));
+                previousPeriod = period;
+                previousClose = ring.close[slot];
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private void load(Path source) throws IOException {
+        byte[] bytes = Files.readAllBytes(source);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException(source + " is not an occupancy file");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported occupancy file version " + buffer.getInt(4) + " in " + source);
+        }
+        int length = buffer.getInt(8);
+        CRC32 crc = new CRC32();
+        if (length < 0 || length > bytes.length - HEADER_SIZE) {
+            throw new IOException(source + " is truncated");
+        }
+        crc.update(bytes, HEADER_SIZE, length);
+        if ((int) crc.getValue() != buffer.getInt(12)) {
+            throw new IOException(source + " is corrupt (checksum mismatch)");
+        }
+        buffer.position(HEADER_SIZE);
+        buffer.limit(HEADER_SIZE + length);
+        Ring[] loaded = new Ring[rings.length];
+        try {
+            for (int r = 0; r < rings.length; r++) {
+                Ring ring = new Ring(rings[r].periods.length);
+                int count = (int) readVarLong(buffer);
+                long period = 0;
+                int close = 0;
+                for (int i = 0; i < count; i++) {
+                    long gap = readVarLong(buffer);
+                    period = i == 0 ? unzigzag(gap) : period + gap;
+                    int slot = (int) Math.floorMod(period, (long) ring.periods.length);
+                    ring.periods[slot] = period;
+                    ring.arrivals[slot] = (int) readVarLong(buffer);
+                    ring.departures[slot] = (int) readVarLong(buffer);
+                    int open = close + (int) unzigzag(readVarLong(buffer));
+                    close = open + (int) unzigzag(readVarLong(buffer));
+                    ring.open[slot] = open;
+                    ring.close[slot] = close;
+                    ring.peak[slot] = Math.max(open, close) + (int) readVarLong(buffer);
+                }
+                loaded[r] = ring;
+            }
+        } catch (RuntimeException e) {
+            throw new IOException(source + " is corrupt", e);
+        }
+        lock.lock();
+        try {
+            System.arraycopy(loaded, 0, rings, 0, rings.length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Occupied slots ordered by period
+    private static int[] sortedSlots(Ring ring) {
+        int count = 0;
+        for (long period : ring.periods) {
+            if (period != Long.MIN_VALUE) {
+                count++;
+            }
+        }
+        long[] keyed = new long[count];
+        int[] slots = new int[count];
+        int n = 0;
+        for (int slot = 0; slot < ring.periods.length; slot++) {
+            if (ring.periods[slot] != Long.MIN_VALUE) {
+                keyed[n++] = ring.periods[slot];
+            }
+        }
+        Arrays.sort(keyed);
+        for (int i = 0; i < count; i++) {
+            slots[i] = (int) Math.floorMod(keyed[i], (long) ring.periods.length);
+        }
+        return slots;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+}
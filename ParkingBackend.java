@@ -0,0 +1,380 @@
+import javax.management.JMException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Everything behind the lot except a window: settings, the garage and the
+ * stores that follow it (journal, history, revenue, rates, occupancy), the
+ * persistence writer that keeps them in step with the engines, and the
+ * shutdown hook that closes them. The Swing frame and the HTTP gate API both
+ * run on one of these, so a lot can be served headless.
+ *
+ * Startup is {@link #loadSettings}, {@link #openStores} (returns at once; the
+ * stores open in parallel), {@link #awaitStores} and {@link #start}. A store
+ * that fails to open is reported and left null; the writer, the views and the
+ * shutdown hook skip a null store.
+ */
+public class ParkingBackend {
+    /**
+     * Shows a startup error to whoever is running the lot; the stack trace has
+     * already been printed.
+     */
+    public interface ErrorReporter {
+        void error(String message);
+    }
+
+    private static final int DEFAULT_LOT_ROWS = 4;
+    private static final int DEFAULT_LOT_COLUMNS = 10;
+    private static final String OCCUPANCY_FILE = "data/occupancy.dat";
+    private static final String RATE_FILE = "data/parkingrate.txt";
+    private static final String RATES_HISTORY_FILE = "data/rates-history.txt";
+    private static final String PARKED_FILE = "data/parked.txt";
+    private static final String ARCHIVE_DIR = "data/archive";
+    private static final String HISTORY_FILE = "data/history.dat";
+    private static final String LOT_FILE = "data/lot.txt";
+    private static final String LOT_STATE_FILE = "data/lot.dat";
+    private static final String LEVELS_DIR = "data/levels";
+    private static final String REVENUE_FILE = "data/revenue.txt";
+
+    private final ErrorReporter reporter;
+    private SystemConfig settings;
+    private Garage garage;
+    private SessionJournal sessionJournal;
+    private HistoryStore historyStore;
+    private RevenueLedger revenueLedger;
+    private RateBook rateBook;
+    private final OccupancySeries occupancySeries = new OccupancySeries(ZoneId.systemDefault());
+    private final ParkingStats parkingStats = new ParkingStats();
+    private PersistenceWriter persistenceWriter;
+    private final List<Runnable> ratesListeners = new CopyOnWriteArrayList<>();
+    // Closed before the stores on the way out, so nothing parks into a closing writer
+    private final List<Closeable> frontEnds = new CopyOnWriteArrayList<>();
+    private final List<StoreLoad> loads = new ArrayList<>();
+
+    public ParkingBackend(ErrorReporter reporter) {
+        this.reporter = reporter;
+    }
+
+    public void loadSettings() {
+        try {
+            settings = SystemConfig.load();
+        } catch (IOException e) {
+            e.printStackTrace();
+            reporter.error("Error loading settings: " + e.getMessage());
+            settings = SystemConfig.defaults();
+        }
+        int lotRows = settings.getInt("rows", DEFAULT_LOT_ROWS);
+        int lotColumns = settings.getInt("columns", DEFAULT_LOT_COLUMNS);
+        if (lotRows <= 0 || lotColumns <= 0) {
+            lotRows = DEFAULT_LOT_ROWS;
+            lotColumns = DEFAULT_LOT_COLUMNS;
+        }
+        int zones = settings.getInt("engine.zones", 1);
+        try {
+            garage = Garage.load(Paths.get(Garage.LAYOUT_FILE), lotRows, lotColumns, settings.getString("row.classes", null), zones);
+        } catch (IOException e) {
+            e.printStackTrace();
+            reporter.error("Error loading lot layout: " + e.getMessage()
+                    + "\nUsing a single " + lotRows + " x " + lotColumns + " level.");
+            garage = new Garage(Collections.singletonList(new LotShard("Lot", "Ground", lotRows, lotColumns, null, 1, zones)));
+        }
+        try {
+            garage.loadGates(Paths.get(Garage.GATES_FILE));
+        } catch (IOException e) {
+            e.printStackTrace();
+            reporter.error("Error loading gates: " + e.getMessage());
+        }
+        Instrumentation.setEnabled(settings.getBoolean("instrumentation.enabled", true));
+        Instrumentation.setSampleRate(settings.getInt("instrumentation.sample.rate", 64));
+    }
+
+    private interface StartupStep {
+        void run() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Starts opening the stores in parallel (history only needs the journal)
+     * and returns; {@link #awaitStores} waits for them.
+     */
+    public void openStores() {
+        ExecutorService loaders = Executors.newFixedThreadPool(4, r -> {
+            Thread thread = new Thread(r, "startup-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Future<?> journalLoad = loaders.submit(timed("journal", this::openSessionJournal));
+        Future<?> historyLoad = loaders.submit(timed("history", () -> {
+            try {
+                journalLoad.get();
+            } catch (ExecutionException e) {
+                // Reported with the journal
+            }
+            openHistoryStore();
+        }));
+        load(journalLoad, "Error opening parking journal: ", "");
+        load(historyLoad, "Error opening parking history: ", "");
+        load(loaders.submit(timed("revenue", this::openRevenueLedger)), "Error loading revenue data: ", "");
+        load(loaders.submit(timed("rates", this::openRateBook)), "Error loading parking rates: ", "\nUsing the default rates.");
+        // The first run converts the old lot.txt layout; with several levels each has its own file
+        load(loaders.submit(timed("lot", () -> garage.openLotStates(Paths.get(LOT_STATE_FILE), Paths.get(LOT_FILE),
+                Paths.get(LEVELS_DIR)))), "Error loading lot status: ", "");
+        load(loaders.submit(timed("occupancy", () -> occupancySeries.open(Paths.get(OCCUPANCY_FILE),
+                settings.getLong("occupancy.checkpoint.seconds", 300)))), "Error loading occupancy history: ", "");
+        loaders.shutdown();
+    }
+
+    private static final class StoreLoad {
+        final Future<?> future;
+        final String errorPrefix;
+        final String errorSuffix;
+
+        StoreLoad(Future<?> future, String errorPrefix, String errorSuffix) {
+            this.future = future;
+            this.errorPrefix = errorPrefix;
+            this.errorSuffix = errorSuffix;
+        }
+    }
+
+    private void load(Future<?> future, String errorPrefix, String errorSuffix) {
+        loads.add(new StoreLoad(future, errorPrefix, errorSuffix));
+    }
+
+    // Waits for every store to open; failures are reported in the order the stores are listed
+    public void awaitStores() {
+        for (StoreLoad load : loads) {
+            try {
+                load.future.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                cause.printStackTrace();
+                reporter.error(load.errorPrefix + cause.getMessage() + load.errorSuffix);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        loads.clear();
+    }
+
+    /**
+     * Prices sessions with the current rates, restores the parked vehicles
+     * and starts the persistence writer and instrumentation. Listeners added
+     * to the garage after this see every later event.
+     */
+    public void start() {
+        // Lot state lives in the garage's engines, one per level
+        if (rateBook != null) {
+            garage.setFareCalculator(rateBook.current());
+            rateBook.setListener(rates -> {
+                garage.setFareCalculator(rates);
+                for (Runnable listener : ratesListeners) {
+                    listener.run();
+                }
+            });
+        } else {
+            Tariff fallback = Tariff.defaults();
+            garage.setFareCalculator(fallback::fare);
+        }
+        garage.addListener(parkingStats);
+        garage.addListener(occupancySeries);
+        int duplicates = garage.restore();
+        if (duplicates > 0) {
+            reporter.error(duplicates + " vehicle(s) in the lot status were already parked in another space and were left out.");
+        }
+        occupancySeries.setOccupiedSpaces(garage.getOccupiedSpaces());
+        startPersistenceWriter();
+        startInstrumentation();
+    }
+
+    private static Callable<Void> timed(String phase, StartupStep step) {
+        return () -> {
+            long startNanos = System.nanoTime();
+            step.run();
+            logStartup(phase, startNanos);
+            return null;
+        };
+    }
+
+    public static void logStartup(String phase, long startNanos) {
+        System.out.println(String.format("[startup] %-14s %6d ms", phase, (System.nanoTime() - startNanos) / 1000000));
+    }
+
+    // Each store is published only once it is open, so one that failed stays null
+    private void openSessionJournal() throws IOException {
+        SessionJournal journal = new SessionJournal(Paths.get(PARKED_FILE), Paths.get(ARCHIVE_DIR),
+                settings.getInt("journal.compact.threshold", 1000));
+        journal.open();
+        sessionJournal = journal;
+    }
+
+    private void openHistoryStore() throws IOException {
+        if (sessionJournal == null) {
+            throw new IOException("it is rebuilt from the parking journal, which did not open");
+        }
+        // Rebuilt from the journal on first start or after a crash
+        historyStore = HistoryStore.open(Paths.get(HISTORY_FILE), sessionJournal);
+    }
+
+    private void openRevenueLedger() throws IOException {
+        RevenueLedger ledger = new RevenueLedger(Paths.get(REVENUE_FILE));
+        try {
+            ledger.open(settings.getLong("revenue.checkpoint.seconds", 300));
+        } catch (IOException | RuntimeException e) {
+            // Stops a checkpoint scheduler that may already be running
+            ledger.close();
+            throw e;
+        }
+        revenueLedger = ledger;
+    }
+
+    private void openRateBook() throws IOException {
+        rateBook = RateBook.open(Paths.get(RATE_FILE), Paths.get(RATES_HISTORY_FILE));
+        rateBook.startWatching();
+    }
+
+    private void startInstrumentation() {
+        Instrumentation.registerCounter("engine.parks", garage::getParkCount);
+        Instrumentation.registerCounter("engine.unparks", garage::getUnparkCount);
+        Instrumentation.registerCounter("engine.failedAllocations", garage::getFailedAllocationCount);
+        Instrumentation.registerCounter("engine.duplicatePlates", garage::getDuplicatePlateCount);
+        Instrumentation.registerCounter("persistence.events", persistenceWriter::getEventsWritten);
+        Instrumentation.registerCounter("persistence.failures", persistenceWriter::getFailures);
+        Instrumentation.registerGauge("lot.occupied", garage::getOccupiedSpaces);
+        Instrumentation.registerGauge("lot.available", garage::getAvailableSpaces);
+        Instrumentation.registerGauge("persistence.backlog", persistenceWriter::getQueueDepth);
+        try {
+            Instrumentation.registerMBean();
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        Instrumentation.startDump(settings.getLong("instrumentation.dump.seconds", 0));
+    }
+
+    private void startPersistenceWriter() {
+        PersistenceWriter.FsyncPolicy fsyncPolicy;
+        try {
+            fsyncPolicy = PersistenceWriter.FsyncPolicy.fromName(settings.getString("persistence.fsync", "interval"));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage() + "; using interval");
+            fsyncPolicy = PersistenceWriter.FsyncPolicy.INTERVAL;
+        }
+        persistenceWriter = new PersistenceWriter(sessionJournal, revenueLedger, garage, historyStore,
+                settings.getInt("persistence.queue.capacity", 4096),
+                settings.getInt("persistence.batch.max", 256),
+                fsyncPolicy,
+                settings.getLong("persistence.fsync.interval.ms", 1000));
+        garage.addListener(persistenceWriter);
+        persistenceWriter.start();
+
+        // Stop the front ends, drain pending writes, then fold the fare log into revenue.txt on the way out
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (Closeable frontEnd : frontEnds) {
+                try {
+                    frontEnd.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            try {
+                persistenceWriter.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                if (revenueLedger != null) {
+                    revenueLedger.close();
+                }
+                if (sessionJournal != null) {
+                    sessionJournal.close();
+                }
+                garage.closeLotStates();
+                if (historyStore != null) {
+                    historyStore.close();
+                }
+                if (rateBook != null) {
+                    rateBook.close();
+                }
+                occupancySeries.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "persistence-shutdown"));
+    }
+
+    /**
+     * Shows an error the way startup errors are shown (a dialog with the
+     * frame, stderr without).
+     */
+    public void reportError(String message) {
+        reporter.error(message);
+    }
+
+    /**
+     * Closes {@code frontEnd} (such as the HTTP API) at shutdown, before the
+     * stores are drained and closed.
+     */
+    public void closeOnShutdown(Closeable frontEnd) {
+        frontEnds.add(frontEnd);
+    }
+
+    /**
+     * Runs {@code listener} after each change of rates, once the garage
+     * prices with them; called on the rate file watcher's thread.
+     */
+    public void addRatesListener(Runnable listener) {
+        ratesListeners.add(listener);
+    }
+
+    /**
+     * The rates sessions are priced with now.
+     */
+    public Tariff currentTariff() {
+        return rateBook != null ? rateBook.current().getTariff() : Tariff.defaults();
+    }
+
+    public SystemConfig getSettings() {
+        return settings;
+    }
+
+    public Garage getGarage() {
+        return garage;
+    }
+
+    public SessionJournal getSessionJournal() {
+        return sessionJournal;
+    }
+
+    public HistoryStore getHistoryStore() {
+        return historyStore;
+    }
+
+    public RevenueLedger getRevenueLedger() {
+        return revenueLedger;
+    }
+
+    public RateBook getRateBook() {
+        return rateBook;
+    }
+
+    public OccupancySeries getOccupancySeries() {
+        return occupancySeries;
+    }
+
+    public ParkingStats getParkingStats() {
+        return parkingStats;
+    }
+
+    public PersistenceWriter getPersistenceWriter() {
+        return persistenceWriter;
+    }
+}
@@ -0,0 +1,730 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * UI-free lot state. Every space is a slot in a set of primitive arrays and all
+ * mutations go through {@link #park} and {@link #unpark}, which may be called
+ * from any thread. The lot is split into zones of consecutive spaces, each with
+ * its own lock and free-space index, so gates parking in different zones do not
+ * wait for each other; plates are claimed in a concurrent map, so a plate can
+ * only be parked once across all zones. Every space has a {@link SpaceClass},
+ * and each zone keeps one free-space index per class, so a vehicle only ever
+ * searches bays it fits. Gates registered with {@link #addGate} also keep,
+ * per zone, the bays ordered by distance from the gate, so an arrival there
+ * gets the closest fitting bay in O(zones * log64 N). Listeners are notified while the zone
+ * lock is held, in event order for any one space or plate, so they must be
+ * thread-safe and hand work off rather than block (the Swing frame posts to
+ * the EDT).
+ */
+public class ParkingEngine {
+    public static final int NO_SPACE = -1;
+    public static final int DUPLICATE_PLATE = -2;
+    // Fits the 48-byte plate field of the lot state file even in 3-byte UTF-8
+    public static final int MAX_PLATE_LENGTH = 16;
+
+    public interface Listener {
+        void vehicleParked(int spaceNumber, String licensePlate, VehicleType vehicleType, long entryTime);
+
+        void vehicleRemoved(ParkingRecord record);
+    }
+
+    public interface FareCalculator {
+        double calculateFare(VehicleType vehicleType, long entryTime, long exitTime);
+
+        // Recorded with each session so a fare can be traced to the rates that produced it
+        default int getRateVersion() {
+            return 0;
+        }
+    }
+
+    // Marks a plate claimed by a park that has not found its space yet
+    private static final Integer PENDING = -1;
+
+    /**
+     * Spaces {@code first .. first+size-1}, guarded by the zone's monitor.
+     */
+    private static final class Zone {
+        final int first;
+        final int size;
+        // Free bays by SpaceClass ordinal; each index only ever holds bays of its class
+        final SpaceAllocator[] allocators = new SpaceAllocator[SpaceClass.COUNT];
+        // Written under the lock, read without it to skip full zones and for the free counts
+        final AtomicIntegerArray free = new AtomicIntegerArray(SpaceClass.COUNT);
+        volatile int occupied;
+        // Totals since startup, for instrumentation
+        long parks;
+        long unparks;
+        // Per gate: offsets sorted by distance from the gate, the rank of each offset in
+        // that order, the distance at each rank, and free bays by class indexed by rank
+        // (lowest free rank = closest bay in the zone)
+        int[][] gateOrder = new int[0][];
+        int[][] gateRank = new int[0][];
+        int[][] gateDistance = new int[0][];
+        SpaceAllocator[][] gateFree = new SpaceAllocator[0][];
+
+        Zone(int first, int size, byte[] spaceClasses) {
+            this.first = first;
+            this.size = size;
+            for (int c = 0; c < SpaceClass.COUNT; c++) {
+                allocators[c] = new SpaceAllocator(size);
+            }
+            for (int offset = 0; offset < size; offset++) {
+                int spaceClass = spaceClasses[first + offset];
+                for (int c = 0; c < SpaceClass.COUNT; c++) {
+                    if (c != spaceClass) {
+                        allocators[c].allocate(offset);
+                    }
+                }
+                free.incrementAndGet(spaceClass);
+            }
+        }
+
+        int lowestFree() {
+            int lowest = -1;
+            for (SpaceAllocator allocator : allocators) {
+                int offset = allocator.lowestFree();
+                if (offset >= 0 && (lowest < 0 || offset < lowest)) {
+                    lowest = offset;
+                }
+            }
+            return lowest;
+        }
+
+        int highestFree() {
+            int highest = -1;
+            for (SpaceAllocator allocator : allocators) {
+                highest = Math.max(highest, allocator.previousFree(size - 1));
+            }
+            return highest;
+        }
+
+        int nearestFree(int target) {
+            int nearest = -1;
+            for (SpaceAllocator allocator : allocators) {
+                int offset = allocator.nearestFree(target);
+                if (offset >= 0 && (nearest < 0 || Math.abs(offset - target) < Math.abs(nearest - target)
+                        || Math.abs(offset - target) == Math.abs(nearest - target) && offset < nearest)) {
+                    nearest = offset;
+                }
+            }
+            return nearest;
+        }
+    }
+
+    private final int totalSpaces;
+    // Index i holds space number i + 1; a type code of 0 marks the space as free
+    private final byte[] vehicleTypes;
+    private final long[] entryTimes;
+    private final String[] licensePlates;
+    // SpaceClass ordinal of each space; fixed for the life of the engine
+    private final byte[] spaceClasses;
+    private final ConcurrentMap<String, Integer> spaceByPlate = new ConcurrentHashMap<>();
+    private final int zoneSize;
+    private final Zone[] zones;
+    private final LongAdder failedAllocations = new LongAdder();
+    private final LongAdder duplicatePlates = new LongAdder();
+    // Gate names; replaced whole when a gate is added
+    private volatile String[] gateNames = new String[0];
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile FareCalculator fareCalculator = (type, entry, exit) -> 0.0;
+
+    public ParkingEngine(int totalSpaces) {
+        this(totalSpaces, 1);
+    }
+
+    /**
+     * Creates a lot of truck bays, which fit any vehicle, split into
+     * {@code zoneCount} zones.
+     */
+    public ParkingEngine(int totalSpaces, int zoneCount) {
+        this(allTruckBays(totalSpaces), zoneCount);
+    }
+
+    /**
+     * Creates a lot with the given bay class per space (index i is space i + 1),
+     * split into {@code zoneCount} zones of about equal size (fewer if there are
+     * fewer spaces). One zone behaves like a single lock.
+     */
+    public ParkingEngine(SpaceClass[] spaceClasses, int zoneCount) {
+        int totalSpaces = spaceClasses.length;
+        if (totalSpaces <= 0) {
+            throw new IllegalArgumentException("Lot must have at least one space");
+        }
+        if (zoneCount <= 0) {
+            throw new IllegalArgumentException("Lot must have at least one zone");
+        }
+        this.totalSpaces = totalSpaces;
+        this.vehicleTypes = new byte[totalSpaces];
+        this.entryTimes = new long[totalSpaces];
+        this.licensePlates = new String[totalSpaces];
+        this.spaceClasses = new byte[totalSpaces];
+        for (int i = 0; i < totalSpaces; i++) {
+            this.spaceClasses[i] = (byte) spaceClasses[i].ordinal();
+        }
+        this.zoneSize = (totalSpaces + Math.min(zoneCount, totalSpaces) - 1) / Math.min(zoneCount, totalSpaces);
+        this.zones = new Zone[(totalSpaces + zoneSize - 1) / zoneSize];
+        for (int i = 0; i < zones.length; i++) {
+            int first = i * zoneSize;
+            zones[i] = new Zone(first, Math.min(zoneSize, totalSpaces - first), this.spaceClasses);
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public void setFareCalculator(FareCalculator fareCalculator) {
+        this.fareCalculator = fareCalculator;
+    }
+
+    /**
+     * Parks a vehicle in {@code preferredSpace} if it is free and the vehicle
+     * fits it. Otherwise the vehicle takes the lowest-numbered free bay of its
+     * own class in the preferred space's zone, then in the following zones,
+     * and only then moves up to larger classes (with one zone of truck bays,
+     * simply the lowest free space). Gates should prefer a space in their own
+     * zone so that they rarely contend. Returns the space number used,
+     * {@link #NO_SPACE} when no fitting bay is free or {@link #DUPLICATE_PLATE}
+     * when the plate is already parked.
+     */
+    public int park(String licensePlate, VehicleType vehicleType, int preferredSpace) {
+        long start = Instrumentation.start(Instrumentation.PARK);
+        String plate = claimPlate(licensePlate, vehicleType);
+        if (plate == null) {
+            return DUPLICATE_PLATE;
+        }
+        boolean preferred = preferredSpace > 0 && preferredSpace <= totalSpaces;
+        int home = preferred ? (preferredSpace - 1) / zoneSize : 0;
+        int smallest = SpaceClass.forVehicle(vehicleType).ordinal();
+        if (preferred && spaceClasses[preferredSpace - 1] >= smallest) {
+            Zone zone = zones[home];
+            synchronized (zone) {
+                int index = preferredSpace - 1;
+                if (zone.allocators[spaceClasses[index]].isFree(index - zone.first)) {
+                    return place(zone, index, plate, vehicleType, start);
+                }
+            }
+        }
+        for (int spaceClass = smallest; spaceClass < SpaceClass.COUNT; spaceClass++) {
+            for (int i = 0; i < zones.length; i++) {
+                Zone zone = zones[(home + i) % zones.length];
+                if (zone.free.get(spaceClass) == 0) {
+                    continue;
+                }
+                synchronized (zone) {
+                    int offset = zone.allocators[spaceClass].lowestFree();
+                    if (offset >= 0) {
+                        return place(zone, zone.first + offset, plate, vehicleType, start);
+                    }
+                }
+            }
+        }
+        return refuse(plate);
+    }
+
+    /**
+     * Parks a vehicle arriving at {@code gate} (see {@link #addGate}) in the
+     * free bay of its own class closest to the gate, moving up to larger
+     * classes only when none is left; ties go to the lower space number.
+     * Each zone's closest free bay is read under its lock and the closest of
+     * those is taken, retrying if another gate got to it first. Returns the
+     * space number used, {@link #NO_SPACE} or {@link #DUPLICATE_PLATE}.
+     */
+    public int parkAtGate(String licensePlate, VehicleType vehicleType, int gate) {
+        long start = Instrumentation.start(Instrumentation.PARK);
+        if (gate < 0 || gate >= gateNames.length) {
+            throw new IllegalArgumentException("No such gate: " + gate);
+        }
+        String plate = claimPlate(licensePlate, vehicleType);
+        if (plate == null) {
+            return DUPLICATE_PLATE;
+        }
+        for (int spaceClass = SpaceClass.forVehicle(vehicleType).ordinal(); spaceClass < SpaceClass.COUNT; spaceClass++) {
+            while (true) {
+                Zone best = null;
+                long bestKey = Long.MAX_VALUE;
+                for (Zone zone : zones) {
+                    if (zone.free.get(spaceClass) == 0) {
+                        continue;
+                    }
+                    synchronized (zone) {
+                        int rank = zone.gateFree[gate][spaceClass].lowestFree();
+                        if (rank >= 0) {
+                            // Distance, then space number, packed so one comparison orders both
+                            long key = (long) zone.gateDistance[gate][rank] << 32 | (zone.first + zone.gateOrder[gate][rank]);
+                            if (key < bestKey) {
+                                best = zone;
+                                bestKey = key;
+                            }
+                        }
+                    }
+                }
+                if (best == null) {
+                    break;
+                }
+                synchronized (best) {
+                    int rank = best.gateFree[gate][spaceClass].lowestFree();
+                    if (rank >= 0 && best.first + best.gateOrder[gate][rank] == (int) bestKey) {
+                        return place(best, (int) bestKey, plate, vehicleType, start);
+                    }
+                }
+                // Taken, or a closer bay freed up, since the zone was read; look again
+            }
+        }
+        return refuse(plate);
+    }
+
+    /**
+     * Registers a gate, given the distance from it to every space (index i is
+     * space i + 1), and returns its number for {@link #parkAtGate}. Ties go to
+     * the lower space number. Meant for startup: building the index sorts
+     * every zone once.
+     */
+    public synchronized int addGate(String name, int[] distances) {
+        if (distances.length != totalSpaces) {
+            throw new IllegalArgumentException("Expected " + totalSpaces + " distances, got " + distances.length);
+        }
+        int gate = gateNames.length;
+        for (Zone zone : zones) {
+            // Sort (distance, offset) pairs packed into longs rather than boxing a comparator
+            long[] keys = new long[zone.size];
+            for (int offset = 0; offset < zone.size; offset++) {
+                keys[offset] = (long) distances[zone.first + offset] << 32 | offset;
+            }
+            Arrays.sort(keys);
+            int[] order = new int[zone.size];
+            int[] rank = new int[zone.size];
+            int[] distance = new int[zone.size];
+            for (int r = 0; r < zone.size; r++) {
+                order[r] = (int) keys[r];
+                rank[order[r]] = r;
+                distance[r] = (int) (keys[r] >>> 32);
+            }
+            synchronized (zone) {
+                SpaceAllocator[] free = new SpaceAllocator[SpaceClass.COUNT];
+                for (int c = 0; c < SpaceClass.COUNT; c++) {
+                    free[c] = new SpaceAllocator(zone.size);
+                    for (int r = 0; r < zone.size; r++) {
+                        int index = zone.first + order[r];
+                        if (spaceClasses[index] != c || vehicleTypes[index] != 0) {
+                            free[c].allocate(r);
+                        }
+                    }
+                }
+                zone.gateOrder = Arrays.copyOf(zone.gateOrder, gate + 1);
+                zone.gateRank = Arrays.copyOf(zone.gateRank, gate + 1);
+                zone.gateDistance = Arrays.copyOf(zone.gateDistance, gate + 1);
+                zone.gateFree = Arrays.copyOf(zone.gateFree, gate + 1);
+                zone.gateOrder[gate] = order;
+                zone.gateRank[gate] = rank;
+                zone.gateDistance[gate] = distance;
+                zone.gateFree[gate] = free;
+            }
+        }
+        String[] names = Arrays.copyOf(gateNames, gate + 1);
+        names[gate] = name;
+        gateNames = names;
+        return gate;
+    }
+
+    public List<String> getGateNames() {
+        return Arrays.asList(gateNames.clone());
+    }
+
+    /**
+     * Returns the number of the gate called {@code name}, or -1.
+     */
+    public int getGate(String name) {
+        String[] names = gateNames;
+        for (int gate = 0; gate < names.length; gate++) {
+            if (names[gate].equalsIgnoreCase(name)) {
+                return gate;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks a vehicle out and prices the stay. Returns {@code null} when the
+     * plate is not parked.
+     */
+    public ParkingRecord unpark(String licensePlate) {
+        String plate = normalizePlate(licensePlate);
+        Integer index = spaceByPlate.get(plate);
+        if (index == null || index < 0) {
+            return null;
+        }
+        Zone zone = zoneOf(index);
+        synchronized (zone) {
+            // The vehicle may have left through another gate since the lookup
+            return plate.equals(licensePlates[index]) ? vacate(zone, index) : null;
+        }
+    }
+
+    public ParkingRecord unparkSpace(int spaceNumber) {
+        checkSpace(spaceNumber);
+        Zone zone = zoneOf(spaceNumber - 1);
+        synchronized (zone) {
+            return vehicleTypes[spaceNumber - 1] == 0 ? null : vacate(zone, spaceNumber - 1);
+        }
+    }
+
+    /**
+     * Reinstates a vehicle loaded from persisted state without notifying
+     * listeners. Returns the space number, or {@link #DUPLICATE_PLATE} (and
+     * counts it) when the plate is already parked in another space, which
+     * leaves the space as it was.
+     */
+    public int restore(int spaceNumber, String licensePlate, VehicleType vehicleType, long entryTime) {
+        checkSpace(spaceNumber);
+        int index = spaceNumber - 1;
+        String plate = normalizePlate(licensePlate);
+        Zone zone = zoneOf(index);
+        synchronized (zone) {
+            Integer current = spaceByPlate.get(plate);
+            if (current != null && current != index) {
+                duplicatePlates.increment();
+                return DUPLICATE_PLATE;
+            }
+            if (vehicleTypes[index] != 0) {
+                spaceByPlate.remove(licensePlates[index]);
+                release(zone, index);
+            }
+            occupy(zone, index, plate, vehicleType, entryTime);
+        }
+        return spaceNumber;
+    }
+
+    public int getTotalSpaces() {
+        return totalSpaces;
+    }
+
+    public int getZoneCount() {
+        return zones.length;
+    }
+
+    /**
+     * Returns the first space number of {@code zone} (0-based).
+     */
+    public int getZoneStart(int zone) {
+        return zones[zone].first + 1;
+    }
+
+    public SpaceClass getSpaceClass(int spaceNumber) {
+        checkSpace(spaceNumber);
+        return SpaceClass.values()[spaceClasses[spaceNumber - 1]];
+    }
+
+    /**
+     * Free bays of {@code spaceClass}, read without locking.
+     */
+    public int getFreeSpaces(SpaceClass spaceClass) {
+        int free = 0;
+        for (Zone zone : zones) {
+            free += zone.free.get(spaceClass.ordinal());
+        }
+        return free;
+    }
+
+    /**
+     * Free bays that {@code vehicleType} fits, read without locking; 0 means
+     * the lot is full for that type.
+     */
+    public int getAvailableSpaces(VehicleType vehicleType) {
+        int free = 0;
+        for (Zone zone : zones) {
+            for (int c = SpaceClass.forVehicle(vehicleType).ordinal(); c < SpaceClass.COUNT; c++) {
+                free += zone.free.get(c);
+            }
+        }
+        return free;
+    }
+
+    public long getParkCount() {
+        long parks = 0;
+        for (Zone zone : zones) {
+            synchronized (zone) {
+                parks += zone.parks;
+            }
+        }
+        return parks;
+    }
+
+    public long getUnparkCount() {
+        long unparks = 0;
+        for (Zone zone : zones) {
+            synchronized (zone) {
+                unparks += zone.unparks;
+            }
+        }
+        return unparks;
+    }
+
+    // Parks refused because no suitable space was free
+    public long getFailedAllocationCount() {
+        return failedAllocations.sum();
+    }
+
+    public long getDuplicatePlateCount() {
+        return duplicatePlates.sum();
+    }
+
+    // Summed zone by zone, so exact only when no gate is busy
+    public int getOccupiedSpaces() {
+        int occupied = 0;
+        for (Zone zone : zones) {
+            occupied += zone.occupied;
+        }
+        return occupied;
+    }
+
+    public int getAvailableSpaces() {
+        return totalSpaces - getOccupiedSpaces();
+    }
+
+    public boolean isOccupied(int spaceNumber) {
+        checkSpace(spaceNumber);
+        synchronized (zoneOf(spaceNumber - 1)) {
+            return vehicleTypes[spaceNumber - 1] != 0;
+        }
+    }
+
+    public VehicleType getVehicleType(int spaceNumber) {
+        checkSpace(spaceNumber);
+        synchronized (zoneOf(spaceNumber - 1)) {
+            return VehicleType.fromCode(vehicleTypes[spaceNumber - 1]);
+        }
+    }
+
+    public String getLicensePlate(int spaceNumber) {
+        checkSpace(spaceNumber);
+        synchronized (zoneOf(spaceNumber - 1)) {
+            return licensePlates[spaceNumber - 1];
+        }
+    }
+
+    public long getEntryTime(int spaceNumber) {
+        checkSpace(spaceNumber);
+        synchronized (zoneOf(spaceNumber - 1)) {
+            return entryTimes[spaceNumber - 1];
+        }
+    }
+
+    /**
+     * Returns the free space closest to {@code spaceNumber} (the lower one on a
+     * tie), or {@link #NO_SPACE}. Zones are locked one at a time, so under load
+     * the answer is a hint that a park may find taken.
+     */
+    public int findNearestFreeSpace(int spaceNumber) {
+        checkSpace(spaceNumber);
+        int target = spaceNumber - 1;
+        int home = target / zoneSize;
+        int best = -1;
+        synchronized (zones[home]) {
+            int offset = zones[home].nearestFree(target - zones[home].first);
+            if (offset >= 0) {
+                best = zones[home].first + offset;
+            }
+        }
+        // Widen zone by zone while a neighbouring zone could still hold a closer space
+        for (int distance = 1; distance < zones.length; distance++) {
+            boolean searched = false;
+            if (home - distance >= 0) {
+                Zone zone = zones[home - distance];
+                if (best < 0 || target - (zone.first + zone.size - 1) <= Math.abs(best - target)) {
+                    searched = true;
+                    int offset;
+                    synchronized (zone) {
+                        offset = zone.highestFree();
+                    }
+                    if (offset >= 0 && (best < 0 || target - (zone.first + offset) <= Math.abs(best - target))) {
+                        best = zone.first + offset;
+                    }
+                }
+            }
+            if (home + distance < zones.length) {
+                Zone zone = zones[home + distance];
+                if (best < 0 || zone.first - target < Math.abs(best - target)) {
+                    searched = true;
+                    int offset;
+                    synchronized (zone) {
+                        offset = zone.lowestFree();
+                    }
+                    if (offset >= 0 && (best < 0 || zone.first + offset - target < Math.abs(best - target))) {
+                        best = zone.first + offset;
+                    }
+                }
+            }
+            if (!searched) {
+                break;
+            }
+        }
+        return best < 0 ? NO_SPACE : best + 1;
+    }
+
+    /**
+     * Returns the space the plate is parked in, or {@link #NO_SPACE}.
+     */
+    public int findSpace(String licensePlate) {
+        Integer index = spaceByPlate.get(normalizePlate(licensePlate));
+        return index == null || index < 0 ? NO_SPACE : index + 1;
+    }
+
+    /**
+     * The plate's current session (exit time 0), read under its zone's lock
+     * so the space, type and entry time belong together, or null when the
+     * plate is not parked.
+     */
+    public ParkingRecord getSession(String licensePlate) {
+        String plate = normalizePlate(licensePlate);
+        while (true) {
+            Integer index = spaceByPlate.get(plate);
+            if (index == null || index < 0) {
+                return null;
+            }
+            synchronized (zoneOf(index)) {
+                if (plate.equals(licensePlates[index])) {
+                    return new ParkingRecord(plate, VehicleType.fromCode(vehicleTypes[index]), index + 1, entryTimes[index], 0, 0);
+                }
+            }
+            // Left that space meanwhile; look again unless it is gone for good
+            if (index.equals(spaceByPlate.get(plate))) {
+                return null;
+            }
+        }
+    }
+
+    private Zone zoneOf(int index) {
+        return zones[index / zoneSize];
+    }
+
+    // Called with the zone lock held
+    private int place(Zone zone, int index, String plate, VehicleType vehicleType, long start) {
+        long entryTime = System.currentTimeMillis();
+        occupy(zone, index, plate, vehicleType, entryTime);
+        int spaceNumber = index + 1;
+        for (Listener listener : listeners) {
+            listener.vehicleParked(spaceNumber, plate, vehicleType, entryTime);
+        }
+        zone.parks++;
+        Instrumentation.record(Instrumentation.PARK, start);
+        return spaceNumber;
+    }
+
+    /**
+     * Claims the plate for a park in progress, or returns null (and counts it)
+     * when the plate is already parked.
+     */
+    private String claimPlate(String licensePlate, VehicleType vehicleType) {
+        String plate = normalizePlate(licensePlate);
+        if (vehicleType == null) {
+            throw new IllegalArgumentException("Vehicle type is required");
+        }
+        if (spaceByPlate.putIfAbsent(plate, PENDING) != null) {
+            duplicatePlates.increment();
+            return null;
+        }
+        return plate;
+    }
+
+    private int refuse(String plate) {
+        spaceByPlate.remove(plate, PENDING);
+        failedAllocations.increment();
+        return NO_SPACE;
+    }
+
+    private void occupy(Zone zone, int index, String plate, VehicleType vehicleType, long entryTime) {
+        vehicleTypes[index] = vehicleType.getCode();
+        licensePlates[index] = plate;
+        entryTimes[index] = entryTime;
+        spaceByPlate.put(plate, index);
+        int spaceClass = spaceClasses[index];
+        int offset = index - zone.first;
+        zone.allocators[spaceClass].allocate(offset);
+        for (int gate = 0; gate < zone.gateFree.length; gate++) {
+            zone.gateFree[gate][spaceClass].allocate(zone.gateRank[gate][offset]);
+        }
+        zone.free.lazySet(spaceClass, zone.free.get(spaceClass) - 1);
+        zone.occupied++;
+    }
+
+    private void release(Zone zone, int index) {
+        int spaceClass = spaceClasses[index];
+        int offset = index - zone.first;
+        zone.allocators[spaceClass].release(offset);
+        for (int gate = 0; gate < zone.gateFree.length; gate++) {
+            zone.gateFree[gate][spaceClass].release(zone.gateRank[gate][offset]);
+        }
+        zone.free.lazySet(spaceClass, zone.free.get(spaceClass) + 1);
+        zone.occupied--;
+    }
+
+    private ParkingRecord vacate(Zone zone, int index) {
+        long start = Instrumentation.start(Instrumentation.UNPARK);
+        String plate = licensePlates[index];
+        VehicleType vehicleType = VehicleType.fromCode(vehicleTypes[index]);
+        long entryTime = entryTimes[index];
+        long exitTime = System.currentTimeMillis();
+        FareCalculator calculator = fareCalculator;
+        double fare = calculator.calculateFare(vehicleType, entryTime, exitTime);
+
+        vehicleTypes[index] = 0;
+        licensePlates[index] = null;
+        entryTimes[index] = 0;
+        release(zone, index);
+
+        ParkingRecord record = new ParkingRecord(plate, vehicleType, index + 1, entryTime, exitTime, fare,
+                calculator.getRateVersion());
+        try {
+            for (Listener listener : listeners) {
+                listener.vehicleRemoved(record);
+            }
+        } finally {
+            // Released last, so the plate's next park is announced after this exit
+            spaceByPlate.remove(plate);
+        }
+        zone.unparks++;
+        Instrumentation.record(Instrumentation.UNPARK, start);
+        return record;
+    }
+
+    private void checkSpace(int spaceNumber) {
+        if (spaceNumber <= 0 || spaceNumber > totalSpaces) {
+            throw new IllegalArgumentException("No such space: " + spaceNumber);
+        }
+    }
+
+    private static SpaceClass[] allTruckBays(int totalSpaces) {
+        SpaceClass[] spaceClasses = new SpaceClass[Math.max(0, totalSpaces)];
+        Arrays.fill(spaceClasses, SpaceClass.TRUCK);
+        return spaceClasses;
+    }
+
+    static String normalizePlate(String licensePlate) {
+        if (licensePlate == null || licensePlate.trim().isEmpty()) {
+            throw new IllegalArgumentException("License plate is required");
+        }
+        String plate = licensePlate.trim();
+        if (plate.length() > MAX_PLATE_LENGTH) {
+            throw new IllegalArgumentException("License plate must be at most " + MAX_PLATE_LENGTH + " characters");
+        }
+        // Plates end up in CSV rows, so separators and line breaks must never get in
+        for (int i = 0; i < plate.length(); i++) {
+            char c = plate.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != ' ' && c != '-') {
+                throw new IllegalArgumentException("License plate may only contain letters, digits, spaces and '-'");
+            }
+        }
+        return plate;
+    }
+}
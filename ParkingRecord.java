@@ -0,0 +1,69 @@
+public class ParkingRecord {
+    private final String licensePlate;
+    private final VehicleType vehicleType;
+    private final int spaceNumber;
+    private final long entryTime;
+    private final long exitTime;
+    private final double fare;
+    private final int rateVersion;
+
+    public ParkingRecord(String licensePlate, VehicleType vehicleType, int spaceNumber, long entryTime, long exitTime, double fare) {
+        this(licensePlate, vehicleType, spaceNumber, entryTime, exitTime, fare, 0);
+    }
+
+    public ParkingRecord(String licensePlate, VehicleType vehicleType, int spaceNumber, long entryTime, long exitTime, double fare,
+                         int rateVersion) {
+        this.licensePlate = licensePlate;
+        this.vehicleType = vehicleType;
+        this.spaceNumber = spaceNumber;
+        this.entryTime = entryTime;
+        this.exitTime = exitTime;
+        this.fare = fare;
+        this.rateVersion = rateVersion;
+    }
+
+    public String getLicensePlate() {
+        return licensePlate;
+    }
+
+    public VehicleType getVehicleType() {
+        return vehicleType;
+    }
+
+    public int getSpaceNumber() {
+        return spaceNumber;
+    }
+
+    public long getEntryTime() {
+        return entryTime;
+    }
+
+    public long getExitTime() {
+        return exitTime;
+    }
+
+    // Open sessions (vehicle still parked) have no exit time yet
+    public boolean isClosed() {
+        return exitTime != 0;
+    }
+
+    public double getDurationHours() {
+        return (exitTime - entryTime) / (60.0 * 60 * 1000);
+    }
+
+    public double getFare() {
+        return fare;
+    }
+
+    // Version of the parking rates the fare was calculated with; 0 if unknown
+    public int getRateVersion() {
+        return rateVersion;
+    }
+
+    @Override
+    public String toString() {
+        long durationHours = (exitTime - entryTime) / (60 * 60 * 1000);
+        return String.format("License: %s, Type: %s, Space Number: %d, Entry Time: %s, Exit Time: %s, Duration: %d hours, Fare: $%.2f",
+                licensePlate, vehicleType, spaceNumber, entryTime, exitTime, durationHours, fare);
+    }
+}
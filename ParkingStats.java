@@ -0,0 +1,86 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals over the sessions completed since startup, updated as each
+ * vehicle leaves so that nothing has to walk the history to report them.
+ * Fares are kept in cents and durations in milliseconds, so the totals are
+ * exact. Safe to update and read from any thread.
+ */
+public class ParkingStats implements ParkingEngine.Listener {
+    private final LongAdder sessions = new LongAdder();
+    private final LongAdder fareCents = new LongAdder();
+    private final LongAdder durationMillis = new LongAdder();
+    private final LongAdder[] typeSessions = newAdders();
+    private final LongAdder[] typeFareCents = newAdders();
+    private final LongAdder[] typeDurationMillis = newAdders();
+
+    @Override
+    public void vehicleParked(int spaceNumber, String licensePlate, VehicleType vehicleType, long entryTime) {
+        // Only completed sessions are counted
+    }
+
+    @Override
+    public void vehicleRemoved(ParkingRecord record) {
+        long cents = Math.round(record.getFare() * 100);
+        long millis = record.getExitTime() - record.getEntryTime();
+        int type = record.getVehicleType().ordinal();
+        sessions.increment();
+        fareCents.add(cents);
+        durationMillis.add(millis);
+        typeSessions[type].increment();
+        typeFareCents[type].add(cents);
+        typeDurationMillis[type].add(millis);
+    }
+
+    public long getSessionCount() {
+        return sessions.sum();
+    }
+
+    public long getTotalFareCents() {
+        return fareCents.sum();
+    }
+
+    public double getTotalFare() {
+        return fareCents.sum() / 100.0;
+    }
+
+    public long getTotalDurationMillis() {
+        return durationMillis.sum();
+    }
+
+    public double getAverageDurationHours() {
+        return averageHours(durationMillis.sum(), sessions.sum());
+    }
+
+    public long getSessionCount(VehicleType vehicleType) {
+        return typeSessions[vehicleType.ordinal()].sum();
+    }
+
+    public long getTotalFareCents(VehicleType vehicleType) {
+        return typeFareCents[vehicleType.ordinal()].sum();
+    }
+
+    public double getTotalFare(VehicleType vehicleType) {
+        return typeFareCents[vehicleType.ordinal()].sum() / 100.0;
+    }
+
+    public long getTotalDurationMillis(VehicleType vehicleType) {
+        return typeDurationMillis[vehicleType.ordinal()].sum();
+    }
+
+    public double getAverageDurationHours(VehicleType vehicleType) {
+        return averageHours(typeDurationMillis[vehicleType.ordinal()].sum(), typeSessions[vehicleType.ordinal()].sum());
+    }
+
+    private static double averageHours(long millis, long count) {
+        return count == 0 ? 0 : millis / (60.0 * 60 * 1000) / count;
+    }
+
+    private static LongAdder[] newAdders() {
+        LongAdder[] adders = new LongAdder[VehicleType.values().length];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+}
@@ -8,48 +8,66 @@ import javax.swing.border.CompoundBorder;
 import javax.swing.border.LineBorder;
 import java.io.*;
 import java.nio.file.*;
-import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import javax.swing.table.DefaultTableModel;
 import java.nio.file.StandardOpenOption;
 import javax.swing.table.DefaultTableCellRenderer;
 import java.time.LocalDate;
-import java.util.TreeMap;
-import java.time.temporal.WeekFields;
-import java.util.Locale;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.time.YearMonth;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutionException;
 
 public class ParkingSystem extends JFrame {
     private JPanel parkingLot;
-    private Map<String, ParkingSpace> parkedCars = new HashMap<>();
-    private List<ParkingRecord> parkingHistory = new ArrayList<>();
+    private LotCanvas lotCanvas;
+    // All levels; only the one selected in the lot view is drawn
+    private Garage garage;
+    private LotShard currentLevel;
+    private JLabel levelStatusLabel;
+    // Settings, stores and persistence; the frame keeps references to the parts its views read
+    private final ParkingBackend backend;
+    private SystemConfig settings;
+    private SessionJournal sessionJournal;
+    private ParkingStats parkingStats;
+    private MetricsModel metricsModel;
+    private OccupancySeries occupancySeries;
     private JLabel availableSpacesLabel, occupiedSpacesLabel, totalFareLabel;
+    // Free bays per vehicle type, by VehicleType ordinal; doubles as the "lot full for trucks" sign
+    private final JLabel[] vehicleAvailabilityLabels = new JLabel[VehicleType.values().length];
     private JButton modeToggleButton;
     private boolean isDarkMode = false;
-    private static final int TOTAL_SPACES = 40;
-    private static final String RATE_FILE = "data/parkingrate.txt";
-    private Map<String, Integer> hourlyRates = new HashMap<>();
-    private int availableSpaces;
-    private long totalParkingTime;
-    private int totalParkedVehicles;
-    private double todayRevenue = 0.0;
+    private RateBook rateBook;
 
     private JPanel dashboardPanel;
+    private JLabel availableValueLabel, occupiedValueLabel, averageStayValueLabel, todayRevenueValueLabel;
+    private JLabel sessionsValueLabel, sessionsUnitLabel, faresValueLabel, entriesValueLabel, exitsValueLabel;
+    private Sparkline occupancySparkline;
+    private JComboBox<String> occupancyRangeBox;
+    private JLabel occupancySummaryLabel;
+    private static final String[] OCCUPANCY_RANGES = {"Last 24 hours", "Last 60 days", "Last year"};
+    private static final OccupancySeries.Resolution[] OCCUPANCY_RESOLUTIONS = {
+        OccupancySeries.Resolution.MINUTE, OccupancySeries.Resolution.HOUR, OccupancySeries.Resolution.DAY};
+    private static final int[] OCCUPANCY_PERIODS = {24 * 60, 60 * 24, 366};
     private CardLayout cardLayout;
     private JPanel contentPanel;
-    private static final String PARKED_FILE = "data/parked.txt";
     private JTable historyTable;
-    private DefaultTableModel historyTableModel;
-    private static final String LOT_FILE = "data/lot.txt";
+    private HistoryTableModel historyTableModel;
+    private HistoryStore historyStore;
+    private JTextField historyPlateField, historyFromField, historyToField;
+    private JLabel historySearchStatus;
+    private static final DateTimeFormatter SEARCH_DATE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
     private JPanel revenuePanel;
     private JPanel parkingRatesPanel;
     private JPanel settingsPanel;
     private JTable ratesTable;
     private DefaultTableModel ratesTableModel;
-    private static final String REVENUE_FILE = "data/revenue.txt";
-    private TreeMap<LocalDate, Double> revenueData = new TreeMap<>();
+    private RevenueLedger revenueLedger;
+    private PersistenceWriter persistenceWriter;
     private JTabbedPane revenueTabbedPane;
     private JTable dailyRevenueTable;
     private JTable weeklyRevenueTable;
@@ -57,6 +75,8 @@ public class ParkingSystem extends JFrame {
     private DefaultTableModel dailyRevenueTableModel;
     private DefaultTableModel weeklyRevenueTableModel;
     private DefaultTableModel monthlyRevenueTableModel;
+    private DefaultTableModel yearlyRevenueTableModel;
+    private DefaultTableModel spaceRevenueTableModel;
 
     private static final Color DEFAULT_BACKGROUND_COLOR = new Color(240, 240, 240);
     private static final Color DEFAULT_FOREGROUND_COLOR = Color.BLACK;
@@ -64,6 +84,10 @@ public class ParkingSystem extends JFrame {
 
     private JPanel frontPage;
     private boolean isAdminMode = false;
+    private final Set<String> builtCards = new HashSet<>();
+    // Colors and font chosen in Settings, applied to cards built after the change
+    private Color themeBackground, themeForeground;
+    private Font themeFont;
 
     public ParkingSystem() {
         setTitle("Parking System");
@@ -72,14 +96,47 @@ public class ParkingSystem extends JFrame {
         setLayout(new BorderLayout(10, 10));
         ((JPanel)getContentPane()).setBorder(new EmptyBorder(10, 10, 10, 10));
 
-        // Set a modern look and feel
+        long startupNanos = System.nanoTime();
+        backend = new ParkingBackend(message ->
+                JOptionPane.showMessageDialog(this, message, "Error", JOptionPane.ERROR_MESSAGE));
+        backend.loadSettings();
+        settings = backend.getSettings();
+        garage = backend.getGarage();
+        ParkingBackend.logStartup("settings", startupNanos);
+        backend.openStores();
+
+        // Set a modern look and feel while the stores load
+        long lookAndFeelNanos = System.nanoTime();
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
         } catch (Exception e) {
             e.printStackTrace();
         }
+        ParkingBackend.logStartup("look and feel", lookAndFeelNanos);
+
+        backend.awaitStores();
+        ParkingBackend.logStartup("stores", startupNanos);
+        sessionJournal = backend.getSessionJournal();
+        historyStore = backend.getHistoryStore();
+        historyTableModel = new HistoryTableModel(historyStore);
+        revenueLedger = backend.getRevenueLedger();
+        rateBook = backend.getRateBook();
+        occupancySeries = backend.getOccupancySeries();
+        parkingStats = backend.getParkingStats();
+
+        // Lot state lives in the garage's engines, one per level; the frame only renders it
+        backend.addRatesListener(() -> SwingUtilities.invokeLater(this::refreshRatesDisplay));
+        backend.start();
+        persistenceWriter = backend.getPersistenceWriter();
+        metricsModel = new MetricsModel(garage.getTotalSpaces(), parkingStats, revenueLedger);
+        garage.addListener(metricsModel);
+        metricsModel.setOccupiedSpaces(garage.getOccupiedSpaces());
+        // Revenue shown in the status bar and dashboard is read back once per committed batch
+        persistenceWriter.setBatchListener(metricsModel::markChanged);
+        garage.addListener(new LotSubscriber());
 
         // Initialize components
+        long componentsNanos = System.nanoTime();
         initializeComponents();
 
         // Create front page
@@ -87,33 +144,35 @@ public class ParkingSystem extends JFrame {
 
         // Show front page initially
         showFrontPage();
+        ParkingBackend.logStartup("components", componentsNanos);
+
+        // Status bar and dashboard follow the metrics, repainted at most dashboard.fps times a second
+        metricsModel.addListener(this::metricsChanged);
+        metricsModel.start(settings.getInt("dashboard.fps", 10));
 
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowOpened(WindowEvent e) {
+                System.out.println(String.format("[startup] %-14s %6d ms (%d ms since JVM start)", "first frame",
+                        (System.nanoTime() - startupNanos) / 1000000, ManagementFactory.getRuntimeMXBean().getUptime()));
+            }
+        });
         setVisible(true);
+        startGateApi(backend, settings.getInt("api.port", 0));
     }
 
     private void initializeComponents() {
-        availableSpaces = TOTAL_SPACES;
-        totalParkingTime = 0;
-        totalParkedVehicles = 0;
-        todayRevenue = 0.0;
-
         cardLayout = new CardLayout();
         contentPanel = new JPanel(cardLayout);
 
         createParkingLot();
         createControlPanel();
         createStatusPanel();
-        createDashboardPanel();
-        createRevenuePanel();
-        createParkingRatesPanel();
-        createSettingsPanel();
-        createHistoryPanel();
 
+        // The other cards are built the first time they are shown
+        builtCards.clear();
         contentPanel.add(parkingLot, "ParkingLot");
-        contentPanel.add(dashboardPanel, "Dashboard");
-        contentPanel.add(revenuePanel, "Revenue");
-        contentPanel.add(parkingRatesPanel, "ParkingRates");
-        contentPanel.add(settingsPanel, "Settings");
+        builtCards.add("ParkingLot");
 
         add(contentPanel, BorderLayout.CENTER);
 
@@ -121,20 +180,71 @@ public class ParkingSystem extends JFrame {
         modeToggleButton.addActionListener(e -> toggleMode());
         add(modeToggleButton, BorderLayout.SOUTH);
 
-        // Load initial parking lot status
-        loadLotStatus();
-        loadParkingRates();
-        loadTodayRevenue();
+        updateStatus();
     }
 
     private void createParkingLot() {
-        parkingLot = new JPanel(new GridLayout(4, 10, 10, 10));
+        parkingLot = new JPanel(new BorderLayout());
         parkingLot.setBorder(BorderFactory.createTitledBorder("Parking Spaces"));
-        for (int i = 1; i <= TOTAL_SPACES; i++) {
-            ParkingSpace space = new ParkingSpace(i);
-            space.addActionListener(e -> handleSpaceClick(space));
-            parkingLot.add(space);
+        currentLevel = garage.getShards().get(0);
+        lotCanvas = new LotCanvas(currentLevel.getEngine(), currentLevel.getRows(), currentLevel.getColumns());
+        lotCanvas.setSpaceClickHandler(localSpace -> handleSpaceClick(currentLevel.toGlobal(localSpace)));
+        JScrollPane scrollPane = new JScrollPane(lotCanvas);
+        scrollPane.setBorder(BorderFactory.createEmptyBorder());
+        parkingLot.add(scrollPane, BorderLayout.CENTER);
+
+        // One canvas serves every level; switching rebinds it to the chosen level's engine
+        levelStatusLabel = new JLabel();
+        boolean gates = false;
+        for (LotShard level : garage.getShards()) {
+            gates |= !level.getEngine().getGateNames().isEmpty();
+        }
+        if (garage.getShards().size() > 1 || gates) {
+            JPanel levelBar = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 0));
+            if (garage.getShards().size() > 1) {
+                JComboBox<LotShard> levelBox = new JComboBox<>(garage.getShards().toArray(new LotShard[0]));
+                levelBox.addActionListener(e -> showLevel((LotShard) levelBox.getSelectedItem()));
+                levelBar.add(new JLabel("Level:"));
+                levelBar.add(levelBox);
+            }
+            if (gates) {
+                JButton arrivalButton = new JButton("Arrival at Gate");
+                arrivalButton.addActionListener(e -> arriveAtGate());
+                levelBar.add(arrivalButton);
+            }
+            levelBar.add(levelStatusLabel);
+            parkingLot.add(levelBar, BorderLayout.NORTH);
+        }
+    }
+
+    // Parks an arriving vehicle in the closest bay to one of the current level's gates
+    private void arriveAtGate() {
+        List<String> gates = currentLevel.getEngine().getGateNames();
+        if (gates.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "No gates are set up for " + currentLevel + " (see data/gates.txt).");
+            return;
+        }
+        String gate = gates.size() == 1 ? gates.get(0) : (String) JOptionPane.showInputDialog(this,
+                "Select gate:", "Arrival", JOptionPane.QUESTION_MESSAGE, null, gates.toArray(), gates.get(0));
+        if (gate != null) {
+            parkVehicle(0, gate);
+        }
+    }
+
+    private void showLevel(LotShard level) {
+        if (level == null || level == currentLevel) {
+            return;
         }
+        currentLevel = level;
+        lotCanvas.setLot(level.getEngine(), level.getRows(), level.getColumns(), level.getFirstSpace());
+        updateLevelStatus();
+    }
+
+    private void updateLevelStatus() {
+        ParkingEngine engine = currentLevel.getEngine();
+        levelStatusLabel.setText(String.format("%d of %d free on this level, %d at %s",
+                engine.getAvailableSpaces(), engine.getTotalSpaces(),
+                garage.getAvailableSpaces(currentLevel.getSite()), currentLevel.getSite()));
     }
 
     private void createControlPanel() {
@@ -173,28 +283,33 @@ public class ParkingSystem extends JFrame {
     }
 
     private void createStatusPanel() {
-        JPanel statusPanel = new JPanel(new GridLayout(1, 3, 10, 10));
+        JPanel statusPanel = new JPanel(new GridLayout(2, 3, 10, 10));
         statusPanel.setBorder(BorderFactory.createTitledBorder("Status"));
-        availableSpacesLabel = new JLabel("Available: " + TOTAL_SPACES);
+        availableSpacesLabel = new JLabel("Available: " + garage.getTotalSpaces());
         occupiedSpacesLabel = new JLabel("Occupied: 0");
         totalFareLabel = new JLabel("Total Fare: $0");
 
         statusPanel.add(availableSpacesLabel);
         statusPanel.add(occupiedSpacesLabel);
         statusPanel.add(totalFareLabel);
+        for (VehicleType type : VehicleType.values()) {
+            vehicleAvailabilityLabels[type.ordinal()] = new JLabel();
+            statusPanel.add(vehicleAvailabilityLabels[type.ordinal()]);
+        }
 
         add(statusPanel, BorderLayout.NORTH);
     }
 
-    private void handleSpaceClick(ParkingSpace space) {
+    private void handleSpaceClick(int spaceNumber) {
+        boolean occupied = garage.isOccupied(spaceNumber);
         if (isAdminMode) {
-            if (space.isOccupied()) {
-                removeVehicle(space.getSpaceNumber());
+            if (occupied) {
+                removeVehicle(spaceNumber);
             } else {
-                parkVehicle(space.getSpaceNumber());
+                parkVehicle(spaceNumber);
             }
         } else {
-            if (space.isOccupied()) {
+            if (occupied) {
                 JOptionPane.showMessageDialog(this, "This space is occupied.", "Space Status", JOptionPane.INFORMATION_MESSAGE);
             } else {
                 int choice = JOptionPane.showConfirmDialog(this, 
@@ -202,13 +317,18 @@ public class ParkingSystem extends JFrame {
                     "Park Vehicle", 
                     JOptionPane.YES_NO_OPTION);
                 if (choice == JOptionPane.YES_OPTION) {
-                    parkVehicle(space.getSpaceNumber());
+                    parkVehicle(spaceNumber);
                 }
             }
         }
     }
 
     private void parkVehicle(int spaceNumber) {
+        parkVehicle(spaceNumber, null);
+    }
+
+    // Parks in spaceNumber when it is free, or in the closest bay to gate on the current level when a gate is given
+    private void parkVehicle(int spaceNumber, String gate) {
         String[] options = {"Car", "Motor", "Truck"};
         String vehicleType = (String) JOptionPane.showInputDialog(this, 
             "Select vehicle type:", 
@@ -221,124 +341,95 @@ public class ParkingSystem extends JFrame {
         if (vehicleType != null) {
             String licensePlate = JOptionPane.showInputDialog(this, "Enter license plate:");
             if (licensePlate != null && !licensePlate.trim().isEmpty()) {
-                ParkingSpace space = findAvailableSpace(spaceNumber);
-                if (space != null) {
-                    space.occupy(vehicleType, licensePlate);
-                    parkedCars.put(licensePlate, space);
-                    availableSpaces--;
-                    updateStatus();
-                    saveParkedVehicle(licensePlate, vehicleType, space.getSpaceNumber());
-                    updateHistoryPanel();
-                    updateLotFile();
-                    JOptionPane.showMessageDialog(this, "Vehicle parked successfully!");
+                int parkedSpace;
+                try {
+                    parkedSpace = gate == null ? garage.park(licensePlate, VehicleType.fromName(vehicleType), spaceNumber)
+                            : garage.parkAtGate(licensePlate, VehicleType.fromName(vehicleType), currentLevel, gate);
+                } catch (IllegalArgumentException e) {
+                    JOptionPane.showMessageDialog(this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                if (parkedSpace == ParkingEngine.DUPLICATE_PLATE) {
+                    JOptionPane.showMessageDialog(this, "A vehicle with this license plate is already parked!");
+                } else if (parkedSpace == ParkingEngine.NO_SPACE) {
+                    JOptionPane.showMessageDialog(this, "No available parking space for a " + vehicleType.toLowerCase() + "!");
+                } else if (gate != null) {
+                    if (currentLevel.contains(parkedSpace)) {
+                        lotCanvas.scrollRectToVisible(lotCanvas.cellBounds(currentLevel.toLocal(parkedSpace)));
+                    }
+                    JOptionPane.showMessageDialog(this, "Please park in space " + parkedSpace + " ("
+                            + garage.shardOf(parkedSpace) + ").");
                 } else {
-                    JOptionPane.showMessageDialog(this, "No available parking space!");
+                    JOptionPane.showMessageDialog(this, parkedSpace == spaceNumber ? "Vehicle parked successfully!"
+                            : "Vehicle parked in space " + parkedSpace + " instead of space " + spaceNumber + ".");
                 }
             }
         }
     }
 
-    private void saveParkedVehicle(String licensePlate, String vehicleType, int spaceNumber) {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(PARKED_FILE, true))) {
-            writer.println(licensePlate + "," + vehicleType + "," + spaceNumber + "," + System.currentTimeMillis());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
     private void removeVehicle(int spaceNumber) {
-        ParkingSpace space = (ParkingSpace) parkingLot.getComponent(spaceNumber - 1);
-        if (space.isOccupied()) {
-            removeVehicle(space.getLicensePlate());
+        ParkingRecord record = garage.unparkSpace(spaceNumber);
+        if (record != null) {
+            JOptionPane.showMessageDialog(this, String.format("Vehicle removed. Fare: $%.2f", record.getFare()));
         } else {
             JOptionPane.showMessageDialog(this, "This space is not occupied!");
         }
     }
 
-    private void removeVehicle(String licensePlate) {
-        ParkingSpace space = parkedCars.get(licensePlate);
-        if (space != null) {
-            long parkingDurationMillis = System.currentTimeMillis() - space.getEntryTime();
-            double parkingDurationHours = parkingDurationMillis / (60.0 * 60 * 1000);
-            totalParkingTime += parkingDurationHours;
-            totalParkedVehicles++;
-            
-            double fare = calculateFare(space.getVehicleType(), parkingDurationHours);
-            updateRevenue(fare);
-            
-            // Create a new ParkingRecord and add it to parkingHistory
-            parkingHistory.add(new ParkingRecord(licensePlate, space.getVehicleType(), space.getSpaceNumber(), space.getEntryTime(), System.currentTimeMillis(), fare));
-            updateParkedVehicleInFile(licensePlate, space.getEntryTime(), System.currentTimeMillis(), fare);
-            space.vacate();
-            parkedCars.remove(licensePlate);
-            availableSpaces++;
-            updateStatus();
-            updateHistoryPanel();
-            updateLotFile();
-            JOptionPane.showMessageDialog(this, String.format("Vehicle removed. Fare: $%.2f", fare));
-        } else {
-            JOptionPane.showMessageDialog(this, "Vehicle not found!");
+    // Engine events arrive on the calling gate's thread; UI work happens on the EDT, file work on the persistence writer
+    private class LotSubscriber implements ParkingEngine.Listener {
+        @Override
+        public void vehicleParked(int spaceNumber, String licensePlate, VehicleType vehicleType, long entryTime) {
+            SwingUtilities.invokeLater(() -> onVehicleParked(spaceNumber, licensePlate, vehicleType, entryTime));
         }
-    }
 
-    private void updateParkedVehicleInFile(String licensePlate, long entryTime, long exitTime, double fare) {
-        try {
-            List<String> lines = Files.readAllLines(Paths.get(PARKED_FILE));
-            List<String> updatedLines = new ArrayList<>();
-            for (String line : lines) {
-                String[] parts = line.split(",");
-                if (parts[0].equals(licensePlate) && parts.length == 4) {
-                    // Update the line with exit time and fare
-                    updatedLines.add(String.join(",", parts[0], parts[1], parts[2], parts[3], 
-                                     String.valueOf(exitTime), String.format("%.2f", fare)));
-                } else {
-                    updatedLines.add(line);
-                }
-            }
-            Files.write(Paths.get(PARKED_FILE), updatedLines);
-        } catch (IOException e) {
-            e.printStackTrace();
+        @Override
+        public void vehicleRemoved(ParkingRecord record) {
+            SwingUtilities.invokeLater(() -> onVehicleRemoved(record));
         }
     }
 
-    private void viewHistory() {
-        updateHistoryPanel();
-        cardLayout.show(contentPanel, "History");
+    private void onVehicleParked(int spaceNumber, String licensePlate, VehicleType vehicleType, long entryTime) {
+        if (currentLevel.contains(spaceNumber)) {
+            lotCanvas.spaceChanged(currentLevel.toLocal(spaceNumber));
+        }
     }
 
-    private ParkingSpace findAvailableSpace(int preferredSpace) {
-        if (preferredSpace > 0 && preferredSpace <= TOTAL_SPACES) {
-            ParkingSpace space = (ParkingSpace) parkingLot.getComponent(preferredSpace - 1);
-            if (!space.isOccupied()) {
-                return space;
-            }
-        }
-        for (Component component : parkingLot.getComponents()) {
-            ParkingSpace space = (ParkingSpace) component;
-            if (!space.isOccupied()) {
-                return space;
-            }
+    private void onVehicleRemoved(ParkingRecord record) {
+        if (currentLevel.contains(record.getSpaceNumber())) {
+            lotCanvas.spaceChanged(currentLevel.toLocal(record.getSpaceNumber()));
         }
-        return null;
     }
 
-    private double calculateFare(String vehicleType, double hours) {
-        int hourlyRate = hourlyRates.getOrDefault(vehicleType.toLowerCase(), 0);
-        return hourlyRate * Math.ceil(hours);
+    private void viewHistory() {
+        showCard("History");
     }
 
     private void updateStatus() {
-        int occupied = parkedCars.size();
-        int available = TOTAL_SPACES - occupied;
-        double totalFare = parkingHistory.stream().mapToDouble(ParkingRecord::getFare).sum();
+        updateStatus(metricsModel.snapshot());
+    }
 
-        availableSpacesLabel.setText("Available: " + available);
-        occupiedSpacesLabel.setText("Occupied: " + occupied);
-        totalFareLabel.setText(String.format("Total Fare: $%.2f", totalFare));
+    private void updateStatus(MetricsModel.Snapshot metrics) {
+        availableSpacesLabel.setText("Available: " + metrics.getAvailableSpaces());
+        occupiedSpacesLabel.setText("Occupied: " + metrics.getOccupiedSpaces());
+        updateLevelStatus();
+        for (VehicleType type : VehicleType.values()) {
+            int free = garage.getAvailableSpaces(type);
+            JLabel label = vehicleAvailabilityLabels[type.ordinal()];
+            label.setText(free == 0 ? "Lot full for " + type.getLabel().toLowerCase() + "s" : type.getLabel() + ": " + free + " free");
+            label.setForeground(free == 0 ? Color.RED : availableSpacesLabel.getForeground());
+        }
         
         // Update today's revenue display
         if (totalFareLabel != null) {
-            totalFareLabel.setText(String.format("Today's Revenue: $%.2f", todayRevenue));
+            totalFareLabel.setText(String.format("Today's Revenue: $%.2f", metrics.getTodayRevenue()));
+        }
+    }
+
+    private void metricsChanged(MetricsModel.Snapshot metrics) {
+        updateStatus(metrics);
+        if (dashboardPanel != null && dashboardPanel.isShowing()) {
+            updateDashboard(metrics);
         }
     }
 
@@ -355,14 +446,14 @@ public class ParkingSystem extends JFrame {
         });
         
         modeToggleButton.setText(isDarkMode ? "Light Mode" : "Dark Mode");
+        themeBackground = bgColor;
+        themeForeground = fgColor;
     }
 
     private void updateComponentColors(Container container, Color bg, Color fg) {
         for (Component comp : container.getComponents()) {
-            if (!(comp instanceof ParkingSpace)) {
-                comp.setBackground(bg);
-                comp.setForeground(fg);
-            }
+            comp.setBackground(bg);
+            comp.setForeground(fg);
             if (comp instanceof JPanel) {
                 ((JPanel) comp).setOpaque(true);
             }
@@ -384,128 +475,6 @@ public class ParkingSystem extends JFrame {
         }
     }
 
-    private class ParkingSpace extends JButton {
-        private int spaceNumber;
-        private boolean occupied;
-        private String vehicleType;
-        private String licensePlate;
-        private long entryTime;
-        private ImageIcon carIcon;
-        private ImageIcon motorIcon;
-        private ImageIcon truckIcon;
-
-        public ParkingSpace(int spaceNumber) {
-            this.spaceNumber = spaceNumber;
-            this.occupied = false;
-            setText(String.valueOf(spaceNumber));
-            setBackground(Color.GREEN);
-            
-            // Load icons
-            carIcon = new ImageIcon("img/car.png");
-            motorIcon = new ImageIcon("img/motor.png");
-            truckIcon = new ImageIcon("img/truck.png");
-            
-            // Resize icons
-            carIcon = resizeIcon(carIcon, 40, 40);
-            motorIcon = resizeIcon(motorIcon, 20, 40);  // Narrower width for motor
-            truckIcon = resizeIcon(truckIcon, 30, 40);  // Slightly narrower width for truck
-        }
-
-        public void occupy(String vehicleType, String licensePlate) {
-            this.occupied = true;
-            this.vehicleType = vehicleType;
-            this.licensePlate = licensePlate;
-            this.entryTime = System.currentTimeMillis();
-            setBackground(Color.RED);
-            setText(null);  // Remove text
-            setIcon(getVehicleIcon(vehicleType));
-            setToolTipText("Space: " + spaceNumber + ", Type: " + vehicleType + ", Plate: " + licensePlate);
-        }
-
-        public void vacate() {
-            this.occupied = false;
-            this.vehicleType = null;
-            this.licensePlate = null;
-            this.entryTime = 0;
-            setBackground(Color.GREEN);
-            setText(String.valueOf(spaceNumber));
-            setIcon(null);  // Remove icon
-            setToolTipText(null);
-        }
-
-        private ImageIcon getVehicleIcon(String vehicleType) {
-            switch (vehicleType.toLowerCase()) {
-                case "car":
-                    return carIcon;
-                case "motor":
-                    return motorIcon;
-                case "truck":
-                    return truckIcon;
-                default:
-                    return null;
-            }
-        }
-
-        private ImageIcon resizeIcon(ImageIcon icon, int width, int height) {
-            Image img = icon.getImage();
-            Image resizedImg = img.getScaledInstance(width, height, Image.SCALE_SMOOTH);
-            return new ImageIcon(resizedImg);
-        }
-
-        public boolean isOccupied() {
-            return occupied;
-        }
-
-        public int getSpaceNumber() {
-            return spaceNumber;
-        }
-
-        public String getVehicleType() {
-            return vehicleType;
-        }
-
-        public String getLicensePlate() {
-            return licensePlate;
-        }
-
-        public long getEntryTime() {
-            return entryTime;
-        }
-
-        public void setEntryTime(long entryTime) {
-            this.entryTime = entryTime;
-        }
-    }
-
-    private class ParkingRecord {
-        private String licensePlate;
-        private String vehicleType;
-        private int spaceNumber;
-        private long entryTime;
-        private long exitTime;
-        private double fare;
-
-        public ParkingRecord(String licensePlate, String vehicleType, int spaceNumber, long entryTime, long exitTime, double fare) {
-            this.licensePlate = licensePlate;
-            this.vehicleType = vehicleType;
-            this.spaceNumber = spaceNumber;
-            this.entryTime = entryTime;
-            this.exitTime = exitTime;
-            this.fare = fare;
-        }
-
-        public double getFare() {
-            return fare;
-        }
-
-        @Override
-        public String toString() {
-            long durationHours = (exitTime - entryTime) / (60 * 60 * 1000);
-            return String.format("License: %s, Type: %s, Space Number: %d, Entry Time: %s, Exit Time: %s, Duration: %d hours, Fare: $%.2f",
-                    licensePlate, vehicleType, spaceNumber, entryTime, exitTime, durationHours, fare);
-        }
-    }
-
     private void createDashboardPanel() {
         dashboardPanel = new JPanel(new GridBagLayout());
         dashboardPanel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
@@ -527,29 +496,77 @@ public class ParkingSystem extends JFrame {
         gbc.weighty = 0.5;
         dashboardPanel.add(statsPanel, gbc);
 
-        // Refresh button
-        JButton refreshButton = new JButton("Refresh Dashboard");
-        refreshButton.setFont(new Font("Arial", Font.BOLD, 14));
-        refreshButton.addActionListener(e -> updateDashboard());
-        gbc.fill = GridBagConstraints.NONE;
+        // Occupancy over time
         gbc.weighty = 0.0;
-        gbc.anchor = GridBagConstraints.CENTER;
-        dashboardPanel.add(refreshButton, gbc);
+        dashboardPanel.add(createOccupancyPanel(), gbc);
+    }
+
+    private JPanel createOccupancyPanel() {
+        JPanel panel = new JPanel(new BorderLayout(5, 5));
+        panel.setBackground(Color.WHITE);
+        panel.setBorder(new CompoundBorder(new LineBorder(new Color(200, 200, 200), 1),
+                                           BorderFactory.createEmptyBorder(10, 10, 10, 10)));
+
+        JPanel header = new JPanel(new BorderLayout(10, 0));
+        header.setOpaque(false);
+        header.add(createStyledLabel("Occupancy", 14, Font.BOLD), BorderLayout.WEST);
+        occupancyRangeBox = new JComboBox<>(OCCUPANCY_RANGES);
+        occupancyRangeBox.addActionListener(e -> updateOccupancyChart());
+        header.add(occupancyRangeBox, BorderLayout.EAST);
+        panel.add(header, BorderLayout.NORTH);
+
+        occupancySparkline = new Sparkline();
+        panel.add(occupancySparkline, BorderLayout.CENTER);
+
+        occupancySummaryLabel = createStyledLabel(" ", 14, Font.PLAIN);
+        panel.add(occupancySummaryLabel, BorderLayout.SOUTH);
+        return panel;
+    }
+
+    // Plots the peak occupancy of each minute, hour or day in the chosen range
+    private void updateOccupancyChart() {
+        int range = occupancyRangeBox.getSelectedIndex();
+        OccupancySeries.Window window = occupancySeries.window(OCCUPANCY_RESOLUTIONS[range], OCCUPANCY_PERIODS[range]);
+        int[] peaks = new int[window.size()];
+        int peak = 0;
+        long arrivals = 0;
+        for (int i = 0; i < peaks.length; i++) {
+            peaks[i] = window.getPeak(i);
+            peak = Math.max(peak, peaks[i]);
+            arrivals += window.getArrivals(i);
+        }
+        occupancySparkline.setValues(peaks, garage.getTotalSpaces());
+        occupancySummaryLabel.setText(String.format("Peak %d of %d spaces, %d arrivals", peak, garage.getTotalSpaces(), arrivals));
     }
 
     private JPanel createStatsPanel() {
-        JPanel statsPanel = new JPanel(new GridLayout(2, 2, 20, 20));
+        JPanel statsPanel = new JPanel(new GridLayout(4, 2, 20, 20));
         statsPanel.setOpaque(false);
 
-        statsPanel.add(createStatPanel("Available Spaces", availableSpaces + "", "spaces"));
-        statsPanel.add(createStatPanel("Occupied Spaces", (TOTAL_SPACES - availableSpaces) + "", "spaces"));
-        statsPanel.add(createStatPanel("Average Parking Time", "0.00", "hours"));
-        statsPanel.add(createStatPanel("Today's Revenue", "$0.00", ""));
-
+        availableValueLabel = createStyledLabel("", 24, Font.BOLD);
+        occupiedValueLabel = createStyledLabel("", 24, Font.BOLD);
+        averageStayValueLabel = createStyledLabel("", 24, Font.BOLD);
+        todayRevenueValueLabel = createStyledLabel("", 24, Font.BOLD);
+        sessionsValueLabel = createStyledLabel("", 24, Font.BOLD);
+        sessionsUnitLabel = createStyledLabel("", 14, Font.PLAIN);
+        faresValueLabel = createStyledLabel("", 24, Font.BOLD);
+        entriesValueLabel = createStyledLabel("", 24, Font.BOLD);
+        exitsValueLabel = createStyledLabel("", 24, Font.BOLD);
+
+        statsPanel.add(createStatPanel("Available Spaces", availableValueLabel, createStyledLabel("spaces", 14, Font.PLAIN)));
+        statsPanel.add(createStatPanel("Occupied Spaces", occupiedValueLabel, createStyledLabel("spaces", 14, Font.PLAIN)));
+        statsPanel.add(createStatPanel("Average Parking Time", averageStayValueLabel, createStyledLabel("hours", 14, Font.PLAIN)));
+        statsPanel.add(createStatPanel("Today's Revenue", todayRevenueValueLabel, createStyledLabel("", 14, Font.PLAIN)));
+        statsPanel.add(createStatPanel("Completed Sessions", sessionsValueLabel, sessionsUnitLabel));
+        statsPanel.add(createStatPanel("Fares Collected", faresValueLabel, createStyledLabel("since startup", 14, Font.PLAIN)));
+        statsPanel.add(createStatPanel("Entries", entriesValueLabel, createStyledLabel("per minute", 14, Font.PLAIN)));
+        statsPanel.add(createStatPanel("Exits", exitsValueLabel, createStyledLabel("per minute", 14, Font.PLAIN)));
+
+        updateDashboard(metricsModel.snapshot());
         return statsPanel;
     }
 
-    private JPanel createStatPanel(String title, String value, String unit) {
+    private JPanel createStatPanel(String title, JLabel valueLabel, JLabel unitLabel) {
         JPanel panel = new JPanel(new BorderLayout(5, 5));
         panel.setBackground(Color.WHITE);
         panel.setBorder(new CompoundBorder(new LineBorder(new Color(200, 200, 200), 1), 
@@ -557,11 +574,7 @@ public class ParkingSystem extends JFrame {
 
         JLabel titleLabel = createStyledLabel(title, 14, Font.BOLD);
         panel.add(titleLabel, BorderLayout.NORTH);
-
-        JLabel valueLabel = createStyledLabel(value, 24, Font.BOLD);
         panel.add(valueLabel, BorderLayout.CENTER);
-
-        JLabel unitLabel = createStyledLabel(unit, 14, Font.PLAIN);
         panel.add(unitLabel, BorderLayout.SOUTH);
 
         return panel;
@@ -576,62 +589,98 @@ public class ParkingSystem extends JFrame {
         return label;
     }
 
-    private void updateDashboard() {
-        Component[] components = dashboardPanel.getComponents();
-        for (Component component : components) {
-            if (component instanceof JPanel && ((JPanel) component).getLayout() instanceof GridLayout) {
-                JPanel statsPanel = (JPanel) component;
-                for (Component statComponent : statsPanel.getComponents()) {
-                    if (statComponent instanceof JPanel) {
-                        JPanel statPanel = (JPanel) statComponent;
-                        JLabel titleLabel = (JLabel) statPanel.getComponent(0);
-                        JLabel valueLabel = (JLabel) statPanel.getComponent(1);
-                        
-                        switch (titleLabel.getText()) {
-                            case "Available Spaces":
-                                valueLabel.setText(String.valueOf(availableSpaces));
-                                break;
-                            case "Occupied Spaces":
-                                valueLabel.setText(String.valueOf(TOTAL_SPACES - availableSpaces));
-                                break;
-                            case "Average Parking Time":
-                                double avgParkingTime = totalParkedVehicles > 0 ? (double) totalParkingTime / totalParkedVehicles : 0;
-                                valueLabel.setText(String.format("%.2f", avgParkingTime));
-                                break;
-                            case "Today's Revenue":
-                                valueLabel.setText(String.format("$%.2f", todayRevenue));
-                                break;
-                        }
-                    }
-                }
+    // Only labels whose text changed are revalidated and repainted by Swing
+    private void updateDashboard(MetricsModel.Snapshot metrics) {
+        availableValueLabel.setText(String.valueOf(metrics.getAvailableSpaces()));
+        occupiedValueLabel.setText(String.valueOf(metrics.getOccupiedSpaces()));
+        averageStayValueLabel.setText(String.format("%.2f", metrics.getAverageStayHours()));
+        todayRevenueValueLabel.setText(String.format("$%.2f", metrics.getTodayRevenue()));
+        sessionsValueLabel.setText(String.valueOf(metrics.getSessionCount()));
+        sessionsUnitLabel.setText(sessionBreakdown(metrics));
+        faresValueLabel.setText(String.format("$%.2f", metrics.getTotalFare()));
+        entriesValueLabel.setText(String.valueOf(metrics.getEntriesPerMinute()));
+        exitsValueLabel.setText(String.valueOf(metrics.getExitsPerMinute()));
+        if (occupancySparkline != null) {
+            updateOccupancyChart();
+        }
+    }
+
+    private static String sessionBreakdown(MetricsModel.Snapshot metrics) {
+        StringBuilder breakdown = new StringBuilder();
+        for (VehicleType type : VehicleType.values()) {
+            if (breakdown.length() > 0) {
+                breakdown.append(", ");
             }
+            breakdown.append(type.getLabel()).append(' ').append(metrics.getSessionCount(type));
         }
+        return breakdown.toString();
     }
 
     private void showDashboard() {
-        updateDashboard();
-        cardLayout.show(contentPanel, "Dashboard");
+        showCard("Dashboard");
+        updateDashboard(metricsModel.snapshot());
     }
 
     private void showParkingLot() {
-        cardLayout.show(contentPanel, "ParkingLot");
+        showCard("ParkingLot");
     }
 
     private void showRevenue() {
-        cardLayout.show(contentPanel, "Revenue");
+        showCard("Revenue");
     }
 
     private void showParkingRates() {
-        cardLayout.show(contentPanel, "ParkingRates");
+        showCard("ParkingRates");
     }
 
     private void showSettings() {
-        cardLayout.show(contentPanel, "Settings");
+        showCard("Settings");
+    }
+
+    private void showCard(String name) {
+        if (builtCards.add(name)) {
+            long startNanos = System.nanoTime();
+            JPanel card = createCard(name);
+            applyTheme(card);
+            contentPanel.add(card, name);
+            ParkingBackend.logStartup(name + " panel", startNanos);
+        }
+        cardLayout.show(contentPanel, name);
     }
 
-    private void createHistoryPanel() {
-        String[] columnNames = {"Date", "Plate Number", "Vehicle Type", "Space Number", "Entry Time", "Exit Time", "Duration", "Fare"};
-        historyTableModel = new DefaultTableModel(columnNames, 0);
+    private JPanel createCard(String name) {
+        switch (name) {
+            case "Dashboard":
+                createDashboardPanel();
+                return dashboardPanel;
+            case "Revenue":
+                createRevenuePanel();
+                return revenuePanel;
+            case "ParkingRates":
+                createParkingRatesPanel();
+                return parkingRatesPanel;
+            case "Settings":
+                createSettingsPanel();
+                return settingsPanel;
+            case "History":
+                return createHistoryPanel();
+            default:
+                throw new IllegalArgumentException("Unknown card: " + name);
+        }
+    }
+
+    private void applyTheme(JPanel card) {
+        if (themeBackground != null) {
+            card.setBackground(themeBackground);
+            card.setForeground(themeForeground);
+            updateComponentColors(card, themeBackground, themeForeground);
+        }
+        if (themeFont != null) {
+            updateComponentFonts(card, themeFont);
+        }
+    }
+
+    private JPanel createHistoryPanel() {
         historyTable = new JTable(historyTableModel);
         historyTable.setFillsViewportHeight(true);
 
@@ -640,108 +689,88 @@ public class ParkingSystem extends JFrame {
         
         JPanel historyPanel = new JPanel(new BorderLayout());
         historyPanel.add(scrollPane, BorderLayout.CENTER);
-        
+
+        // Plate and/or entry date range; dates are yyyy-MM-dd or yyyy-MM-dd HH:mm
+        JPanel searchPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        historyPlateField = new JTextField(12);
+        historyFromField = new JTextField(12);
+        historyToField = new JTextField(12);
+        historySearchStatus = new JLabel(" ");
+        searchPanel.add(new JLabel("Plate:"));
+        searchPanel.add(historyPlateField);
+        searchPanel.add(new JLabel("Entered from:"));
+        searchPanel.add(historyFromField);
+        searchPanel.add(new JLabel("to:"));
+        searchPanel.add(historyToField);
+        JButton searchButton = new JButton("Search");
+        searchButton.addActionListener(e -> searchHistory());
+        searchPanel.add(searchButton);
+        JButton clearButton = new JButton("Clear");
+        clearButton.addActionListener(e -> clearHistorySearch());
+        searchPanel.add(clearButton);
+        searchPanel.add(historySearchStatus);
+        historyPlateField.addActionListener(e -> searchHistory());
+        historyFromField.addActionListener(e -> searchHistory());
+        historyToField.addActionListener(e -> searchHistory());
+        historyPanel.add(searchPanel, BorderLayout.NORTH);
+        if (historyTableModel.isSearching()) {
+            historyTableModel.clearSearch();
+        }
+
         JButton refreshButton = new JButton("Refresh History");
-        refreshButton.addActionListener(e -> updateHistoryPanel());
+        refreshButton.addActionListener(e -> historyTableModel.reload());
         historyPanel.add(refreshButton, BorderLayout.SOUTH);
-        
-        contentPanel.add(historyPanel, "History");
+        return historyPanel;
     }
 
-    private void updateHistoryPanel() {
-        historyTableModel.setRowCount(0); // Clear existing rows
+    private void searchHistory() {
+        String plate = historyPlateField.getText().trim();
+        long from;
+        long to;
         try {
-            List<String> lines = Files.readAllLines(Paths.get(PARKED_FILE));
-            for (String line : lines) {
-                String[] parts = line.split(",");
-                if (parts.length >= 4) {
-                    String licensePlate = parts[0];
-                    String vehicleType = parts[1];
-                    int spaceNumber = Integer.parseInt(parts[2]);
-                    long entryTime = Long.parseLong(parts[3]);
-                    
-                    LocalDateTime entryDateTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(entryTime), ZoneId.systemDefault());
-                    String formattedDate = entryDateTime.format(DateTimeFormatter.ofPattern("yyyy-MM-dd"));
-                    String formattedEntryTime = entryDateTime.format(DateTimeFormatter.ofPattern("HH:mm:ss"));
-                    
-                    String exitTime = "-";
-                    String duration = "-";
-                    String fare = "-";
-                    
-                    if (parts.length == 6) {
-                        // Vehicle has left, update exit time, duration, and fare
-                        long exitTimeMillis = Long.parseLong(parts[4]);
-                        LocalDateTime exitDateTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(exitTimeMillis), ZoneId.systemDefault());
-                        exitTime = exitDateTime.format(DateTimeFormatter.ofPattern("HH:mm:ss"));
-                        duration = String.format("%.2f", (exitTimeMillis - entryTime) / (60.0 * 60 * 1000)) + " hours";
-                        fare = "$" + parts[5];
-                    }
-                    
-                    historyTableModel.addRow(new Object[]{
-                        formattedDate,
-                        licensePlate,
-                        vehicleType,
-                        spaceNumber,
-                        formattedEntryTime,
-                        exitTime,
-                        duration,
-                        fare
-                    });
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(this, "Error reading parking history: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            from = parseSearchTime(historyFromField.getText().trim(), false);
+            to = parseSearchTime(historyToField.getText().trim(), true);
+        } catch (DateTimeParseException e) {
+            JOptionPane.showMessageDialog(this, "Invalid date: " + e.getParsedString() + " (use yyyy-MM-dd or yyyy-MM-dd HH:mm)", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (plate.isEmpty() && from == Long.MIN_VALUE && to == Long.MAX_VALUE) {
+            clearHistorySearch();
+            return;
         }
-    }
-
-    private void updateLotFile() {
         try {
-            List<String> lotStatus = new ArrayList<>();
-            for (Component component : parkingLot.getComponents()) {
-                ParkingSpace space = (ParkingSpace) component;
-                String status = space.getSpaceNumber() + "," +
-                                (space.isOccupied() ? "occupied" : "available") + "," +
-                                (space.getVehicleType() != null ? space.getVehicleType() : "") + "," +
-                                (space.getLicensePlate() != null ? space.getLicensePlate() : "") + "," +
-                                (space.getEntryTime() != 0 ? space.getEntryTime() : "");
-                lotStatus.add(status);
-            }
-            Files.write(Paths.get(LOT_FILE), lotStatus, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            int total = historyTableModel.search(plate, from, to);
+            int shown = historyTableModel.getRowCount();
+            historySearchStatus.setText(shown < total
+                    ? String.format("Showing first %d of %d sessions", shown, total)
+                    : String.format("%d sessions", total));
         } catch (IOException e) {
             e.printStackTrace();
-            JOptionPane.showMessageDialog(this, "Error updating lot file: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            JOptionPane.showMessageDialog(this, "Error searching parking history: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
         }
     }
 
-    private void loadLotStatus() {
-        try {
-            if (Files.exists(Paths.get(LOT_FILE))) {
-                List<String> lines = Files.readAllLines(Paths.get(LOT_FILE));
-                for (String line : lines) {
-                    String[] parts = line.split(",");
-                    if (parts.length == 5) {
-                        int spaceNumber = Integer.parseInt(parts[0]);
-                        boolean isOccupied = parts[1].equals("occupied");
-                        String vehicleType = parts[2].isEmpty() ? null : parts[2];
-                        String licensePlate = parts[3].isEmpty() ? null : parts[3];
-                        long entryTime = parts[4].isEmpty() ? 0 : Long.parseLong(parts[4]);
-
-                        ParkingSpace space = (ParkingSpace) parkingLot.getComponent(spaceNumber - 1);
-                        if (isOccupied) {
-                            space.occupy(vehicleType, licensePlate);
-                            space.setEntryTime(entryTime);
-                            parkedCars.put(licensePlate, space);
-                            availableSpaces--;
-                        }
-                    }
-                }
-                updateStatus();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(this, "Error loading lot status: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+    private void clearHistorySearch() {
+        historyPlateField.setText("");
+        historyFromField.setText("");
+        historyToField.setText("");
+        historySearchStatus.setText(" ");
+        historyTableModel.clearSearch();
+    }
+
+    // Empty means unbounded; a bare date as the upper bound includes that whole day
+    private static long parseSearchTime(String text, boolean upperBound) {
+        if (text.isEmpty()) {
+            return upperBound ? Long.MAX_VALUE : Long.MIN_VALUE;
+        }
+        LocalDateTime time;
+        if (text.length() <= 10) {
+            LocalDate date = LocalDate.parse(text);
+            time = (upperBound ? date.plusDays(1) : date).atStartOfDay();
+        } else {
+            time = LocalDateTime.parse(text, SEARCH_DATE_TIME_FORMAT);
         }
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 
     private void createRevenuePanel() {
@@ -754,23 +783,31 @@ public class ParkingSystem extends JFrame {
         revenueTabbedPane = new JTabbedPane();
 
         // Daily Revenue
-        dailyRevenueTableModel = new DefaultTableModel(new String[]{"Date", "Total Revenue"}, 0);
+        dailyRevenueTableModel = new DefaultTableModel(revenueColumns("Date"), 0);
         dailyRevenueTable = new JTable(dailyRevenueTableModel);
         JScrollPane dailyScrollPane = new JScrollPane(dailyRevenueTable);
         revenueTabbedPane.addTab("Daily", dailyScrollPane);
 
         // Weekly Revenue
-        weeklyRevenueTableModel = new DefaultTableModel(new String[]{"Week", "Total Revenue"}, 0);
+        weeklyRevenueTableModel = new DefaultTableModel(revenueColumns("Week"), 0);
         weeklyRevenueTable = new JTable(weeklyRevenueTableModel);
         JScrollPane weeklyScrollPane = new JScrollPane(weeklyRevenueTable);
         revenueTabbedPane.addTab("Weekly", weeklyScrollPane);
 
         // Monthly Revenue
-        monthlyRevenueTableModel = new DefaultTableModel(new String[]{"Month", "Total Revenue"}, 0);
+        monthlyRevenueTableModel = new DefaultTableModel(revenueColumns("Month"), 0);
         monthlyRevenueTable = new JTable(monthlyRevenueTableModel);
         JScrollPane monthlyScrollPane = new JScrollPane(monthlyRevenueTable);
         revenueTabbedPane.addTab("Monthly", monthlyScrollPane);
 
+        // Yearly Revenue
+        yearlyRevenueTableModel = new DefaultTableModel(revenueColumns("Year"), 0);
+        revenueTabbedPane.addTab("Yearly", new JScrollPane(new JTable(yearlyRevenueTableModel)));
+
+        // Revenue by Space
+        spaceRevenueTableModel = new DefaultTableModel(new String[]{"Space", "This Month", "This Year", "All Time"}, 0);
+        revenueTabbedPane.addTab("By Space", new JScrollPane(new JTable(spaceRevenueTableModel)));
+
         revenuePanel.add(revenueTabbedPane, BorderLayout.CENTER);
 
         JButton refreshButton = new JButton("Refresh Revenue Data");
@@ -778,104 +815,154 @@ public class ParkingSystem extends JFrame {
         revenuePanel.add(refreshButton, BorderLayout.SOUTH);
 
         // Initial data load
-        loadRevenueData();
         refreshRevenueData();
     }
 
-    private void loadRevenueData() {
-        revenueData.clear();
-        try {
-            if (Files.exists(Paths.get(REVENUE_FILE))) {
-                List<String> lines = Files.readAllLines(Paths.get(REVENUE_FILE));
-                for (String line : lines) {
-                    String[] parts = line.split(",");
-                    if (parts.length == 2) {
-                        LocalDate date = LocalDate.parse(parts[0]);
-                        double revenue = Double.parseDouble(parts[1]);
-                        revenueData.put(date, revenue);
-                    }
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(this, "Error loading revenue data: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+    // Every revenue table has a total column followed by one column per vehicle type
+    private static String[] revenueColumns(String period) {
+        VehicleType[] types = VehicleType.values();
+        String[] columns = new String[types.length + 2];
+        columns[0] = period;
+        columns[1] = "Total Revenue";
+        for (int i = 0; i < types.length; i++) {
+            columns[i + 2] = types[i].getLabel();
+        }
+        return columns;
+    }
+
+    private static Object[] revenueRow(String label, long totalCents, long[] typeCents) {
+        Object[] row = new Object[typeCents.length + 2];
+        row[0] = label;
+        row[1] = formatCents(totalCents);
+        for (int i = 0; i < typeCents.length; i++) {
+            row[i + 2] = formatCents(typeCents[i]);
         }
+        return row;
+    }
+
+    private static String formatCents(long cents) {
+        return String.format("$%.2f", cents / 100.0);
     }
-    
+
+    // All tables are read straight from the revenue cube's range totals
     private void refreshRevenueData() {
         refreshDailyRevenueData();
         refreshWeeklyRevenueData();
         refreshMonthlyRevenueData();
+        refreshYearlyRevenueData();
+        refreshSpaceRevenueData();
+    }
+
+    // Empty when revenue.txt could not be opened
+    private RevenueCube revenueCube() {
+        return revenueLedger != null ? revenueLedger.getCube() : new RevenueCube();
     }
 
     private void refreshDailyRevenueData() {
         dailyRevenueTableModel.setRowCount(0);
+        RevenueCube cube = revenueCube();
+        LocalDate first = cube.getFirstDay();
+        if (first == null) {
+            return;
+        }
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd");
-        for (Map.Entry<LocalDate, Double> entry : revenueData.entrySet()) {
-            String formattedDate = entry.getKey().format(formatter);
-            String formattedRevenue = String.format("$%.2f", entry.getValue());
-            dailyRevenueTableModel.addRow(new Object[]{formattedDate, formattedRevenue});
+        VehicleType[] types = VehicleType.values();
+        for (LocalDate day = first; !day.isAfter(cube.getLastDay()); day = day.plusDays(1)) {
+            long total = cube.getDayCents(day);
+            if (total != 0) {
+                long[] byType = new long[types.length];
+                for (int i = 0; i < types.length; i++) {
+                    byType[i] = cube.getDayCents(day, types[i]);
+                }
+                dailyRevenueTableModel.addRow(revenueRow(day.format(formatter), total, byType));
+            }
         }
     }
 
     private void refreshWeeklyRevenueData() {
         weeklyRevenueTableModel.setRowCount(0);
-        Map<Integer, Double> weeklyRevenue = new TreeMap<>();
-        WeekFields weekFields = WeekFields.of(Locale.getDefault());
-
-        for (Map.Entry<LocalDate, Double> entry : revenueData.entrySet()) {
-            int weekNumber = entry.getKey().get(weekFields.weekOfWeekBasedYear());
-            weeklyRevenue.merge(weekNumber, entry.getValue(), Double::sum);
+        RevenueCube cube = revenueCube();
+        LocalDate first = cube.getFirstDay();
+        if (first == null) {
+            return;
         }
-
-        for (Map.Entry<Integer, Double> entry : weeklyRevenue.entrySet()) {
-            String weekLabel = "Week " + entry.getKey();
-            String formattedRevenue = String.format("$%.2f", entry.getValue());
-            weeklyRevenueTableModel.addRow(new Object[]{weekLabel, formattedRevenue});
+        VehicleType[] types = VehicleType.values();
+        // ISO weeks, labelled with their week-based year so weeks of different years stay apart
+        for (LocalDate monday = RevenueCube.weekStart(first); !monday.isAfter(cube.getLastDay()); monday = monday.plusWeeks(1)) {
+            long total = cube.getWeekCents(monday);
+            if (total != 0) {
+                long[] byType = new long[types.length];
+                for (int i = 0; i < types.length; i++) {
+                    byType[i] = cube.getWeekCents(monday, types[i]);
+                }
+                weeklyRevenueTableModel.addRow(revenueRow(RevenueCube.weekLabel(monday), total, byType));
+            }
         }
     }
 
     private void refreshMonthlyRevenueData() {
         monthlyRevenueTableModel.setRowCount(0);
-        Map<YearMonth, Double> monthlyRevenue = new TreeMap<>();
-
-        for (Map.Entry<LocalDate, Double> entry : revenueData.entrySet()) {
-            YearMonth yearMonth = YearMonth.from(entry.getKey());
-            monthlyRevenue.merge(yearMonth, entry.getValue(), Double::sum);
+        RevenueCube cube = revenueCube();
+        LocalDate first = cube.getFirstDay();
+        if (first == null) {
+            return;
         }
-
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("MMMM yyyy");
-        for (Map.Entry<YearMonth, Double> entry : monthlyRevenue.entrySet()) {
-            String monthLabel = entry.getKey().format(formatter);
-            String formattedRevenue = String.format("$%.2f", entry.getValue());
-            monthlyRevenueTableModel.addRow(new Object[]{monthLabel, formattedRevenue});
+        VehicleType[] types = VehicleType.values();
+        YearMonth last = YearMonth.from(cube.getLastDay());
+        for (YearMonth month = YearMonth.from(first); !month.isAfter(last); month = month.plusMonths(1)) {
+            long total = cube.getMonthCents(month);
+            if (total != 0) {
+                long[] byType = new long[types.length];
+                for (int i = 0; i < types.length; i++) {
+                    byType[i] = cube.getMonthCents(month, types[i]);
+                }
+                monthlyRevenueTableModel.addRow(revenueRow(month.format(formatter), total, byType));
+            }
         }
     }
 
-    private void updateRevenue(double amount) {
-        LocalDate today = LocalDate.now();
-        todayRevenue += amount;
-        
-        try {
-            List<String> lines = Files.readAllLines(Paths.get(REVENUE_FILE));
-            boolean updated = false;
-            for (int i = 0; i < lines.size(); i++) {
-                String[] parts = lines.get(i).split(",");
-                if (parts.length == 2 && LocalDate.parse(parts[0]).equals(today)) {
-                    lines.set(i, today + "," + todayRevenue);
-                    updated = true;
-                    break;
+    private void refreshYearlyRevenueData() {
+        yearlyRevenueTableModel.setRowCount(0);
+        RevenueCube cube = revenueCube();
+        LocalDate first = cube.getFirstDay();
+        if (first == null) {
+            return;
+        }
+        VehicleType[] types = VehicleType.values();
+        for (int year = first.getYear(); year <= cube.getLastDay().getYear(); year++) {
+            long total = cube.getYearCents(year);
+            if (total != 0) {
+                long[] byType = new long[types.length];
+                for (int i = 0; i < types.length; i++) {
+                    byType[i] = cube.getYearCents(year, types[i]);
                 }
+                yearlyRevenueTableModel.addRow(revenueRow(String.valueOf(year), total, byType));
             }
-            if (!updated) {
-                lines.add(today + "," + todayRevenue);
-            }
-            Files.write(Paths.get(REVENUE_FILE), lines);
-        } catch (IOException e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(this, "Error updating revenue: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
         }
-        updateStatus();
+    }
+
+    private void refreshSpaceRevenueData() {
+        spaceRevenueTableModel.setRowCount(0);
+        RevenueCube cube = revenueCube();
+        YearMonth[] months = cube.getSpaceMonthRange();
+        if (months == null) {
+            return;
+        }
+        YearMonth thisMonth = YearMonth.now();
+        YearMonth january = YearMonth.of(thisMonth.getYear(), 1);
+        for (int space = 1; space <= cube.getMaxSpace(); space++) {
+            spaceRevenueTableModel.addRow(new Object[]{
+                space,
+                formatCents(cube.getSpaceCents(space, thisMonth, thisMonth)),
+                formatCents(cube.getSpaceCents(space, january, thisMonth)),
+                formatCents(cube.getSpaceCents(space, months[0], months[1]))
+            });
+        }
+    }
+
+    private Tariff currentTariff() {
+        return backend.currentTariff();
     }
 
     private void createParkingRatesPanel() {
@@ -886,7 +973,7 @@ public class ParkingSystem extends JFrame {
         parkingRatesPanel.add(titleLabel, BorderLayout.NORTH);
 
         // Create table model and table
-        String[] columnNames = {"Vehicle Type", "Hourly Rate"};
+        String[] columnNames = {"Vehicle Type", "Rates"};
         ratesTableModel = new DefaultTableModel(columnNames, 0);
         ratesTable = new JTable(ratesTableModel);
         ratesTable.setFillsViewportHeight(true);
@@ -904,6 +991,10 @@ public class ParkingSystem extends JFrame {
         editRatesButton.addActionListener(e -> editParkingRates());
         buttonPanel.add(editRatesButton);
 
+        JButton analyzeButton = new JButton("Analyze Impact");
+        analyzeButton.addActionListener(e -> analyzeRateChange());
+        buttonPanel.add(analyzeButton);
+
         JButton refreshButton = new JButton("Refresh Rates");
         refreshButton.addActionListener(e -> refreshRatesDisplay());
         buttonPanel.add(refreshButton);
@@ -914,59 +1005,176 @@ public class ParkingSystem extends JFrame {
     }
 
     private void refreshRatesDisplay() {
+        if (ratesTableModel == null) {
+            return;
+        }
         ratesTableModel.setRowCount(0); // Clear existing rows
-        for (Map.Entry<String, Integer> entry : hourlyRates.entrySet()) {
-            String vehicleType = entry.getKey().substring(0, 1).toUpperCase() + entry.getKey().substring(1);
-            String rate = "$" + entry.getValue() + "/hour";
-            ratesTableModel.addRow(new Object[]{vehicleType, rate});
+        Tariff current = currentTariff();
+        for (VehicleType type : VehicleType.values()) {
+            ratesTableModel.addRow(new Object[]{type.getLabel(), current.describe(type)});
         }
     }
 
+    private static final String[] RATE_FIELD_NAMES = {"Hourly", "First hour", "Night", "Weekend", "Daily cap", "Grace (min)"};
+
     private void editParkingRates() {
-        JPanel panel = new JPanel(new GridLayout(hourlyRates.size(), 2, 5, 5));
-        Map<String, JTextField> rateFields = new HashMap<>();
+        if (rateBook == null) {
+            JOptionPane.showMessageDialog(this, "Parking rates could not be loaded, so they cannot be edited.", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        Tariff current = rateBook.current().getTariff();
+        Tariff updated = promptForRates(current, "Edit Parking Rates");
+        if (updated != null && !updated.toLines().equals(current.toLines())) {
+            try {
+                RateBook.Rates rates = rateBook.update(updated);
+                refreshRatesDisplay(); // Refresh the rates display
+                JOptionPane.showMessageDialog(this, "Parking rates updated successfully! (version " + rates.getVersion() + ")",
+                        "Success", JOptionPane.INFORMATION_MESSAGE);
+            } catch (IOException e) {
+                e.printStackTrace();
+                JOptionPane.showMessageDialog(this, "Error saving parking rates: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
 
-        for (String vehicleType : hourlyRates.keySet()) {
-            panel.add(new JLabel(vehicleType.substring(0, 1).toUpperCase() + vehicleType.substring(1) + " rate:"));
-            JTextField field = new JTextField(hourlyRates.get(vehicleType).toString(), 5);
-            panel.add(field);
-            rateFields.put(vehicleType, field);
+    // Shows the rate fields filled from current; returns the entered rates, or null if cancelled
+    private Tariff promptForRates(Tariff current, String title) {
+        VehicleType[] types = VehicleType.values();
+        JPanel panel = new JPanel(new GridLayout(types.length + 2, RATE_FIELD_NAMES.length + 1, 5, 5));
+        JTextField[][] rateFields = new JTextField[types.length][RATE_FIELD_NAMES.length];
+
+        panel.add(new JLabel(""));
+        for (String name : RATE_FIELD_NAMES) {
+            panel.add(new JLabel(name));
+        }
+        for (int t = 0; t < types.length; t++) {
+            VehicleType type = types[t];
+            long[] values = {current.getHourlyCents(type), current.getFirstHourCents(type), current.getNightCents(type),
+                    current.getWeekendCents(type), current.getDailyCapCents(type)};
+            panel.add(new JLabel(type.getLabel() + ":"));
+            for (int f = 0; f < values.length; f++) {
+                rateFields[t][f] = new JTextField(values[f] == Tariff.UNSET ? "" : Tariff.formatAmount(values[f]), 5);
+                panel.add(rateFields[t][f]);
+            }
+            long grace = current.getGraceMinutes(type);
+            rateFields[t][5] = new JTextField(grace == Tariff.UNSET ? "" : String.valueOf(grace), 5);
+            panel.add(rateFields[t][5]);
         }
+        panel.add(new JLabel("Leave blank where a rule does not apply. Night is " + current.getNightStart()
+                + ":00-" + current.getNightEnd() + ":00."));
 
-        int result = JOptionPane.showConfirmDialog(this, panel, "Edit Parking Rates", 
+        int result = JOptionPane.showConfirmDialog(this, panel, title,
                                                    JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
-        if (result == JOptionPane.OK_OPTION) {
-            boolean ratesChanged = false;
-            for (Map.Entry<String, JTextField> entry : rateFields.entrySet()) {
-                try {
-                    int newRate = Integer.parseInt(entry.getValue().getText());
-                    if (newRate != hourlyRates.get(entry.getKey())) {
-                        hourlyRates.put(entry.getKey(), newRate);
-                        ratesChanged = true;
+        if (result != JOptionPane.OK_OPTION) {
+            return null;
+        }
+        Tariff updated = current;
+        for (int t = 0; t < types.length; t++) {
+            try {
+                long[] cents = new long[RATE_FIELD_NAMES.length];
+                for (int f = 0; f < cents.length; f++) {
+                    String text = rateFields[t][f].getText().trim();
+                    if (text.isEmpty()) {
+                        cents[f] = f == 0 ? 0 : Tariff.UNSET;
+                    } else {
+                        cents[f] = f == 5 ? Math.max(0, Long.parseLong(text)) : Tariff.parseAmount(text);
                     }
-                } catch (NumberFormatException ex) {
-                    JOptionPane.showMessageDialog(this, "Invalid input for " + entry.getKey() + " rate. Please enter a number.");
                 }
-            }
-            if (ratesChanged) {
-                saveParkingRates();
-                refreshRatesDisplay(); // Refresh the rates display
-                JOptionPane.showMessageDialog(this, "Parking rates updated successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
+                updated = updated.withRates(types[t], cents[0], cents[1], cents[2], cents[3], cents[4], cents[5]);
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this, "Invalid input for " + types[t].getLabel() + " rates. Please enter amounts like 40 or 2.50.");
             }
         }
+        return updated;
     }
 
-    private void saveParkingRates() {
-        try {
-            List<String> lines = new ArrayList<>();
-            for (Map.Entry<String, Integer> entry : hourlyRates.entrySet()) {
-                lines.add(entry.getKey() + ": " + entry.getValue());
+    // Reprices every closed session under proposed rates without changing anything
+    private void analyzeRateChange() {
+        if (sessionJournal == null) {
+            JOptionPane.showMessageDialog(this, "The parking journal could not be opened, so there is no history to reprice.",
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        Tariff proposed = promptForRates(currentTariff(), "Proposed Parking Rates");
+        if (proposed == null) {
+            return;
+        }
+        JDialog progress = new JDialog(this, "Analyzing", false);
+        progress.add(new JLabel("Repricing parking history...", SwingConstants.CENTER));
+        progress.setSize(300, 100);
+        progress.setLocationRelativeTo(this);
+        progress.setVisible(true);
+        new SwingWorker<RepricingAnalysis.Report, Void>() {
+            @Override
+            protected RepricingAnalysis.Report doInBackground() throws IOException {
+                return RepricingAnalysis.run(sessionJournal, proposed);
             }
-            Files.write(Paths.get(RATE_FILE), lines, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-        } catch (IOException e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(this, "Error saving parking rates: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+
+            @Override
+            protected void done() {
+                progress.dispose();
+                try {
+                    showRepricingReport(get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                    JOptionPane.showMessageDialog(ParkingSystem.this, "Error analyzing rates: " + e.getCause().getMessage(),
+                            "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
+
+    private void showRepricingReport(RepricingAnalysis.Report report) {
+        String[] columns = {"", "Sessions", "Current", "Proposed", "Change", "Change %"};
+        DefaultTableModel byType = new DefaultTableModel(withFirstColumn(columns, "Vehicle Type"), 0);
+        for (VehicleType type : VehicleType.values()) {
+            byType.addRow(repricingRow(type.getLabel(), report.getSessions(type), report.getCurrentCents(type), report.getProposedCents(type)));
+        }
+        byType.addRow(repricingRow("Total", report.getSessions(), report.getCurrentCents(), report.getProposedCents()));
+
+        DefaultTableModel byDay = new DefaultTableModel(withFirstColumn(columns, "Date"), 0);
+        for (LocalDate day : report.getDays()) {
+            byDay.addRow(repricingRow(day.toString(), report.getSessions(day), report.getCurrentCents(day), report.getProposedCents(day)));
         }
+
+        DefaultTableModel bySpace = new DefaultTableModel(withFirstColumn(columns, "Space"), 0);
+        for (int space = 1; space <= report.getMaxSpace(); space++) {
+            if (report.getSpaceSessions(space) > 0) {
+                bySpace.addRow(repricingRow(String.valueOf(space), report.getSpaceSessions(space),
+                        report.getSpaceCurrentCents(space), report.getSpaceProposedCents(space)));
+            }
+        }
+
+        JTabbedPane tabs = new JTabbedPane();
+        tabs.addTab("By Type", new JScrollPane(new JTable(byType)));
+        tabs.addTab("By Day", new JScrollPane(new JTable(byDay)));
+        tabs.addTab("By Space", new JScrollPane(new JTable(bySpace)));
+
+        JPanel panel = new JPanel(new BorderLayout(5, 5));
+        panel.add(new JLabel(String.format("%,d sessions repriced in %,d ms. Revenue would change by %s.", report.getSessions(),
+                report.getElapsedMillis(), formatChange(report.getCurrentCents(), report.getProposedCents()))), BorderLayout.NORTH);
+        panel.add(tabs, BorderLayout.CENTER);
+        panel.setPreferredSize(new Dimension(700, 450));
+        JOptionPane.showMessageDialog(this, panel, "Rate Change Impact", JOptionPane.PLAIN_MESSAGE);
+    }
+
+    private static String[] withFirstColumn(String[] columns, String first) {
+        String[] result = columns.clone();
+        result[0] = first;
+        return result;
+    }
+
+    private static Object[] repricingRow(String label, long sessions, long currentCents, long proposedCents) {
+        return new Object[]{label, sessions, formatCents(currentCents), formatCents(proposedCents),
+            formatCents(proposedCents - currentCents),
+            currentCents == 0 ? "-" : String.format("%+.1f%%", (proposedCents - currentCents) * 100.0 / currentCents)};
+    }
+
+    private static String formatChange(long currentCents, long proposedCents) {
+        String change = formatCents(Math.abs(proposedCents - currentCents));
+        return (proposedCents < currentCents ? "-" : "+") + change;
     }
 
     private void createSettingsPanel() {
@@ -992,6 +1200,23 @@ public class ParkingSystem extends JFrame {
         JButton resetSettingsButton = new JButton("Reset to Default Settings");
         resetSettingsButton.addActionListener(e -> resetSettings());
         settingsPanel.add(resetSettingsButton, gbc);
+
+        JButton persistenceStatsButton = new JButton("Persistence Stats");
+        persistenceStatsButton.addActionListener(e -> showPersistenceStats());
+        settingsPanel.add(persistenceStatsButton, gbc);
+    }
+
+    private void showPersistenceStats() {
+        if (persistenceWriter == null) {
+            return;
+        }
+        String message = String.format("Fsync policy: %s%nQueue depth: %d / %d%nEvents written: %d%nBatches: %d%n"
+                        + "Flush latency: last %.2f ms, avg %.2f ms, max %.2f ms%nWrite failures: %d",
+                persistenceWriter.getFsyncPolicy(), persistenceWriter.getQueueDepth(), persistenceWriter.getQueueCapacity(),
+                persistenceWriter.getEventsWritten(), persistenceWriter.getBatchesWritten(),
+                persistenceWriter.getLastFlushMillis(), persistenceWriter.getAverageFlushMillis(), persistenceWriter.getMaxFlushMillis(),
+                persistenceWriter.getFailures());
+        JOptionPane.showMessageDialog(this, message, "Persistence Stats", JOptionPane.INFORMATION_MESSAGE);
     }
 
     private void changeColorScheme() {
@@ -999,17 +1224,8 @@ public class ParkingSystem extends JFrame {
         if (newColor != null) {
             setBackground(newColor);
             updateComponentColors(this, newColor, getForeground());
-            // Update specific components that might need different treatment
-            for (Component comp : parkingLot.getComponents()) {
-                if (comp instanceof ParkingSpace) {
-                    ParkingSpace space = (ParkingSpace) comp;
-                    if (space.isOccupied()) {
-                        space.setBackground(Color.RED);
-                    } else {
-                        space.setBackground(Color.GREEN);
-                    }
-                }
-            }
+            themeBackground = newColor;
+            themeForeground = getForeground();
         }
     }
 
@@ -1020,6 +1236,7 @@ public class ParkingSystem extends JFrame {
         if (selectedFont != null) {
             Font newFont = new Font(selectedFont, Font.PLAIN, 12);
             updateComponentFonts(this, newFont);
+            themeFont = newFont;
         }
     }
 
@@ -1031,6 +1248,11 @@ public class ParkingSystem extends JFrame {
         // Reset font
         updateComponentFonts(this, DEFAULT_FONT);
 
+        // Cards built from now on keep their default look
+        themeBackground = null;
+        themeForeground = null;
+        themeFont = null;
+
         // Reset dark mode
         isDarkMode = false;
         modeToggleButton.setText("Dark Mode");
@@ -1048,24 +1270,16 @@ public class ParkingSystem extends JFrame {
     }
 
     private void resetParkingSpaceColors() {
-        for (Component comp : parkingLot.getComponents()) {
-            if (comp instanceof ParkingSpace) {
-                ParkingSpace space = (ParkingSpace) comp;
-                if (space.isOccupied()) {
-                    space.setBackground(Color.RED);
-                } else {
-                    space.setBackground(Color.GREEN);
-                }
-            }
-        }
+        lotCanvas.setSpaceColors(Color.GREEN, Color.RED);
     }
 
     private void resetSpecificComponents() {
-        // Reset specific components that might need special treatment
-        dashboardPanel.setBackground(DEFAULT_BACKGROUND_COLOR);
-        revenuePanel.setBackground(DEFAULT_BACKGROUND_COLOR);
-        parkingRatesPanel.setBackground(DEFAULT_BACKGROUND_COLOR);
-        settingsPanel.setBackground(DEFAULT_BACKGROUND_COLOR);
+        // Reset specific components that might need special treatment; cards not shown yet are still null
+        for (JPanel panel : new JPanel[]{dashboardPanel, revenuePanel, parkingRatesPanel, settingsPanel}) {
+            if (panel != null) {
+                panel.setBackground(DEFAULT_BACKGROUND_COLOR);
+            }
+        }
 
         // Reset table colors
         resetTableColors(historyTable);
@@ -1076,6 +1290,9 @@ public class ParkingSystem extends JFrame {
     }
 
     private void resetTableColors(JTable table) {
+        if (table == null) {
+            return;
+        }
         table.setBackground(Color.WHITE);
         table.setForeground(Color.BLACK);
         table.setSelectionBackground(new Color(184, 207, 229));
@@ -1083,54 +1300,6 @@ public class ParkingSystem extends JFrame {
         table.setGridColor(Color.LIGHT_GRAY);
     }
 
-    private void loadParkingRates() {
-        try {
-            if (Files.exists(Paths.get(RATE_FILE))) {
-                List<String> lines = Files.readAllLines(Paths.get(RATE_FILE));
-                for (String line : lines) {
-                    String[] parts = line.split(":");
-                    if (parts.length == 2) {
-                        String vehicleType = parts[0].trim().toLowerCase();
-                        int rate = Integer.parseInt(parts[1].trim());
-                        hourlyRates.put(vehicleType, rate);
-                    }
-                }
-            } else {
-                // If the file doesn't exist, create it with default rates
-                hourlyRates.put("car", 50);
-                hourlyRates.put("motor", 30);
-                hourlyRates.put("truck", 80);
-                saveParkingRates();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(this, "Error loading parking rates: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
-        }
-    }
-
-    private void loadTodayRevenue() {
-        LocalDate today = LocalDate.now();
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd");
-        
-        try {
-            List<String> lines = Files.readAllLines(Paths.get(REVENUE_FILE));
-            for (String line : lines) {
-                String[] parts = line.split(",");
-                if (parts.length == 2) {
-                    LocalDate date = LocalDate.parse(parts[0], formatter);
-                    if (date.equals(today)) {
-                        todayRevenue = Double.parseDouble(parts[1]);
-                        break;
-                    }
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(this, "Error loading today's revenue: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
-        }
-        updateStatus();
-    }
-
     private void createFrontPage() {
         frontPage = new JPanel(new GridBagLayout());
         GridBagConstraints gbc = new GridBagConstraints();
@@ -1243,18 +1412,56 @@ public class ParkingSystem extends JFrame {
     }
 
     private void viewFares() {
-        StringBuilder faresInfo = new StringBuilder("Current Parking Rates:\n\n");
-        for (Map.Entry<String, Integer> entry : hourlyRates.entrySet()) {
-            String vehicleType = entry.getKey().substring(0, 1).toUpperCase() + entry.getKey().substring(1);
-            faresInfo.append(vehicleType).append(": $").append(entry.getValue()).append("/hour\n");
+        StringBuilder faresInfo = new StringBuilder("Current Parking Rates");
+        if (rateBook != null) {
+            faresInfo.append(" (version ").append(rateBook.current().getVersion()).append(")");
+        }
+        faresInfo.append(":\n\n");
+        Tariff current = currentTariff();
+        for (VehicleType type : VehicleType.values()) {
+            faresInfo.append(type.getLabel()).append(": ").append(current.describe(type)).append("\n");
         }
         JOptionPane.showMessageDialog(this, faresInfo.toString(), "Parking Rates", JOptionPane.INFORMATION_MESSAGE);
     }
 
+    /**
+     * Serves the HTTP gate API on {@code port} when it is above 0, on the
+     * address in {@code api.bind} (loopback by default); a port that cannot
+     * be bound is reported and the lot runs without the API.
+     */
+    private static void startGateApi(ParkingBackend backend, int port) {
+        if (port <= 0) {
+            return;
+        }
+        try {
+            SystemConfig settings = backend.getSettings();
+            GateServer server = GateServer.start(backend, settings.getString("api.bind", "127.0.0.1"), port,
+                    settings.getInt("api.backlog", 0), settings.getString("api.token", null));
+            backend.closeOnShutdown(server);
+            System.out.println("[api] listening on " + server.getAddress() + " (" + server.getExecutorName() + ")"
+                    + (server.hasToken() ? "" : "; no api.token set, only /api/occupancy is served"));
+        } catch (IOException e) {
+            e.printStackTrace();
+            backend.reportError("Error starting the gate API on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Opens the frame, or with {@code --headless} runs the lot and its HTTP
+     * gate API without one (port from {@code api.port}, default 8080).
+     */
     public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> {
-            ParkingSystem system = new ParkingSystem();
-            system.createHistoryPanel();
-        });
+        if (args.length > 0 && args[0].equals("--headless")) {
+            long startupNanos = System.nanoTime();
+            ParkingBackend backend = new ParkingBackend(System.err::println);
+            backend.loadSettings();
+            backend.openStores();
+            backend.awaitStores();
+            backend.start();
+            startGateApi(backend, backend.getSettings().getInt("api.port", 8080));
+            ParkingBackend.logStartup("headless", startupNanos);
+            return;
+        }
+        SwingUtilities.invokeLater(ParkingSystem::new);
     }
 }
@@ -0,0 +1,354 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Single background thread that owns all writes to the session journal, the
+ * revenue ledger, the garage's lot state files and the history file. Engine events are queued on a bounded
+ * queue; the writer drains whatever has accumulated, applies the whole batch
+ * and then flushes once (group commit). When the queue is full, the producing
+ * gate blocks until the writer catches up; should the writer thread ever die,
+ * events are dropped (and counted as failures) rather than blocking the gates
+ * for good. Any store may be null when it failed to open; it is then skipped.
+ *
+ * How often the batch is also forced to disk follows {@link FsyncPolicy}.
+ */
+public class PersistenceWriter implements ParkingEngine.Listener {
+    public enum FsyncPolicy {
+        // Force after every batch: an event is durable once its batch is committed
+        ALWAYS,
+        // Force at most once per interval; up to that much data can be lost on power failure
+        INTERVAL,
+        // Only force when the writer is closed
+        SHUTDOWN;
+
+        public static FsyncPolicy fromName(String name) {
+            for (FsyncPolicy policy : values()) {
+                if (policy.name().equalsIgnoreCase(name)) {
+                    return policy;
+                }
+            }
+            throw new IllegalArgumentException("Unknown fsync policy: " + name);
+        }
+    }
+
+    private static final Object SHUTDOWN_MARKER = new Object();
+
+    private final SessionJournal journal;
+    private final RevenueLedger ledger;
+    private final Garage garage;
+    private final HistoryStore history;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMillis;
+    private final int maxBatch;
+    private final BlockingQueue<Object> queue;
+    private final Thread thread;
+    private volatile Runnable batchListener = () -> { };
+    // Read-held while an event is queued, write-held to close, so no event can be queued behind the shutdown marker
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private boolean closed;
+
+    private long lastSyncNanos = System.nanoTime();
+    private boolean unsynced;
+
+    // Written only by the writer thread, read by anyone
+    private volatile long eventsWritten;
+    private volatile long batchesWritten;
+    private volatile long lastFlushNanos;
+    private volatile long maxFlushNanos;
+    private volatile long totalFlushNanos;
+    private volatile long failures;
+    // Events given up on because the writer thread was gone; counted by the producers
+    private final AtomicLong droppedEvents = new AtomicLong();
+
+    public PersistenceWriter(SessionJournal journal, RevenueLedger ledger, Garage garage, HistoryStore history,
+                             int capacity, int maxBatch, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis) {
+        this.journal = journal;
+        this.ledger = ledger;
+        this.garage = garage;
+        this.history = history;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxBatch = maxBatch;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        this.thread = new Thread(this::run, "persistence-writer");
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Runs on the writer thread after each committed batch, e.g. to refresh views
+     * that read what was just written.
+     */
+    public void setBatchListener(Runnable batchListener) {
+        this.batchListener = batchListener;
+    }
+
+    @Override
+    public void vehicleParked(int spaceNumber, String licensePlate, VehicleType vehicleType, long entryTime) {
+        enqueue(new ParkingRecord(licensePlate, vehicleType, spaceNumber, entryTime, 0, 0));
+    }
+
+    @Override
+    public void vehicleRemoved(ParkingRecord record) {
+        enqueue(record);
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getQueueCapacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    public long getEventsWritten() {
+        return eventsWritten;
+    }
+
+    public long getBatchesWritten() {
+        return batchesWritten;
+    }
+
+    public double getLastFlushMillis() {
+        return lastFlushNanos / 1_000_000.0;
+    }
+
+    public double getMaxFlushMillis() {
+        return maxFlushNanos / 1_000_000.0;
+    }
+
+    public double getAverageFlushMillis() {
+        long batches = batchesWritten;
+        return batches == 0 ? 0 : totalFlushNanos / 1_000_000.0 / batches;
+    }
+
+    public long getFailures() {
+        return failures + droppedEvents.get();
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    /**
+     * Stops accepting events, writes everything still queued and forces all
+     * stores to disk regardless of the fsync policy.
+     */
+    public void close() throws InterruptedException {
+        closeLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        if (thread.isAlive()) {
+            queue.put(SHUTDOWN_MARKER);
+            thread.join();
+        }
+        // Whatever a writer that died early left queued
+        List<Object> batch = new ArrayList<>();
+        queue.drainTo(batch);
+        batch.remove(SHUTDOWN_MARKER);
+        synchronized (this) {
+            commit(batch, true);
+        }
+    }
+
+    private void enqueue(Object event) {
+        closeLock.readLock().lock();
+        try {
+            if (!closed) {
+                // Waits while the queue is full, but not on a writer that is no longer there to drain it
+                while (!queue.offer(event, 100, TimeUnit.MILLISECONDS)) {
+                    if (!thread.isAlive()) {
+                        if (droppedEvents.getAndIncrement() == 0) {
+                            System.err.println("persistence-writer is not running; dropping events, starting with " + event);
+                        }
+                        return;
+                    }
+                }
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing a persistence event", e);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+        // Late events during shutdown are written directly rather than lost, after everything queued before them
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            List<Object> batch = new ArrayList<>();
+            batch.add(event);
+            commit(batch, true);
+        }
+    }
+
+    private void run() {
+        List<Object> batch = new ArrayList<>(maxBatch);
+        boolean running = true;
+        while (running) {
+            try {
+                Object first = fsyncPolicy == FsyncPolicy.INTERVAL && unsynced
+                        ? queue.poll(fsyncIntervalMillis, TimeUnit.MILLISECONDS)
+                        : queue.take();
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, maxBatch - 1);
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            if (batch.remove(SHUTDOWN_MARKER)) {
+                // close() shuts out new events before queueing the marker, so nothing can follow it
+                running = false;
+            }
+            try {
+                synchronized (this) {
+                    commit(batch, !running);
+                }
+                if (!batch.isEmpty()) {
+                    batchListener.run();
+                }
+            } catch (RuntimeException e) {
+                // commit() reports its own failures; this keeps the thread draining whatever else goes wrong
+                failures++;
+                e.printStackTrace();
+            }
+            batch.clear();
+        }
+    }
+
+    private void commit(List<Object> batch, boolean forceSync) {
+        for (Object event : batch) {
+            try {
+                apply((ParkingRecord) event);
+            } catch (IOException | RuntimeException e) {
+                failures++;
+                e.printStackTrace();
+            }
+        }
+        if (!batch.isEmpty()) {
+            unsynced = true;
+        }
+        long start = System.nanoTime();
+        try {
+            boolean sync = forceSync
+                    || fsyncPolicy == FsyncPolicy.ALWAYS
+                    || (fsyncPolicy == FsyncPolicy.INTERVAL && start - lastSyncNanos >= TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis));
+            if (sync && unsynced) {
+                long ioStart;
+                if (journal != null) {
+                    ioStart = Instrumentation.start(Instrumentation.JOURNAL_SYNC);
+                    journal.sync();
+                    Instrumentation.record(Instrumentation.JOURNAL_SYNC, ioStart);
+                }
+                if (ledger != null) {
+                    ioStart = Instrumentation.start(Instrumentation.REVENUE_SYNC);
+                    ledger.sync();
+                    Instrumentation.record(Instrumentation.REVENUE_SYNC, ioStart);
+                }
+                if (garage != null) {
+                    ioStart = Instrumentation.start(Instrumentation.LOT_FORCE);
+                    garage.forceLotStates();
+                    Instrumentation.record(Instrumentation.LOT_FORCE, ioStart);
+                }
+                if (history != null) {
+                    ioStart = Instrumentation.start(Instrumentation.HISTORY_SYNC);
+                    history.sync();
+                    Instrumentation.record(Instrumentation.HISTORY_SYNC, ioStart);
+                }
+                lastSyncNanos = System.nanoTime();
+                unsynced = false;
+            } else if (!batch.isEmpty()) {
+                long ioStart;
+                if (journal != null) {
+                    ioStart = Instrumentation.start(Instrumentation.JOURNAL_FLUSH);
+                    journal.flush();
+                    Instrumentation.record(Instrumentation.JOURNAL_FLUSH, ioStart);
+                }
+                if (ledger != null) {
+                    ioStart = Instrumentation.start(Instrumentation.REVENUE_FLUSH);
+                    ledger.flush();
+                    Instrumentation.record(Instrumentation.REVENUE_FLUSH, ioStart);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            failures++;
+            e.printStackTrace();
+        }
+        if (!batch.isEmpty()) {
+            long elapsed = System.nanoTime() - start;
+            lastFlushNanos = elapsed;
+            maxFlushNanos = Math.max(maxFlushNanos, elapsed);
+            totalFlushNanos += elapsed;
+            eventsWritten += batch.size();
+            batchesWritten++;
+        }
+    }
+
+    private void apply(ParkingRecord event) throws IOException {
+        long start;
+        if (event.isClosed()) {
+            if (journal != null) {
+                start = Instrumentation.start(Instrumentation.JOURNAL_APPEND);
+                journal.recordExit(event);
+                Instrumentation.record(Instrumentation.JOURNAL_APPEND, start);
+            }
+            if (ledger != null) {
+                start = Instrumentation.start(Instrumentation.REVENUE_RECORD);
+                ledger.record(event.getVehicleType(), event.getSpaceNumber(), event.getFare());
+                Instrumentation.record(Instrumentation.REVENUE_RECORD, start);
+            }
+            if (garage != null) {
+                start = Instrumentation.start(Instrumentation.LOT_WRITE);
+                garage.clearLotState(event.getSpaceNumber());
+                Instrumentation.record(Instrumentation.LOT_WRITE, start);
+            }
+            if (history != null) {
+                start = Instrumentation.start(Instrumentation.HISTORY_WRITE);
+                history.close(event);
+                Instrumentation.record(Instrumentation.HISTORY_WRITE, start);
+            }
+        } else {
+            if (journal != null) {
+                start = Instrumentation.start(Instrumentation.JOURNAL_APPEND);
+                journal.recordEntry(event.getLicensePlate(), event.getVehicleType(), event.getSpaceNumber(), event.getEntryTime());
+                Instrumentation.record(Instrumentation.JOURNAL_APPEND, start);
+            }
+            if (garage != null) {
+                start = Instrumentation.start(Instrumentation.LOT_WRITE);
+                garage.writeLotState(event.getSpaceNumber(), event.getVehicleType(), event.getLicensePlate(), event.getEntryTime());
+                Instrumentation.record(Instrumentation.LOT_WRITE, start);
+            }
+            if (history != null) {
+                start = Instrumentation.start(Instrumentation.HISTORY_WRITE);
+                history.append(event);
+                Instrumentation.record(Instrumentation.HISTORY_WRITE, start);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("queue %d/%d, %d events in %d batches, flush last %.2f ms / avg %.2f ms / max %.2f ms, fsync %s, %d failures",
+                getQueueDepth(), getQueueCapacity(), eventsWritten, batchesWritten,
+                getLastFlushMillis(), getAverageFlushMillis(), getMaxFlushMillis(), fsyncPolicy, failures);
+    }
+}
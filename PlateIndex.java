@@ -0,0 +1,307 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped open-addressing hash table from a normalized plate to the
+ * latest history row of that plate and its visit count. Older visits are found
+ * by following the per-row back pointers kept in {@link HistoryStore}.
+ *
+ * <pre>
+ * header (64 bytes): magic "PIDX", version, slot count, used slots, covered rows, CRC32 of the previous 20 bytes
+ * slot (64 bytes):   plate length (0 = empty), pad, latest row, visits, pad, plate (UTF-8, up to 48 bytes)
+ * </pre>
+ *
+ * The table doubles (through a temp file and an atomic rename) once half full.
+ * Covered rows is -1 while the file is open, so an index that was not closed
+ * cleanly is never trusted.
+ */
+public class PlateIndex implements Closeable {
+    private static final int MAGIC = 0x50494458; // "PIDX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 64;
+    private static final int INITIAL_SLOTS = 1024;
+    private static final int PLATE_LENGTH_OFFSET = 0;
+    private static final int ROW_OFFSET = 4;
+    private static final int VISITS_OFFSET = 8;
+    private static final int PLATE_OFFSET = 16;
+    private static final int MAX_PLATE_BYTES = 48;
+
+    private final Path file;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int slots;
+    private int used;
+    private int coveredRows;
+    private final byte[] probe = new byte[MAX_PLATE_BYTES];
+
+    private PlateIndex(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Normalizes a plate for searching: letters and digits only, upper case,
+     * so "ab-123" and "AB 123" are the same plate.
+     */
+    public static String searchKey(String licensePlate) {
+        StringBuilder key = new StringBuilder(licensePlate.length());
+        for (int i = 0; i < licensePlate.length(); i++) {
+            char c = licensePlate.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                key.append(c);
+            }
+        }
+        return key.toString().toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * Opens the index; {@link #getCoveredRows} tells whether it can be trusted.
+     */
+    public static PlateIndex open(Path file) throws IOException {
+        PlateIndex index = new PlateIndex(file);
+        int coveredRows = -1;
+        if (Files.exists(file)) {
+            ByteBuffer header = readHeader(file);
+            if (header != null) {
+                index.slots = header.getInt(8);
+                index.used = header.getInt(12);
+                coveredRows = header.getInt(16);
+            }
+        }
+        if (coveredRows < 0) {
+            index.slots = INITIAL_SLOTS;
+            index.used = 0;
+            writeEmpty(file, INITIAL_SLOTS);
+        }
+        index.map();
+        index.coveredRows = coveredRows;
+        index.writeHeader(-1);
+        return index;
+    }
+
+    /**
+     * History rows this index described when it was last closed, or -1.
+     */
+    public int getCoveredRows() {
+        return coveredRows;
+    }
+
+    /**
+     * Empties the index before it is rebuilt.
+     */
+    public void reset() throws IOException {
+        unmap();
+        writeEmpty(file, INITIAL_SLOTS);
+        slots = INITIAL_SLOTS;
+        used = 0;
+        map();
+        writeHeader(-1);
+    }
+
+    /**
+     * Returns the latest row for {@code key}, or -1.
+     */
+    public int latestRow(String key) {
+        int slot = find(key);
+        return slot < 0 || isEmpty(slot) ? -1 : buffer.getInt(slotPosition(slot) + ROW_OFFSET);
+    }
+
+    public int visits(String key) {
+        int slot = find(key);
+        return slot < 0 || isEmpty(slot) ? 0 : buffer.getInt(slotPosition(slot) + VISITS_OFFSET);
+    }
+
+    /**
+     * Makes {@code row} the latest visit of {@code key} and returns the previous
+     * latest row, or -1 for a first visit.
+     */
+    public int add(String key, int row) throws IOException {
+        byte[] plate = key.getBytes(StandardCharsets.UTF_8);
+        if (plate.length == 0 || plate.length > MAX_PLATE_BYTES) {
+            return -1;
+        }
+        if ((used + 1) * 2 > slots) {
+            grow();
+        }
+        int slot = find(key);
+        int position = slotPosition(slot);
+        if (isEmpty(slot)) {
+            buffer.put(position + PLATE_LENGTH_OFFSET, (byte) plate.length);
+            buffer.putInt(position + ROW_OFFSET, row);
+            buffer.putInt(position + VISITS_OFFSET, 1);
+            buffer.position(position + PLATE_OFFSET);
+            buffer.put(plate);
+            used++;
+            return -1;
+        }
+        int previous = buffer.getInt(position + ROW_OFFSET);
+        buffer.putInt(position + ROW_OFFSET, row);
+        buffer.putInt(position + VISITS_OFFSET, buffer.getInt(position + VISITS_OFFSET) + 1);
+        return previous;
+    }
+
+    public void force() {
+        buffer.force();
+    }
+
+    /**
+     * Closes the index, recording that it covers {@code rows} history rows.
+     */
+    public void close(int rows) throws IOException {
+        writeHeader(rows);
+        close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            buffer.force();
+            channel.close();
+            channel = null;
+        }
+    }
+
+    // Slot holding key, or the empty slot where it would go
+    private int find(String key) {
+        byte[] plate = key.getBytes(StandardCharsets.UTF_8);
+        if (plate.length == 0 || plate.length > MAX_PLATE_BYTES) {
+            return -1;
+        }
+        int mask = slots - 1;
+        int slot = mix(key.hashCode()) & mask;
+        while (!isEmpty(slot)) {
+            int position = slotPosition(slot);
+            if (buffer.get(position + PLATE_LENGTH_OFFSET) == plate.length) {
+                buffer.position(position + PLATE_OFFSET);
+                buffer.get(probe, 0, plate.length);
+                if (samePlate(plate)) {
+                    return slot;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean samePlate(byte[] plate) {
+        for (int i = 0; i < plate.length; i++) {
+            if (probe[i] != plate[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isEmpty(int slot) {
+        return buffer.get(slotPosition(slot) + PLATE_LENGTH_OFFSET) == 0;
+    }
+
+    private static int slotPosition(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private void grow() throws IOException {
+        int newSlots = slots * 2;
+        if ((long) HEADER_SIZE + (long) newSlots * SLOT_SIZE > Integer.MAX_VALUE) {
+            throw new IOException("Plate index is full");
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        writeEmpty(tmp, newSlots);
+        PlateIndex grown = new PlateIndex(tmp);
+        grown.slots = newSlots;
+        grown.map();
+        byte[] plate = new byte[MAX_PLATE_BYTES];
+        for (int slot = 0; slot < slots; slot++) {
+            if (isEmpty(slot)) {
+                continue;
+            }
+            int position = slotPosition(slot);
+            int length = buffer.get(position + PLATE_LENGTH_OFFSET);
+            buffer.position(position + PLATE_OFFSET);
+            buffer.get(plate, 0, length);
+            int target = grown.find(new String(plate, 0, length, StandardCharsets.UTF_8));
+            int targetPosition = slotPosition(target);
+            buffer.position(position);
+            buffer.limit(position + SLOT_SIZE);
+            grown.buffer.position(targetPosition);
+            grown.buffer.put(buffer);
+            buffer.clear();
+            grown.used++;
+        }
+        grown.writeHeader(-1);
+        grown.close();
+        unmap();
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        slots = newSlots;
+        map();
+    }
+
+    private void map() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
+    }
+
+    private void unmap() throws IOException {
+        close();
+    }
+
+    private void writeHeader(int rows) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putInt(8, slots);
+        header.putInt(12, used);
+        header.putInt(16, rows);
+        header.putInt(20, headerCrc(header));
+        buffer.position(0);
+        buffer.put(header);
+        buffer.force();
+    }
+
+    private static ByteBuffer readHeader(Path file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (header.hasRemaining() && in.read(header) > 0) {
+                // keep reading
+            }
+        }
+        if (header.position() < HEADER_SIZE || header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+                || header.getInt(20) != headerCrc(header)) {
+            return null;
+        }
+        int slots = header.getInt(8);
+        if (Integer.bitCount(slots) != 1 || Files.size(file) < HEADER_SIZE + (long) slots * SLOT_SIZE) {
+            return null;
+        }
+        return header;
+    }
+
+    private static void writeEmpty(Path file, int slots) throws IOException {
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Sparse zero-filled file; every slot starts empty
+            out.write(ByteBuffer.allocate(1), HEADER_SIZE + (long) slots * SLOT_SIZE - 1);
+        }
+    }
+
+    private static int headerCrc(ByteBuffer header) {
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, 20);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,255 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The parking rates in force, held as an immutable, numbered {@link Rates}
+ * snapshot that is swapped atomically. Fares are priced against whichever
+ * snapshot a caller read, without locks, and each closed session records that
+ * snapshot's version.
+ *
+ * parkingrate.txt is watched, so edits made outside the application take effect
+ * without a restart. Every new version is appended to rates-history.txt as a
+ * {@code #version=<n> since=<instant>} line followed by its rules, which is
+ * where a session's rate version can be looked up later.
+ */
+public class RateBook implements Closeable {
+    private static final String VERSION_PREFIX = "#version=";
+    // Editors often write a file in several steps; wait for them to finish
+    private static final long SETTLE_MILLIS = 250;
+
+    /**
+     * One version of the rates.
+     */
+    public static final class Rates implements ParkingEngine.FareCalculator {
+        private final int version;
+        private final Tariff tariff;
+        private final long since;
+
+        private Rates(int version, Tariff tariff, long since) {
+            this.version = version;
+            this.tariff = tariff;
+            this.since = since;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public Tariff getTariff() {
+            return tariff;
+        }
+
+        public long getSince() {
+            return since;
+        }
+
+        @Override
+        public double calculateFare(VehicleType vehicleType, long entryTime, long exitTime) {
+            return tariff.fare(vehicleType, entryTime, exitTime);
+        }
+
+        @Override
+        public int getRateVersion() {
+            return version;
+        }
+    }
+
+    public interface Listener {
+        void ratesChanged(Rates rates);
+    }
+
+    private final Path rateFile;
+    private final Path historyFile;
+    private final AtomicReference<Rates> current = new AtomicReference<>();
+    private volatile Listener listener;
+    private WatchService watchService;
+    private Thread watchThread;
+
+    private RateBook(Path rateFile, Path historyFile) {
+        this.rateFile = rateFile;
+        this.historyFile = historyFile;
+    }
+
+    /**
+     * Loads the rates, creating parkingrate.txt with the defaults if missing,
+     * and continues the version numbering of the history file.
+     */
+    public static RateBook open(Path rateFile, Path historyFile) throws IOException {
+        RateBook book = new RateBook(rateFile, historyFile);
+        Tariff tariff;
+        if (Files.exists(rateFile)) {
+            tariff = Tariff.load(rateFile);
+        } else {
+            tariff = Tariff.defaults();
+            book.write(tariff);
+        }
+
+        int lastVersion = 0;
+        List<String> lastRules = new ArrayList<>();
+        long lastSince = 0;
+        if (Files.exists(historyFile)) {
+            for (String line : Files.readAllLines(historyFile, StandardCharsets.UTF_8)) {
+                if (line.startsWith(VERSION_PREFIX)) {
+                    String[] parts = line.substring(VERSION_PREFIX.length()).split(" since=");
+                    try {
+                        lastVersion = Integer.parseInt(parts[0].trim());
+                        lastSince = parts.length > 1 ? Instant.parse(parts[1].trim()).toEpochMilli() : 0;
+                    } catch (RuntimeException e) {
+                        System.err.println("Ignoring invalid rates history line: " + line);
+                    }
+                    lastRules.clear();
+                } else if (!line.isEmpty()) {
+                    lastRules.add(line);
+                }
+            }
+        }
+        if (lastVersion > 0 && lastRules.equals(tariff.toLines())) {
+            book.current.set(new Rates(lastVersion, tariff, lastSince));
+        } else {
+            book.current.set(book.record(lastVersion + 1, tariff));
+        }
+        return book;
+    }
+
+    public Rates current() {
+        return current.get();
+    }
+
+    /**
+     * Called with each new version, on the thread that made it.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Saves {@code tariff} to parkingrate.txt and makes it the current rates.
+     */
+    public synchronized Rates update(Tariff tariff) throws IOException {
+        write(tariff);
+        return publish(tariff);
+    }
+
+    /**
+     * Re-reads parkingrate.txt; returns the new version, or null when the rules
+     * did not change.
+     */
+    public synchronized Rates reload() throws IOException {
+        if (!Files.exists(rateFile)) {
+            return null;
+        }
+        return publish(Tariff.load(rateFile));
+    }
+
+    /**
+     * Starts a daemon thread that reloads parkingrate.txt when it changes.
+     */
+    public synchronized void startWatching() throws IOException {
+        if (watchThread != null) {
+            return;
+        }
+        Path directory = rateFile.toAbsolutePath().getParent();
+        watchService = directory.getFileSystem().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        WatchService service = watchService;
+        watchThread = new Thread(() -> watch(service), "rate-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        Thread thread;
+        synchronized (this) {
+            thread = watchThread;
+            watchThread = null;
+            if (watchService != null) {
+                watchService.close();
+                watchService = null;
+            }
+        }
+        if (thread != null) {
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void watch(WatchService service) {
+        Path name = rateFile.getFileName();
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = false;
+                do {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (name.equals(event.context())) {
+                            changed = true;
+                        }
+                    }
+                    key.reset();
+                    key = service.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                } while (key != null);
+                if (changed) {
+                    try {
+                        Rates rates = reload();
+                        if (rates != null) {
+                            System.out.println("Loaded parking rates version " + rates.getVersion() + " from " + rateFile);
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+
+    private Rates publish(Tariff tariff) throws IOException {
+        Rates previous = current.get();
+        if (previous.getTariff().toLines().equals(tariff.toLines())) {
+            return null;
+        }
+        Rates rates = record(previous.getVersion() + 1, tariff);
+        current.set(rates);
+        Listener currentListener = listener;
+        if (currentListener != null) {
+            currentListener.ratesChanged(rates);
+        }
+        return rates;
+    }
+
+    // Appends a version to the history file
+    private Rates record(int version, Tariff tariff) throws IOException {
+        Rates rates = new Rates(version, tariff, System.currentTimeMillis());
+        List<String> lines = new ArrayList<>();
+        lines.add(VERSION_PREFIX + version + " since=" + Instant.ofEpochMilli(rates.getSince()));
+        lines.addAll(tariff.toLines());
+        Files.write(historyFile, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        return rates;
+    }
+
+    private void write(Tariff tariff) throws IOException {
+        Path tmp = rateFile.resolveSibling(rateFile.getFileName() + ".tmp");
+        Files.write(tmp, tariff.toLines(), StandardCharsets.UTF_8);
+        Files.move(tmp, rateFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
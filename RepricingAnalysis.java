@@ -0,0 +1,490 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * What-if repricing: every closed session in the archive segments and
+ * parked.txt is priced again under a proposed {@link Tariff} and compared with
+ * the fare it was charged, by day of exit, vehicle type and space.
+ *
+ * The files are memory-mapped in chunks of about 8 MB that are parsed straight
+ * from the mapped bytes by a fork-join pool with one thread per core. Each
+ * chunk tallies into primitive arrays and the tallies are merged as the tasks
+ * join, so memory use does not grow with the number of sessions.
+ *
+ * <pre>
+ * java RepricingAnalysis &lt;proposed parkingrate.txt&gt; [data directory]
+ * </pre>
+ */
+public class RepricingAnalysis {
+    private static final long CHUNK_SIZE = 8L << 20;
+    // Lines are far shorter; a chunk maps this much past its end to finish its last line
+    private static final int MAX_LINE = 4096;
+    private static final VehicleType[] TYPE_VALUES = VehicleType.values();
+    private static final int TYPES = TYPE_VALUES.length;
+    // Larger space numbers can only come from a damaged row
+    private static final int MAX_SPACE = 1 << 20;
+    private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+    private static final long COMMAS = 0x2C2C2C2C2C2C2C2CL;
+
+    private RepricingAnalysis() {
+    }
+
+    public static Report run(SessionJournal journal, Tariff proposed) throws IOException {
+        return journal.readSessionFiles(files -> run(files, proposed));
+    }
+
+    public static Report run(List<Path> files, Tariff proposed) throws IOException {
+        long start = System.nanoTime();
+        List<Chunk> chunks = new ArrayList<>();
+        List<FileChannel> channels = new ArrayList<>();
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            for (Path file : files) {
+                FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                channels.add(channel);
+                long size = channel.size();
+                for (long position = 0; position < size; position += CHUNK_SIZE) {
+                    chunks.add(new Chunk(channel, position, Math.min(position + CHUNK_SIZE, size), size));
+                }
+            }
+            ZoneOffsets offsets = ZoneOffsets.of(ZoneId.systemDefault());
+            Report report = chunks.isEmpty() ? new Report() : pool.invoke(new ChunkTask(chunks, 0, chunks.size(), proposed, offsets));
+            report.elapsedNanos = System.nanoTime() - start;
+            return report;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+            for (FileChannel channel : channels) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Totals in cents of what was charged ("current") and what the proposed
+     * rates would have charged, per day of exit, vehicle type and space.
+     */
+    public static final class Report {
+        private long sessions;
+        private long currentCents;
+        private long proposedCents;
+        private final long[] typeSessions = new long[TYPES];
+        private final long[] typeCurrent = new long[TYPES];
+        private final long[] typeProposed = new long[TYPES];
+        private long baseDay;
+        private long[] daySessions = new long[0];
+        private long[] dayCurrent = new long[0];
+        private long[] dayProposed = new long[0];
+        private long[] spaceSessions = new long[0];
+        private long[] spaceCurrent = new long[0];
+        private long[] spaceProposed = new long[0];
+        private long elapsedNanos;
+
+        public long getSessions() {
+            return sessions;
+        }
+
+        public long getCurrentCents() {
+            return currentCents;
+        }
+
+        public long getProposedCents() {
+            return proposedCents;
+        }
+
+        public long getSessions(VehicleType vehicleType) {
+            return typeSessions[vehicleType.ordinal()];
+        }
+
+        public long getCurrentCents(VehicleType vehicleType) {
+            return typeCurrent[vehicleType.ordinal()];
+        }
+
+        public long getProposedCents(VehicleType vehicleType) {
+            return typeProposed[vehicleType.ordinal()];
+        }
+
+        /**
+         * Days with at least one session, oldest first.
+         */
+        public List<LocalDate> getDays() {
+            List<LocalDate> days = new ArrayList<>();
+            for (int i = 0; i < daySessions.length; i++) {
+                if (daySessions[i] > 0) {
+                    days.add(LocalDate.ofEpochDay(baseDay + i));
+                }
+            }
+            return days;
+        }
+
+        public long getSessions(LocalDate day) {
+            int index = dayIndex(day);
+            return index < 0 ? 0 : daySessions[index];
+        }
+
+        public long getCurrentCents(LocalDate day) {
+            int index = dayIndex(day);
+            return index < 0 ? 0 : dayCurrent[index];
+        }
+
+        public long getProposedCents(LocalDate day) {
+            int index = dayIndex(day);
+            return index < 0 ? 0 : dayProposed[index];
+        }
+
+        /**
+         * Highest space number with a session, or 0.
+         */
+        public int getMaxSpace() {
+            for (int space = spaceSessions.length - 1; space > 0; space--) {
+                if (spaceSessions[space] > 0) {
+                    return space;
+                }
+            }
+            return 0;
+        }
+
+        public long getSpaceSessions(int spaceNumber) {
+            return spaceNumber < spaceSessions.length ? spaceSessions[spaceNumber] : 0;
+        }
+
+        public long getSpaceCurrentCents(int spaceNumber) {
+            return spaceNumber < spaceCurrent.length ? spaceCurrent[spaceNumber] : 0;
+        }
+
+        public long getSpaceProposedCents(int spaceNumber) {
+            return spaceNumber < spaceProposed.length ? spaceProposed[spaceNumber] : 0;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000;
+        }
+
+        private int dayIndex(LocalDate day) {
+            long index = day.toEpochDay() - baseDay;
+            return index < 0 || index >= daySessions.length ? -1 : (int) index;
+        }
+
+        private void add(int type, int space, long epochDay, long current, long proposed) {
+            sessions++;
+            currentCents += current;
+            proposedCents += proposed;
+            typeSessions[type]++;
+            typeCurrent[type] += current;
+            typeProposed[type] += proposed;
+            if (daySessions.length == 0) {
+                baseDay = epochDay;
+            }
+            if (epochDay < baseDay || epochDay - baseDay >= daySessions.length) {
+                long from = Math.min(baseDay, epochDay);
+                long to = Math.max(baseDay + daySessions.length, epochDay + 1);
+                // Leave room on the side that grew
+                resizeDays(epochDay < baseDay ? from - daySessions.length : from,
+                        epochDay < baseDay ? to : to + daySessions.length);
+            }
+            int day = (int) (epochDay - baseDay);
+            daySessions[day]++;
+            dayCurrent[day] += current;
+            dayProposed[day] += proposed;
+            if (space >= 0) {
+                if (space >= spaceSessions.length) {
+                    resizeSpaces(Math.max(space + 1, spaceSessions.length * 2));
+                }
+                spaceSessions[space]++;
+                spaceCurrent[space] += current;
+                spaceProposed[space] += proposed;
+            }
+        }
+
+        private Report merge(Report other) {
+            sessions += other.sessions;
+            currentCents += other.currentCents;
+            proposedCents += other.proposedCents;
+            for (int type = 0; type < TYPES; type++) {
+                typeSessions[type] += other.typeSessions[type];
+                typeCurrent[type] += other.typeCurrent[type];
+                typeProposed[type] += other.typeProposed[type];
+            }
+            if (other.daySessions.length > 0) {
+                if (daySessions.length == 0) {
+                    baseDay = other.baseDay;
+                }
+                resizeDays(Math.min(baseDay, other.baseDay),
+                        Math.max(baseDay + daySessions.length, other.baseDay + other.daySessions.length));
+                int shift = (int) (other.baseDay - baseDay);
+                for (int i = 0; i < other.daySessions.length; i++) {
+                    daySessions[shift + i] += other.daySessions[i];
+                    dayCurrent[shift + i] += other.dayCurrent[i];
+                    dayProposed[shift + i] += other.dayProposed[i];
+                }
+            }
+            if (other.spaceSessions.length > spaceSessions.length) {
+                resizeSpaces(other.spaceSessions.length);
+            }
+            for (int i = 0; i < other.spaceSessions.length; i++) {
+                spaceSessions[i] += other.spaceSessions[i];
+                spaceCurrent[i] += other.spaceCurrent[i];
+                spaceProposed[i] += other.spaceProposed[i];
+            }
+            return this;
+        }
+
+        // Covers days [fromDay, toDay)
+        private void resizeDays(long fromDay, long toDay) {
+            int length = (int) (toDay - fromDay);
+            int shift = (int) (baseDay - fromDay);
+            daySessions = shifted(daySessions, shift, length);
+            dayCurrent = shifted(dayCurrent, shift, length);
+            dayProposed = shifted(dayProposed, shift, length);
+            baseDay = fromDay;
+        }
+
+        private void resizeSpaces(int length) {
+            spaceSessions = Arrays.copyOf(spaceSessions, length);
+            spaceCurrent = Arrays.copyOf(spaceCurrent, length);
+            spaceProposed = Arrays.copyOf(spaceProposed, length);
+        }
+
+        private static long[] shifted(long[] values, int shift, int length) {
+            long[] result = new long[length];
+            System.arraycopy(values, 0, result, shift, values.length);
+            return result;
+        }
+    }
+
+    private static final class Chunk {
+        final FileChannel channel;
+        final long start;
+        final long end;
+        final long fileSize;
+
+        Chunk(FileChannel channel, long start, long end, long fileSize) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.fileSize = fileSize;
+        }
+    }
+
+    private static final class ChunkTask extends RecursiveTask<Report> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Chunk> chunks;
+        private final int from;
+        private final int to;
+        private final Tariff proposed;
+        private final ZoneOffsets offsets;
+        private final int[] commas = new int[6];
+
+        ChunkTask(List<Chunk> chunks, int from, int to, Tariff proposed, ZoneOffsets offsets) {
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+            this.proposed = proposed;
+            this.offsets = offsets;
+        }
+
+        @Override
+        protected Report compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                ChunkTask left = new ChunkTask(chunks, from, middle, proposed, offsets);
+                left.fork();
+                Report right = new ChunkTask(chunks, middle, to, proposed, offsets).compute();
+                return left.join().merge(right);
+            }
+            Report report = new Report();
+            try {
+                scan(chunks.get(from), report);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return report;
+        }
+
+        // Handles every line that starts inside the chunk, finding newlines and
+        // commas eight bytes at a time
+        private void scan(Chunk chunk, Report report) throws IOException {
+            long mapStart = Math.max(0, chunk.start - 1);
+            long mapEnd = Math.min(chunk.end + MAX_LINE, chunk.fileSize);
+            MappedByteBuffer buffer = chunk.channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            int limit = buffer.limit();
+            int position = 0;
+            if (chunk.start > 0) {
+                // The line in progress at the chunk start belongs to the previous chunk
+                while (position < limit && buffer.get(position) != '\n') {
+                    position++;
+                }
+                position++;
+            }
+            int chunkEnd = (int) (chunk.end - mapStart);
+            int lineStart = position;
+            int count = 0;
+            while (lineStart < chunkEnd && position < limit) {
+                long newlines;
+                long separators;
+                int width;
+                if (position + 8 <= limit) {
+                    long word = buffer.getLong(position);
+                    newlines = matchingBytes(word ^ NEWLINES);
+                    separators = newlines | matchingBytes(word ^ COMMAS);
+                    width = 8;
+                } else {
+                    byte b = buffer.get(position);
+                    newlines = b == '\n' ? 0x80 : 0;
+                    separators = b == '\n' || b == ',' ? 0x80 : 0;
+                    width = 1;
+                }
+                while (separators != 0) {
+                    int bit = Long.numberOfTrailingZeros(separators);
+                    int at = position + (bit >>> 3);
+                    if ((newlines & (1L << bit)) != 0) {
+                        parseLine(buffer, lineStart, at, count, report);
+                        lineStart = at + 1;
+                        count = 0;
+                        if (lineStart >= chunkEnd) {
+                            return;
+                        }
+                    } else {
+                        if (count < commas.length) {
+                            commas[count] = at;
+                        }
+                        count++;
+                    }
+                    separators &= separators - 1;
+                }
+                position += width;
+            }
+            // A line left unterminated at the end of the file is a row still being appended
+        }
+
+        // Closed rows only: plate,type,space,entry,exit,fare[,rateVersion]
+        private void parseLine(MappedByteBuffer buffer, int start, int end, int count, Report report) {
+            if (count != 5 && count != 6 || buffer.get(start) == '#') {
+                return;
+            }
+            if (buffer.get(end - 1) == '\r') {
+                end--;
+            }
+            int type = typeOrdinal(buffer.get(commas[0] + 1));
+            long space = parseLong(buffer, commas[1] + 1, commas[2]);
+            long entryTime = parseLong(buffer, commas[2] + 1, commas[3]);
+            long exitTime = parseLong(buffer, commas[3] + 1, commas[4]);
+            long fareCents = parseCents(buffer, commas[4] + 1, count == 6 ? commas[5] : end);
+            if (type < 0 || space < 0 || space > MAX_SPACE || entryTime < 0 || exitTime <= 0 || fareCents < 0) {
+                return;
+            }
+            long proposedCents = proposed.fareCents(TYPE_VALUES[type], entryTime, exitTime);
+            report.add(type, (int) space, offsets.localEpochDay(exitTime), fareCents, proposedCents);
+        }
+    }
+
+    // High bit set in each byte of word that is zero (exact, unlike the borrow trick)
+    private static long matchingBytes(long word) {
+        long t = ((word & 0x7F7F7F7F7F7F7F7FL) + 0x7F7F7F7F7F7F7F7FL) | word;
+        return ~(t | 0x7F7F7F7F7F7F7F7FL);
+    }
+
+    private static int typeOrdinal(byte first) {
+        switch (first) {
+            case 'C':
+            case 'c':
+                return VehicleType.CAR.ordinal();
+            case 'M':
+            case 'm':
+                return VehicleType.MOTOR.ordinal();
+            case 'T':
+            case 't':
+                return VehicleType.TRUCK.ordinal();
+            default:
+                return -1;
+        }
+    }
+
+    // Non-negative decimal integer, or -1
+    private static long parseLong(MappedByteBuffer buffer, int start, int end) {
+        if (start >= end || end - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    // An amount such as "12.50" in cents, rounded half up, or -1
+    private static long parseCents(MappedByteBuffer buffer, int start, int end) {
+        int dot = start;
+        while (dot < end && buffer.get(dot) != '.') {
+            dot++;
+        }
+        long whole = parseLong(buffer, start, dot);
+        if (whole < 0) {
+            return -1;
+        }
+        long cents = whole * 100;
+        int scale = 10;
+        for (int i = dot + 1; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            if (scale >= 1) {
+                cents += digit * scale;
+            } else if (scale == 0 && digit >= 5) {
+                cents++;
+            }
+            scale = scale == 1 ? 0 : scale == 0 ? -1 : scale / 10;
+        }
+        return cents;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java RepricingAnalysis <proposed parkingrate.txt> [data directory]");
+            System.exit(1);
+        }
+        Tariff proposed = Tariff.load(Paths.get(args[0]));
+        Path dataDir = Paths.get(args.length > 1 ? args[1] : "data");
+        List<Path> files = SessionJournal.listSessionFiles(dataDir.resolve("parked.txt"), dataDir.resolve("archive"));
+        Report report = run(files, proposed);
+
+        System.out.printf("Repriced %,d sessions from %d files in %,d ms on %d cores%n", report.getSessions(), files.size(),
+                report.getElapsedMillis(), Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-8s %12s %14s %14s %14s%n", "Type", "Sessions", "Current", "Proposed", "Change");
+        for (VehicleType type : VehicleType.values()) {
+            printRow(type.getLabel(), report.getSessions(type), report.getCurrentCents(type), report.getProposedCents(type));
+        }
+        printRow("Total", report.getSessions(), report.getCurrentCents(), report.getProposedCents());
+        List<LocalDate> days = report.getDays();
+        if (!days.isEmpty()) {
+            System.out.println("Days " + days.get(0) + " to " + days.get(days.size() - 1) + " (" + days.size() + " with sessions), spaces 1 to "
+                    + report.getMaxSpace());
+        }
+    }
+
+    private static void printRow(String label, long sessions, long current, long proposed) {
+        System.out.printf("%-8s %,12d %,14.2f %,14.2f %+,14.2f%n", label, sessions, current / 100.0, proposed / 100.0,
+                (proposed - current) / 100.0);
+    }
+}
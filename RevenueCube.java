@@ -0,0 +1,250 @@
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.temporal.IsoFields;
+import java.util.Arrays;
+
+/**
+ * Revenue in cents by day, vehicle type and space. Days live in a
+ * {@link RevenueStore}, so any range total (a day, an ISO week, a month, a
+ * year or an arbitrary span) is answered in O(log days) and each fare is added
+ * in O(log days) without allocating.
+ *
+ * Per-space totals are kept by month, counted from the first month with any
+ * space revenue, and cost spaces x months x 16 bytes. Revenue recorded without
+ * a type (old revenue.txt lines) counts towards the totals only. All methods
+ * are thread-safe.
+ */
+public class RevenueCube {
+    private RevenueStore store = new RevenueStore();
+    private long[][] spaceMonths = new long[0][];
+    private long[][] spaceTrees = new long[0][];
+    private int monthBase = Integer.MIN_VALUE;
+    private long cachedDay = Long.MIN_VALUE;
+    private int cachedMonth;
+
+    /**
+     * Adds a fare earned on {@code date}. {@code vehicleType} may be null and
+     * {@code spaceNumber} 0 when unknown.
+     */
+    public void add(LocalDate date, VehicleType vehicleType, int spaceNumber, long cents) {
+        add(date.toEpochDay(), vehicleType, spaceNumber, cents);
+    }
+
+    /**
+     * Same as {@link #add(LocalDate, VehicleType, int, long)} for an epoch day;
+     * this is the allocation-free path used for every fare.
+     */
+    public synchronized void add(long epochDay, VehicleType vehicleType, int spaceNumber, long cents) {
+        store.add(epochDay, typeIndex(vehicleType), cents);
+        if (spaceNumber > 0) {
+            if (epochDay != cachedDay) {
+                cachedMonth = monthNumber(YearMonth.from(LocalDate.ofEpochDay(epochDay)));
+                cachedDay = epochDay;
+            }
+            addSpace(cachedMonth, spaceNumber, cents);
+        }
+    }
+
+    /**
+     * Adds to one space's monthly total only.
+     */
+    public synchronized void addSpace(YearMonth month, int spaceNumber, long cents) {
+        addSpace(monthNumber(month), spaceNumber, cents);
+    }
+
+    public synchronized long getDayCents(LocalDate date) {
+        return store.getDayCents(date.toEpochDay());
+    }
+
+    /**
+     * Revenue of {@code vehicleType} (null for revenue without a type) on one
+     * day; with {@link #getSpaceMonthCents} this lists the cells to persist.
+     */
+    public synchronized long getDayCents(LocalDate date, VehicleType vehicleType) {
+        return store.getDayCents(date.toEpochDay(), typeIndex(vehicleType));
+    }
+
+    /**
+     * Total of {@code from} to {@code to}, both inclusive.
+     */
+    public synchronized long getRangeCents(LocalDate from, LocalDate to) {
+        return store.getRangeCents(from.toEpochDay(), to.toEpochDay());
+    }
+
+    public synchronized long getRangeCents(LocalDate from, LocalDate to, VehicleType vehicleType) {
+        return store.getRangeCents(from.toEpochDay(), to.toEpochDay(), vehicleType.ordinal());
+    }
+
+    /**
+     * Total of the ISO week (Monday to Sunday) containing {@code date}.
+     */
+    public long getWeekCents(LocalDate date) {
+        LocalDate monday = weekStart(date);
+        return getRangeCents(monday, monday.plusDays(6));
+    }
+
+    public long getWeekCents(LocalDate date, VehicleType vehicleType) {
+        LocalDate monday = weekStart(date);
+        return getRangeCents(monday, monday.plusDays(6), vehicleType);
+    }
+
+    public long getMonthCents(YearMonth month) {
+        return getRangeCents(month.atDay(1), month.atEndOfMonth());
+    }
+
+    public long getMonthCents(YearMonth month, VehicleType vehicleType) {
+        return getRangeCents(month.atDay(1), month.atEndOfMonth(), vehicleType);
+    }
+
+    public long getYearCents(int year) {
+        return getRangeCents(LocalDate.of(year, 1, 1), LocalDate.of(year, 12, 31));
+    }
+
+    public long getYearCents(int year, VehicleType vehicleType) {
+        return getRangeCents(LocalDate.of(year, 1, 1), LocalDate.of(year, 12, 31), vehicleType);
+    }
+
+    /**
+     * Revenue of one space over {@code from} to {@code to}, both inclusive.
+     */
+    public synchronized long getSpaceCents(int spaceNumber, YearMonth from, YearMonth to) {
+        if (spaceNumber <= 0 || spaceNumber >= spaceTrees.length || spaceTrees[spaceNumber] == null) {
+            return 0;
+        }
+        long fromIndex = Math.max(0, (long) monthNumber(from) - monthBase);
+        long toIndex = (long) monthNumber(to) - monthBase;
+        return RevenueStore.rangeSum(spaceTrees[spaceNumber], fromIndex, toIndex);
+    }
+
+    public synchronized long getSpaceMonthCents(int spaceNumber, YearMonth month) {
+        long monthIndex = (long) monthNumber(month) - monthBase;
+        if (spaceNumber <= 0 || spaceNumber >= spaceMonths.length || spaceMonths[spaceNumber] == null
+                || monthIndex < 0 || monthIndex >= spaceMonths[spaceNumber].length) {
+            return 0;
+        }
+        return spaceMonths[spaceNumber][(int) monthIndex];
+    }
+
+    /**
+     * Highest space number with any revenue recorded, or 0.
+     */
+    public synchronized int getMaxSpace() {
+        for (int space = spaceMonths.length - 1; space > 0; space--) {
+            if (spaceMonths[space] != null) {
+                return space;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * First and last month with revenue for any space, or null.
+     */
+    public synchronized YearMonth[] getSpaceMonthRange() {
+        int first = Integer.MAX_VALUE;
+        int last = -1;
+        for (long[] months : spaceMonths) {
+            if (months == null) {
+                continue;
+            }
+            for (int month = 0; month < months.length; month++) {
+                if (months[month] != 0) {
+                    first = Math.min(first, month);
+                    last = Math.max(last, month);
+                }
+            }
+        }
+        return last < 0 ? null : new YearMonth[]{yearMonth(monthBase + first), yearMonth(monthBase + last)};
+    }
+
+    /**
+     * First day with revenue recorded, or null when there is none.
+     */
+    public synchronized LocalDate getFirstDay() {
+        return store.isEmpty() ? null : LocalDate.ofEpochDay(store.getFirstDay());
+    }
+
+    public synchronized LocalDate getLastDay() {
+        return store.isEmpty() ? null : LocalDate.ofEpochDay(store.getLastDay());
+    }
+
+    /**
+     * Independent copy, e.g. for writing a checkpoint outside the owner's lock.
+     */
+    public synchronized RevenueCube copy() {
+        RevenueCube copy = new RevenueCube();
+        copy.store = store.copy();
+        copy.spaceMonths = new long[spaceMonths.length][];
+        copy.spaceTrees = new long[spaceTrees.length][];
+        for (int space = 0; space < spaceMonths.length; space++) {
+            if (spaceMonths[space] != null) {
+                copy.spaceMonths[space] = spaceMonths[space].clone();
+                copy.spaceTrees[space] = spaceTrees[space].clone();
+            }
+        }
+        copy.monthBase = monthBase;
+        return copy;
+    }
+
+    public static LocalDate weekStart(LocalDate date) {
+        return date.with(DayOfWeek.MONDAY);
+    }
+
+    /**
+     * ISO label for the week containing {@code date}, e.g. "2025-W01", which
+     * may belong to the neighbouring calendar year.
+     */
+    public static String weekLabel(LocalDate date) {
+        return String.format("%d-W%02d", date.get(IsoFields.WEEK_BASED_YEAR), date.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR));
+    }
+
+    private static int typeIndex(VehicleType vehicleType) {
+        return vehicleType == null ? RevenueStore.UNTYPED : vehicleType.ordinal();
+    }
+
+    // Months counted from year 0, so consecutive months differ by one
+    private static int monthNumber(YearMonth month) {
+        return month.getYear() * 12 + month.getMonthValue() - 1;
+    }
+
+    private static YearMonth yearMonth(int monthNumber) {
+        return YearMonth.of(Math.floorDiv(monthNumber, 12), Math.floorMod(monthNumber, 12) + 1);
+    }
+
+    private void addSpace(int month, int spaceNumber, long cents) {
+        if (monthBase == Integer.MIN_VALUE) {
+            monthBase = month;
+        } else if (month < monthBase) {
+            rebaseMonths(month);
+        }
+        int monthIndex = month - monthBase;
+        if (spaceNumber >= spaceMonths.length) {
+            spaceMonths = Arrays.copyOf(spaceMonths, Math.max(spaceNumber + 1, spaceMonths.length * 2));
+            spaceTrees = Arrays.copyOf(spaceTrees, spaceMonths.length);
+        }
+        long[] months = spaceMonths[spaceNumber];
+        if (months == null || monthIndex >= months.length) {
+            int capacity = Math.max(monthIndex + 1, months == null ? 0 : months.length * 2);
+            months = months == null ? new long[capacity] : Arrays.copyOf(months, capacity);
+            spaceMonths[spaceNumber] = months;
+            spaceTrees[spaceNumber] = RevenueStore.buildTree(months);
+        }
+        months[monthIndex] += cents;
+        RevenueStore.fenwickAdd(spaceTrees[spaceNumber], monthIndex, cents);
+    }
+
+    private void rebaseMonths(int newBase) {
+        int shift = monthBase - newBase;
+        for (int space = 0; space < spaceMonths.length; space++) {
+            long[] months = spaceMonths[space];
+            if (months != null) {
+                long[] shifted = new long[months.length + shift];
+                System.arraycopy(months, 0, shifted, shift, months.length);
+                spaceMonths[space] = shifted;
+                spaceTrees[space] = RevenueStore.buildTree(shifted);
+            }
+        }
+        monthBase = newBase;
+    }
+}
@@ -0,0 +1,370 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Revenue totals kept in memory as a {@link RevenueCube}. Each fare is added to
+ * the cube and appended as one {@code date,amount,type,space} line to the
+ * current fare log; revenue.txt is only rewritten at checkpoints (periodically
+ * and on close). Log appends are buffered until {@link #flush} or {@link #sync}.
+ * Recording a fare allocates nothing: the day is cached until midnight and the
+ * log line is written straight into the buffer.
+ *
+ * revenue.txt holds {@code date,amount,type,} lines for each day and type and
+ * {@code yyyy-MM,amount,,space} lines for each space and month. Plain
+ * {@code date,amount} lines from older versions are read as revenue without
+ * a type; a revenue.txt without a generation header is rewritten in the
+ * current format at the first checkpoint.
+ *
+ * A checkpoint starts a new log generation, writes the totals together with a
+ * {@code #generation=<n>} header and then deletes the older logs. On open the
+ * checkpoint is loaded and every log from its generation onwards is replayed,
+ * so a crash at any point neither loses nor double-counts fares.
+ */
+public class RevenueLedger {
+    private static final String HEADER_PREFIX = "#generation=";
+    private static final String LOG_PREFIX = "revenue-";
+    private static final String LOG_SUFFIX = ".log";
+
+    private final Path checkpointFile;
+    private final Path logDir;
+    private RevenueCube cube = new RevenueCube();
+    private FileChannel logChannel;
+    private BufferedWriter logWriter;
+    private int generation;
+    private boolean dirty;
+    private long today = Long.MIN_VALUE;
+    private String todayText;
+    private long todayStartMillis;
+    private long tomorrowStartMillis;
+    private final char[] digits = new char[20];
+
+    private final Object checkpointLock = new Object();
+    private ScheduledExecutorService scheduler;
+
+    public RevenueLedger(Path checkpointFile) {
+        this.checkpointFile = checkpointFile;
+        this.logDir = checkpointFile.toAbsolutePath().getParent();
+    }
+
+    /**
+     * Loads the last checkpoint, replays the fare logs written after it and
+     * schedules a checkpoint every {@code checkpointSeconds} (0 disables it).
+     */
+    public synchronized void open(long checkpointSeconds) throws IOException {
+        cube = new RevenueCube();
+        generation = 0;
+        if (Files.exists(checkpointFile)) {
+            boolean hasHeader = false;
+            try (BufferedReader reader = Files.newBufferedReader(checkpointFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(HEADER_PREFIX)) {
+                        generation = Integer.parseInt(line.substring(HEADER_PREFIX.length()).trim());
+                        hasHeader = true;
+                    } else {
+                        applyLine(line);
+                    }
+                }
+            }
+            // An old-format file is converted by the next checkpoint
+            dirty = !hasHeader && cube.getFirstDay() != null;
+        }
+        int checkpointGeneration = generation;
+        for (Path log : listLogs()) {
+            int logGeneration = logGeneration(log);
+            if (logGeneration < checkpointGeneration) {
+                // Already folded into the checkpoint; the delete was interrupted
+                Files.delete(log);
+                continue;
+            }
+            try (BufferedReader reader = Files.newBufferedReader(log, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    applyLine(line);
+                }
+            }
+            generation = Math.max(generation, logGeneration);
+            dirty = true;
+        }
+        openLog(generation);
+
+        if (checkpointSeconds > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "revenue-checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    checkpoint();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, checkpointSeconds, checkpointSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Adds a fare to today's totals and appends it to the fare log.
+     */
+    public synchronized void record(VehicleType vehicleType, int spaceNumber, double amount) throws IOException {
+        long now = System.currentTimeMillis();
+        if (now < todayStartMillis || now >= tomorrowStartMillis) {
+            rollDay();
+        }
+        long cents = Math.round(amount * 100);
+        cube.add(today, vehicleType, spaceNumber, cents);
+        logWriter.write(todayText);
+        logWriter.write(',');
+        writeCents(logWriter, cents, digits);
+        logWriter.write(',');
+        logWriter.write(vehicleType.getLabel());
+        logWriter.write(',');
+        writeNumber(logWriter, spaceNumber, digits);
+        logWriter.newLine();
+        dirty = true;
+    }
+
+    public synchronized void flush() throws IOException {
+        logWriter.flush();
+    }
+
+    /**
+     * Flushes and forces the fare log to disk.
+     */
+    public synchronized void sync() throws IOException {
+        logWriter.flush();
+        logChannel.force(false);
+    }
+
+    public synchronized double getRevenue(LocalDate date) {
+        return cube.getDayCents(date) / 100.0;
+    }
+
+    public double getTodayRevenue() {
+        return getRevenue(LocalDate.now());
+    }
+
+    /**
+     * The live totals; safe to query from any thread.
+     */
+    public synchronized RevenueCube getCube() {
+        return cube;
+    }
+
+    /**
+     * Writes the current daily totals to revenue.txt and drops the fare logs
+     * they cover. Fares keep being recorded while the file is written.
+     */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            RevenueCube snapshot;
+            int newGeneration;
+            long start = Instrumentation.start(Instrumentation.REVENUE_CHECKPOINT);
+            synchronized (this) {
+                if (!dirty) {
+                    return;
+                }
+                logWriter.close();
+                newGeneration = generation + 1;
+                openLog(newGeneration);
+                generation = newGeneration;
+                snapshot = cube.copy();
+                dirty = false;
+            }
+
+            Path tmp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+            try {
+                try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                    writer.write(HEADER_PREFIX + newGeneration);
+                    writer.newLine();
+                    writeCheckpoint(writer, snapshot);
+                }
+                try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+                Files.move(tmp, checkpointFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                // The older logs are still on disk, so the next checkpoint simply retries
+                synchronized (this) {
+                    dirty = true;
+                }
+                throw e;
+            }
+
+            for (Path log : listLogs()) {
+                if (logGeneration(log) < newGeneration) {
+                    Files.delete(log);
+                }
+            }
+            Instrumentation.record(Instrumentation.REVENUE_CHECKPOINT, start);
+        }
+    }
+
+    /**
+     * Stops the periodic checkpoint and writes a final one.
+     */
+    public void close() throws IOException {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        synchronized (this) {
+            if (logWriter == null) {
+                return;
+            }
+        }
+        checkpoint();
+        synchronized (this) {
+            logWriter.close();
+            logWriter = null;
+        }
+    }
+
+    private static void writeCheckpoint(BufferedWriter writer, RevenueCube snapshot) throws IOException {
+        char[] digits = new char[20];
+        LocalDate first = snapshot.getFirstDay();
+        if (first != null) {
+            for (LocalDate day = first; !day.isAfter(snapshot.getLastDay()); day = day.plusDays(1)) {
+                long untyped = snapshot.getDayCents(day, null);
+                if (untyped != 0) {
+                    writer.write(day.toString());
+                    writer.write(',');
+                    writeCents(writer, untyped, digits);
+                    writer.newLine();
+                }
+                for (VehicleType type : VehicleType.values()) {
+                    long cents = snapshot.getDayCents(day, type);
+                    if (cents != 0) {
+                        writer.write(day.toString());
+                        writer.write(',');
+                        writeCents(writer, cents, digits);
+                        writer.write(',');
+                        writer.write(type.getLabel());
+                        writer.write(',');
+                        writer.newLine();
+                    }
+                }
+            }
+        }
+        YearMonth[] months = snapshot.getSpaceMonthRange();
+        if (months != null) {
+            for (int space = 1; space <= snapshot.getMaxSpace(); space++) {
+                for (YearMonth month = months[0]; !month.isAfter(months[1]); month = month.plusMonths(1)) {
+                    long cents = snapshot.getSpaceMonthCents(space, month);
+                    if (cents != 0) {
+                        writer.write(month.toString());
+                        writer.write(',');
+                        writeCents(writer, cents, digits);
+                        writer.write(",,");
+                        writeNumber(writer, space, digits);
+                        writer.newLine();
+                    }
+                }
+            }
+        }
+    }
+
+    private void applyLine(String line) {
+        String[] parts = line.split(",", -1);
+        if (parts.length != 2 && parts.length != 4) {
+            return;
+        }
+        try {
+            long cents = Math.round(Double.parseDouble(parts[1].trim()) * 100);
+            String key = parts[0].trim();
+            VehicleType vehicleType = parts.length == 4 && !parts[2].isEmpty() ? VehicleType.fromName(parts[2].trim()) : null;
+            int spaceNumber = parts.length == 4 && !parts[3].isEmpty() ? Integer.parseInt(parts[3].trim()) : 0;
+            if (key.length() == 7) {
+                cube.addSpace(YearMonth.parse(key), spaceNumber, cents);
+            } else {
+                cube.add(LocalDate.parse(key), vehicleType, spaceNumber, cents);
+            }
+        } catch (DateTimeParseException | NumberFormatException e) {
+            // A torn last line from a crash mid-append
+        }
+    }
+
+    private void rollDay() {
+        ZoneId zone = ZoneId.systemDefault();
+        LocalDate date = LocalDate.now(zone);
+        today = date.toEpochDay();
+        todayText = date.toString();
+        todayStartMillis = date.atStartOfDay(zone).toInstant().toEpochMilli();
+        tomorrowStartMillis = date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+    // Writes cents as a plain decimal amount, e.g. 1250 as "12.50"
+    private static void writeCents(Writer out, long cents, char[] digits) throws IOException {
+        if (cents < 0) {
+            out.write('-');
+            cents = -cents;
+        }
+        writeNumber(out, cents / 100, digits);
+        long fraction = cents % 100;
+        out.write('.');
+        out.write((char) ('0' + fraction / 10));
+        out.write((char) ('0' + fraction % 10));
+    }
+
+    private static void writeNumber(Writer out, long value, char[] digits) throws IOException {
+        int start = digits.length;
+        do {
+            digits[--start] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        out.write(digits, start, digits.length - start);
+    }
+
+    private void openLog(int logGeneration) throws IOException {
+        logChannel = FileChannel.open(logFile(logGeneration), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        logWriter = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(logChannel), StandardCharsets.UTF_8));
+    }
+
+    private Path logFile(int logGeneration) {
+        return logDir.resolve(String.format(Locale.ROOT, "%s%06d%s", LOG_PREFIX, logGeneration, LOG_SUFFIX));
+    }
+
+    private List<Path> listLogs() throws IOException {
+        List<Path> logs = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(logDir, LOG_PREFIX + "*" + LOG_SUFFIX)) {
+            for (Path entry : entries) {
+                if (logGeneration(entry) >= 0) {
+                    logs.add(entry);
+                }
+            }
+        }
+        logs.sort(null);
+        return logs;
+    }
+
+    private static int logGeneration(Path log) {
+        String name = log.getFileName().toString();
+        try {
+            return Integer.parseInt(name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
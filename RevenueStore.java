@@ -0,0 +1,176 @@
+import java.util.Arrays;
+
+/**
+ * Revenue in cents for each day, indexed by epoch day, with one side array per
+ * vehicle type. Values and their Fenwick trees are plain {@code long[]}s offset
+ * from the earliest day stored, so adding a fare allocates nothing apart from
+ * the occasional doubling, and ten years of data take a few hundred KB.
+ *
+ * Type arguments are {@link VehicleType} ordinals, or {@link #UNTYPED} for
+ * revenue recorded without a type, which counts towards the totals only.
+ * Not thread-safe; {@link RevenueCube} guards it.
+ */
+public class RevenueStore {
+    public static final int UNTYPED = -1;
+
+    private static final int TYPES = VehicleType.values().length;
+    private static final int INITIAL_DAYS = 512;
+
+    private long baseDay;
+    private long[] totals = new long[0];
+    private long[] totalTree = new long[1];
+    private final long[][] typeTotals = new long[TYPES][0];
+    private final long[][] typeTrees = new long[TYPES][1];
+    private long firstDay = Long.MAX_VALUE;
+    private long lastDay = Long.MIN_VALUE;
+
+    public void add(long epochDay, int type, long cents) {
+        if (totals.length == 0) {
+            baseDay = epochDay;
+            resize(epochDay, INITIAL_DAYS);
+        } else if (epochDay < baseDay) {
+            long newBaseDay = Math.min(epochDay, baseDay - totals.length);
+            resize(newBaseDay, totals.length + (int) (baseDay - newBaseDay));
+        } else if (epochDay - baseDay >= totals.length) {
+            resize(baseDay, Math.max((int) (epochDay - baseDay) + 1, totals.length * 2));
+        }
+        int index = (int) (epochDay - baseDay);
+        totals[index] += cents;
+        fenwickAdd(totalTree, index, cents);
+        if (type != UNTYPED) {
+            typeTotals[type][index] += cents;
+            fenwickAdd(typeTrees[type], index, cents);
+        }
+        firstDay = Math.min(firstDay, epochDay);
+        lastDay = Math.max(lastDay, epochDay);
+    }
+
+    public boolean isEmpty() {
+        return firstDay == Long.MAX_VALUE;
+    }
+
+    /**
+     * Earliest epoch day with revenue; only meaningful when not empty.
+     */
+    public long getFirstDay() {
+        return firstDay;
+    }
+
+    public long getLastDay() {
+        return lastDay;
+    }
+
+    public long getDayCents(long epochDay) {
+        int index = indexOf(epochDay);
+        return index < 0 ? 0 : totals[index];
+    }
+
+    /**
+     * Revenue of one type on one day; {@link #UNTYPED} gives what is left after
+     * the typed revenue.
+     */
+    public long getDayCents(long epochDay, int type) {
+        int index = indexOf(epochDay);
+        if (index < 0) {
+            return 0;
+        }
+        if (type != UNTYPED) {
+            return typeTotals[type][index];
+        }
+        long untyped = totals[index];
+        for (int t = 0; t < TYPES; t++) {
+            untyped -= typeTotals[t][index];
+        }
+        return untyped;
+    }
+
+    /**
+     * Total of {@code fromDay} to {@code toDay}, both inclusive.
+     */
+    public long getRangeCents(long fromDay, long toDay) {
+        return rangeSum(totalTree, clamp(fromDay), clamp(toDay));
+    }
+
+    public long getRangeCents(long fromDay, long toDay, int type) {
+        return rangeSum(typeTrees[type], clamp(fromDay), clamp(toDay));
+    }
+
+    public RevenueStore copy() {
+        RevenueStore copy = new RevenueStore();
+        copy.baseDay = baseDay;
+        copy.totals = totals.clone();
+        copy.totalTree = totalTree.clone();
+        for (int t = 0; t < TYPES; t++) {
+            copy.typeTotals[t] = typeTotals[t].clone();
+            copy.typeTrees[t] = typeTrees[t].clone();
+        }
+        copy.firstDay = firstDay;
+        copy.lastDay = lastDay;
+        return copy;
+    }
+
+    private int indexOf(long epochDay) {
+        long index = epochDay - baseDay;
+        return index < 0 || index >= totals.length ? -1 : (int) index;
+    }
+
+    // Days outside the arrays are clamped one step beyond them, where they add nothing
+    private long clamp(long epochDay) {
+        return Math.max(-1, Math.min(epochDay - baseDay, totals.length));
+    }
+
+    private void resize(long newBaseDay, int newLength) {
+        int shift = (int) (baseDay - newBaseDay);
+        totals = shifted(totals, shift, newLength);
+        totalTree = buildTree(totals);
+        for (int t = 0; t < TYPES; t++) {
+            typeTotals[t] = shifted(typeTotals[t], shift, newLength);
+            typeTrees[t] = buildTree(typeTotals[t]);
+        }
+        baseDay = newBaseDay;
+    }
+
+    private static long[] shifted(long[] values, int shift, int newLength) {
+        if (shift == 0) {
+            return Arrays.copyOf(values, newLength);
+        }
+        long[] result = new long[newLength];
+        System.arraycopy(values, 0, result, shift, values.length);
+        return result;
+    }
+
+    // Fenwick trees are 1-based: tree[i] covers values (i - lowbit(i), i]
+    static long[] buildTree(long[] values) {
+        long[] tree = new long[values.length + 1];
+        for (int i = 1; i <= values.length; i++) {
+            tree[i] += values[i - 1];
+            int parent = i + (i & -i);
+            if (parent <= values.length) {
+                tree[parent] += tree[i];
+            }
+        }
+        return tree;
+    }
+
+    static void fenwickAdd(long[] tree, int index, long delta) {
+        for (int i = index + 1; i < tree.length; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    // Sum of values [0, index]
+    private static long prefixSum(long[] tree, long index) {
+        long sum = 0;
+        for (int i = (int) Math.min(index + 1, tree.length - 1); i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    static long rangeSum(long[] tree, long from, long to) {
+        if (to < from) {
+            return 0;
+        }
+        return prefixSum(tree, to) - (from > 0 ? prefixSum(tree, from - 1) : 0);
+    }
+}
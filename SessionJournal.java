@@ -0,0 +1,491 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Append-only log of parking sessions kept in parked.txt. An entry appends
+ * {@code plate,type,space,entry}; an exit appends the closed row
+ * {@code plate,type,space,entry,exit,fare,rateVersion}, which supersedes the
+ * earlier open row (rows from older versions lack the rate version). Open
+ * sessions are also indexed in memory, so closing one costs a single append.
+ * Appends are buffered; {@link #flush} and {@link #sync} are left to the
+ * caller so that several events can share one write and one fsync.
+ *
+ * Once enough closed rows pile up, a background compactor moves them into
+ * numbered archive segments and rewrites the journal with only the open
+ * sessions and whatever arrived meanwhile. The journal's first line,
+ * {@code #archived,<n>}, records the last segment folded out of it, so a
+ * segment left behind by an interrupted compaction is discarded on open.
+ */
+public class SessionJournal {
+    private static final String HEADER_PREFIX = "#archived,";
+    private static final String SEGMENT_PREFIX = "parked-";
+    private static final String SEGMENT_SUFFIX = ".txt";
+
+    private final Path journalFile;
+    private final Path archiveDir;
+    private final int compactThreshold;
+
+    // Plate -> open session, in entry order
+    private final Map<String, ParkingRecord> openSessions = new LinkedHashMap<>();
+    private FileChannel channel;
+    private BufferedWriter writer;
+    private int archivedSegments;
+    private int closedRowsInJournal;
+
+    // Held for reading while history is scanned and for writing while compaction swaps files
+    private final ReadWriteLock layoutLock = new ReentrantReadWriteLock();
+    private final Object compactionLock = new Object();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "journal-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private boolean compactionPending;
+
+    public interface FilesReader<T> {
+        T read(List<Path> files) throws IOException;
+    }
+
+    public SessionJournal(Path journalFile, Path archiveDir, int compactThreshold) {
+        this.journalFile = journalFile;
+        this.archiveDir = archiveDir;
+        this.compactThreshold = compactThreshold;
+    }
+
+    /**
+     * Recovers from an interrupted compaction, rebuilds the open-session index
+     * and opens the journal for appending.
+     */
+    public synchronized void open() throws IOException {
+        Files.createDirectories(archiveDir);
+        if (!Files.exists(journalFile)) {
+            Files.createFile(journalFile);
+        }
+        openSessions.clear();
+        closedRowsInJournal = 0;
+        archivedSegments = 0;
+        try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(HEADER_PREFIX)) {
+                    archivedSegments = Integer.parseInt(line.substring(HEADER_PREFIX.length()).trim());
+                    continue;
+                }
+                ParkingRecord row = parseRow(line);
+                if (row == null) {
+                    continue;
+                }
+                if (row.isClosed()) {
+                    ParkingRecord open = openSessions.get(row.getLicensePlate());
+                    if (open != null && closes(row, open)) {
+                        openSessions.remove(row.getLicensePlate());
+                    }
+                    closedRowsInJournal++;
+                } else {
+                    openSessions.put(row.getLicensePlate(), row);
+                }
+            }
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(archiveDir)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (name.endsWith(".tmp") || segmentNumber(entry) > archivedSegments) {
+                    Files.delete(entry);
+                }
+            }
+        }
+        openWriter();
+    }
+
+    public synchronized void recordEntry(String licensePlate, VehicleType vehicleType, int spaceNumber, long entryTime) throws IOException {
+        ParkingRecord open = new ParkingRecord(licensePlate, vehicleType, spaceNumber, entryTime, 0, 0);
+        writer.write(formatRow(open));
+        writer.newLine();
+        openSessions.put(licensePlate, open);
+    }
+
+    public synchronized void recordExit(ParkingRecord record) throws IOException {
+        writer.write(formatRow(record));
+        writer.newLine();
+        openSessions.remove(record.getLicensePlate());
+        closedRowsInJournal++;
+        if (closedRowsInJournal >= compactThreshold && !compactionPending) {
+            compactionPending = true;
+            compactor.execute(() -> {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    synchronized (SessionJournal.this) {
+                        compactionPending = false;
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Hands buffered appends to the operating system.
+     */
+    public synchronized void flush() throws IOException {
+        writer.flush();
+    }
+
+    /**
+     * Flushes and forces appended rows to disk.
+     */
+    public synchronized void sync() throws IOException {
+        writer.flush();
+        channel.force(false);
+    }
+
+    public synchronized ParkingRecord getOpenSession(String licensePlate) {
+        return openSessions.get(licensePlate);
+    }
+
+    public synchronized int getOpenSessionCount() {
+        return openSessions.size();
+    }
+
+    /**
+     * Returns a snapshot of the open sessions in entry order.
+     */
+    public synchronized List<ParkingRecord> getOpenSessions() {
+        return new ArrayList<>(openSessions.values());
+    }
+
+    /**
+     * Visits every session, archived ones first, then the journal with open rows
+     * replaced by their closed row where one exists. Open sessions have an exit
+     * time of 0.
+     */
+    public void forEachSession(Consumer<ParkingRecord> visitor) throws IOException {
+        layoutLock.readLock().lock();
+        try {
+            // Only segments the journal's header counts: one written by a compaction
+            // that has not swapped the journal yet would repeat its closed rows
+            for (Path segment : listSessionFiles(journalFile, archiveDir)) {
+                if (segment.equals(journalFile)) {
+                    continue;
+                }
+                try (BufferedReader reader = Files.newBufferedReader(segment, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        ParkingRecord row = parseRow(line);
+                        if (row != null) {
+                            visitor.accept(row);
+                        }
+                    }
+                }
+            }
+            List<ParkingRecord> rows = new ArrayList<>();
+            // Plate -> index in rows of its open session
+            Map<String, Integer> openRows = new HashMap<>();
+            try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    ParkingRecord row = parseRow(line);
+                    if (row == null) {
+                        continue;
+                    }
+                    String plate = row.getLicensePlate();
+                    Integer openRow = row.isClosed() ? openRows.get(plate) : null;
+                    if (openRow != null && closes(row, rows.get(openRow))) {
+                        openRows.remove(plate);
+                        rows.set(openRow, row);
+                    } else {
+                        if (!row.isClosed()) {
+                            openRows.put(plate, rows.size());
+                        }
+                        rows.add(row);
+                    }
+                }
+            }
+            rows.forEach(visitor);
+        } finally {
+            layoutLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Hands the archive segments and then the journal to {@code reader} for
+     * scanning directly, holding off compaction so that none of them is swapped
+     * out meanwhile. Rows appended during the scan may or may not be seen.
+     */
+    public <T> T readSessionFiles(FilesReader<T> reader) throws IOException {
+        layoutLock.readLock().lock();
+        try {
+            return reader.read(listSessionFiles(journalFile, archiveDir));
+        } finally {
+            layoutLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The archive segments folded out of {@code journalFile}, oldest first,
+     * followed by the journal itself, without opening the journal. Segments
+     * left behind by an interrupted compaction are skipped.
+     */
+    public static List<Path> listSessionFiles(Path journalFile, Path archiveDir) throws IOException {
+        int archived = 0;
+        if (Files.exists(journalFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+                String first = reader.readLine();
+                if (first != null && first.startsWith(HEADER_PREFIX)) {
+                    archived = Integer.parseInt(first.substring(HEADER_PREFIX.length()).trim());
+                }
+            }
+        }
+        List<Path> files = new ArrayList<>();
+        if (Files.isDirectory(archiveDir)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(archiveDir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+                for (Path entry : entries) {
+                    if (segmentNumber(entry) > 0 && segmentNumber(entry) <= archived) {
+                        files.add(entry);
+                    }
+                }
+            }
+        }
+        files.sort(null);
+        if (Files.exists(journalFile)) {
+            files.add(journalFile);
+        }
+        return files;
+    }
+
+    /**
+     * Moves the closed rows currently in the journal into a new archive segment
+     * and rewrites the journal without them. Appends keep going while the
+     * segment is written; they are only blocked for the final swap.
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            long prefixLength;
+            int segmentNumber;
+            synchronized (this) {
+                if (writer == null) {
+                    return;
+                }
+                writer.flush();
+                prefixLength = Files.size(journalFile);
+                segmentNumber = archivedSegments + 1;
+            }
+
+            Path segment = archiveDir.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX));
+            Path segmentTmp = archiveDir.resolve(segment.getFileName() + ".tmp");
+            int archived = 0;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new LimitedInputStream(Files.newInputStream(journalFile), prefixLength), StandardCharsets.UTF_8));
+                 BufferedWriter out = Files.newBufferedWriter(segmentTmp, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    ParkingRecord row = parseRow(line);
+                    if (row != null && row.isClosed()) {
+                        out.write(line);
+                        out.newLine();
+                        archived++;
+                    }
+                }
+            }
+            if (archived == 0) {
+                Files.delete(segmentTmp);
+                return;
+            }
+            force(segmentTmp);
+            Files.move(segmentTmp, segment, StandardCopyOption.ATOMIC_MOVE);
+
+            layoutLock.writeLock().lock();
+            try {
+                synchronized (this) {
+                    writer.flush();
+                    Path journalTmp = journalFile.resolveSibling(journalFile.getFileName() + ".tmp");
+                    int closedInTail = 0;
+                    try (BufferedWriter out = Files.newBufferedWriter(journalTmp, StandardCharsets.UTF_8)) {
+                        out.write(HEADER_PREFIX + segmentNumber);
+                        out.newLine();
+                        try (InputStream in = Files.newInputStream(journalFile)) {
+                            skipFully(in, prefixLength);
+                            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                            String line;
+                            while ((line = reader.readLine()) != null) {
+                                ParkingRecord row = parseRow(line);
+                                if (row != null && row.isClosed()) {
+                                    out.write(line);
+                                    out.newLine();
+                                    closedInTail++;
+                                }
+                            }
+                        }
+                        // Open sessions come from the index, so open rows in the tail are skipped. They go
+                        // after the closed rows, which all ended before any open session of the same plate began
+                        for (ParkingRecord open : openSessions.values()) {
+                            out.write(formatRow(open));
+                            out.newLine();
+                        }
+                    }
+                    force(journalTmp);
+                    writer.close();
+                    Files.move(journalTmp, journalFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    openWriter();
+                    archivedSegments = segmentNumber;
+                    closedRowsInJournal = closedInTail;
+                }
+            } finally {
+                layoutLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Lets a running compaction finish, then closes the journal.
+     */
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+        }
+    }
+
+    private void openWriter() throws IOException {
+        channel = FileChannel.open(journalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8));
+    }
+
+    private static int segmentNumber(Path segment) {
+        String name = segment.getFileName().toString();
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Whether {@code closed} ends the plate's {@code open} session. A plate has
+     * one open session at a time, so the plate decides, not the entry time:
+     * sessions converted from lot.txt carry the lot's entry time, a few
+     * milliseconds off the one in parked.txt. The exception is a closed row
+     * that ended before the open session began, which is an earlier visit
+     * (compaction used to write open rows ahead of the closed rows after them).
+     */
+    static boolean closes(ParkingRecord closed, ParkingRecord open) {
+        return closed.getEntryTime() == open.getEntryTime() || closed.getExitTime() > open.getEntryTime();
+    }
+
+    static String formatRow(ParkingRecord record) {
+        String row = record.getLicensePlate() + "," + record.getVehicleType() + "," + record.getSpaceNumber() + "," + record.getEntryTime();
+        if (record.isClosed()) {
+            row += "," + record.getExitTime() + "," + String.format(Locale.ROOT, "%.2f", record.getFare()) + "," + record.getRateVersion();
+        }
+        return row;
+    }
+
+    static ParkingRecord parseRow(String line) {
+        if (line.isEmpty() || line.startsWith("#")) {
+            return null;
+        }
+        String[] parts = line.split(",");
+        if (parts.length < 4 || parts.length == 5 || parts.length > 7) {
+            return null;
+        }
+        try {
+            VehicleType vehicleType = VehicleType.fromName(parts[1]);
+            int spaceNumber = Integer.parseInt(parts[2]);
+            long entryTime = Long.parseLong(parts[3]);
+            long exitTime = parts.length >= 6 ? Long.parseLong(parts[4]) : 0;
+            double fare = parts.length >= 6 ? Double.parseDouble(parts[5]) : 0;
+            int rateVersion = parts.length == 7 ? Integer.parseInt(parts[6]) : 0;
+            return new ParkingRecord(parts[0], vehicleType, spaceNumber, entryTime, exitTime, fare, rateVersion);
+        } catch (NumberFormatException e) {
+            // A torn last line from a crash mid-append
+            return null;
+        }
+    }
+
+    private static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new IOException("Journal shrank during compaction");
+            }
+            count -= skipped;
+        }
+    }
+
+    // Reads only the part of the journal that existed when compaction started
+    private static class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = super.read(buffer, offset, (int) Math.min(length, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * Free-space index over spaces {@code 0 .. capacity-1}. Free spaces are set bits
+ * in a 64-ary summary tree: each level keeps one bit per non-empty word of the
+ * level below, so finding the lowest, next, previous or nearest free space costs
+ * O(log64 N) word operations (four levels cover 16M spaces).
+ */
+public class SpaceAllocator {
+    private final int capacity;
+    // levels[0] holds one bit per space; the last level is a single word
+    private final long[][] levels;
+    private int freeCount;
+
+    public SpaceAllocator(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        int depth = 1;
+        for (int words = wordsFor(capacity); words > 1; words = wordsFor(words)) {
+            depth++;
+        }
+        levels = new long[depth][];
+        int bits = capacity;
+        for (int level = 0; level < depth; level++) {
+            levels[level] = new long[wordsFor(bits)];
+            bits = levels[level].length;
+        }
+        for (int i = 0; i < capacity; i++) {
+            release(i);
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getFreeCount() {
+        return freeCount;
+    }
+
+    public boolean isFree(int space) {
+        checkSpace(space);
+        return (levels[0][space >>> 6] & (1L << space)) != 0;
+    }
+
+    /**
+     * Marks {@code space} as used. Returns false if it was already taken.
+     */
+    public boolean allocate(int space) {
+        checkSpace(space);
+        int index = space;
+        for (int level = 0; level < levels.length; level++) {
+            long[] words = levels[level];
+            int w = index >>> 6;
+            long before = words[w];
+            long after = before & ~(1L << index);
+            if (before == after) {
+                return level > 0;
+            }
+            words[w] = after;
+            if (level == 0) {
+                freeCount--;
+            }
+            if (after != 0) {
+                break;
+            }
+            index = w;
+        }
+        return true;
+    }
+
+    /**
+     * Allocates the lowest free space, or returns -1 when none is left.
+     */
+    public int allocateLowest() {
+        int space = nextFree(0);
+        if (space >= 0) {
+            allocate(space);
+        }
+        return space;
+    }
+
+    /**
+     * Allocates the free space closest to {@code target}, preferring the lower
+     * one on a tie, or returns -1 when none is left.
+     */
+    public int allocateNearest(int target) {
+        int space = nearestFree(target);
+        if (space >= 0) {
+            allocate(space);
+        }
+        return space;
+    }
+
+    public void release(int space) {
+        checkSpace(space);
+        int index = space;
+        for (int level = 0; level < levels.length; level++) {
+            long[] words = levels[level];
+            int w = index >>> 6;
+            long before = words[w];
+            long after = before | (1L << index);
+            if (before == after) {
+                return;
+            }
+            words[w] = after;
+            if (level == 0) {
+                freeCount++;
+            }
+            if (before != 0) {
+                return;
+            }
+            index = w;
+        }
+    }
+
+    public int lowestFree() {
+        return nextFree(0);
+    }
+
+    /**
+     * Returns the first free space at or after {@code from}, or -1.
+     */
+    public int nextFree(int from) {
+        if (from >= capacity) {
+            return -1;
+        }
+        int index = Math.max(from, 0);
+        int level = 0;
+        while (true) {
+            if (level == levels.length) {
+                return -1;
+            }
+            long[] words = levels[level];
+            int w = index >>> 6;
+            if (w >= words.length) {
+                return -1;
+            }
+            long bits = words[w] & (-1L << index);
+            if (bits != 0) {
+                index = (w << 6) + Long.numberOfTrailingZeros(bits);
+                break;
+            }
+            index = w + 1;
+            level++;
+        }
+        while (level > 0) {
+            level--;
+            index = (index << 6) + Long.numberOfTrailingZeros(levels[level][index]);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the last free space at or before {@code from}, or -1.
+     */
+    public int previousFree(int from) {
+        if (from < 0) {
+            return -1;
+        }
+        int index = Math.min(from, capacity - 1);
+        int level = 0;
+        while (true) {
+            if (level == levels.length) {
+                return -1;
+            }
+            int w = index >>> 6;
+            long bits = levels[level][w] & (-1L >>> (63 - (index & 63)));
+            if (bits != 0) {
+                index = (w << 6) + 63 - Long.numberOfLeadingZeros(bits);
+                break;
+            }
+            index = w - 1;
+            if (index < 0) {
+                return -1;
+            }
+            level++;
+        }
+        while (level > 0) {
+            level--;
+            index = (index << 6) + 63 - Long.numberOfLeadingZeros(levels[level][index]);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the free space closest to {@code target} (lower one on a tie), or -1.
+     */
+    public int nearestFree(int target) {
+        int above = nextFree(target);
+        int below = previousFree(target);
+        if (above < 0) {
+            return below;
+        }
+        if (below < 0) {
+            return above;
+        }
+        return target - below <= above - target ? below : above;
+    }
+
+    private void checkSpace(int space) {
+        if (space < 0 || space >= capacity) {
+            throw new IndexOutOfBoundsException("No such space: " + space);
+        }
+    }
+
+    private static int wordsFor(int bits) {
+        return (bits + 63) >>> 6;
+    }
+}
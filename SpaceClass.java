@@ -0,0 +1,80 @@
+import java.util.Arrays;
+
+/**
+ * Size class of a parking bay, smallest first. A vehicle takes a bay of its
+ * own class when one is free and otherwise moves up to a larger one: a
+ * motorcycle may use a car bay and either may use a truck bay, never the
+ * other way round.
+ */
+public enum SpaceClass {
+    MOTOR('M', "motorcycle bay"),
+    CAR('C', "car bay"),
+    TRUCK('T', "truck bay");
+
+    public static final int COUNT = values().length;
+
+    private final char letter;
+    private final String label;
+
+    SpaceClass(char letter, String label) {
+        this.letter = letter;
+        this.label = label;
+    }
+
+    public char getLetter() {
+        return letter;
+    }
+
+    /**
+     * The smallest class the vehicle fits; every larger class fits it too.
+     */
+    public static SpaceClass forVehicle(VehicleType vehicleType) {
+        switch (vehicleType) {
+            case MOTOR:
+                return MOTOR;
+            case TRUCK:
+                return TRUCK;
+            default:
+                return CAR;
+        }
+    }
+
+    public boolean fits(VehicleType vehicleType) {
+        return ordinal() >= forVehicle(vehicleType).ordinal();
+    }
+
+    public static SpaceClass fromLetter(char letter) {
+        for (SpaceClass spaceClass : values()) {
+            if (spaceClass.letter == Character.toUpperCase(letter)) {
+                return spaceClass;
+            }
+        }
+        throw new IllegalArgumentException("Unknown bay class: " + letter);
+    }
+
+    /**
+     * Classes of a {@code rows} x {@code columns} grid from one letter per row
+     * (e.g. {@code TCCCM}). Without letters every bay is a truck bay, which
+     * fits any vehicle, so a lot without classes behaves as it always did.
+     */
+    public static SpaceClass[] forRows(String rowLetters, int rows, int columns) {
+        SpaceClass[] classes = new SpaceClass[rows * columns];
+        if (rowLetters == null || rowLetters.trim().isEmpty()) {
+            Arrays.fill(classes, TRUCK);
+            return classes;
+        }
+        String letters = rowLetters.trim();
+        if (letters.length() != rows) {
+            throw new IllegalArgumentException("Expected one bay class per row (" + rows + "), got " + letters);
+        }
+        for (int row = 0; row < rows; row++) {
+            Arrays.fill(classes, row * columns, (row + 1) * columns, fromLetter(letters.charAt(row)));
+        }
+        return classes;
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+}
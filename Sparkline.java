@@ -0,0 +1,85 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.geom.Path2D;
+
+/**
+ * A small line chart without axes. When there are more values than pixels,
+ * each pixel column shows the highest value that falls into it, so short
+ * peaks are not lost.
+ */
+public class Sparkline extends JComponent {
+    private static final long serialVersionUID = 1L;
+
+    private int[] values = new int[0];
+    private int maximum = 1;
+    private Color lineColor = new Color(33, 102, 172);
+
+    public Sparkline() {
+        setPreferredSize(new Dimension(400, 60));
+    }
+
+    /**
+     * Shows {@code values}, scaled so that {@code maximum} reaches the top.
+     */
+    public void setValues(int[] values, int maximum) {
+        this.values = values.clone();
+        this.maximum = Math.max(1, maximum);
+        repaint();
+    }
+
+    public void setLineColor(Color lineColor) {
+        this.lineColor = lineColor;
+        repaint();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Graphics2D g2 = (Graphics2D) g.create();
+        try {
+            if (isOpaque()) {
+                g2.setColor(getBackground());
+                g2.fillRect(0, 0, getWidth(), getHeight());
+            }
+            Insets insets = getInsets();
+            int width = getWidth() - insets.left - insets.right;
+            int height = getHeight() - insets.top - insets.bottom - 2;
+            if (values.length == 0 || width < 2 || height < 2) {
+                return;
+            }
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+            int columns = Math.min(width, values.length);
+            Path2D.Float line = new Path2D.Float();
+            float lastX = 0;
+            float lastY = 0;
+            for (int column = 0; column < columns; column++) {
+                int from = (int) ((long) column * values.length / columns);
+                int to = (int) ((long) (column + 1) * values.length / columns);
+                int value = values[from];
+                for (int i = from + 1; i < to; i++) {
+                    value = Math.max(value, values[i]);
+                }
+                lastX = insets.left + (columns == 1 ? width - 1 : column * (width - 1f) / (columns - 1));
+                lastY = insets.top + 1 + height - Math.min(value, maximum) * (float) height / maximum;
+                if (column == 0) {
+                    line.moveTo(lastX, lastY);
+                } else {
+                    line.lineTo(lastX, lastY);
+                }
+            }
+
+            Path2D.Float area = new Path2D.Float(line);
+            area.lineTo(lastX, insets.top + 1 + height);
+            area.lineTo(insets.left, insets.top + 1 + height);
+            area.closePath();
+            g2.setColor(new Color(lineColor.getRed(), lineColor.getGreen(), lineColor.getBlue(), 48));
+            g2.fill(area);
+            g2.setColor(lineColor);
+            g2.setStroke(new BasicStroke(1.5f));
+            g2.draw(line);
+            g2.fillOval(Math.round(lastX) - 2, Math.round(lastY) - 2, 5, 5);
+        } finally {
+            g2.dispose();
+        }
+    }
+}
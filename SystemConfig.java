@@ -0,0 +1,84 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Settings read from {@code data/settings.txt}, one {@code key: value} per line
+ * (the same layout as parkingrate.txt). Missing keys fall back to the defaults
+ * passed by the caller.
+ */
+public class SystemConfig {
+    public static final String SETTINGS_FILE = "data/settings.txt";
+
+    private final Map<String, String> values;
+
+    private SystemConfig(Map<String, String> values) {
+        this.values = values;
+    }
+
+    public static SystemConfig load() throws IOException {
+        return load(Paths.get(SETTINGS_FILE));
+    }
+
+    public static SystemConfig load(Path file) throws IOException {
+        Map<String, String> values = new HashMap<>();
+        if (Files.exists(file)) {
+            List<String> lines = Files.readAllLines(file);
+            for (String line : lines) {
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                    continue;
+                }
+                int colon = trimmed.indexOf(':');
+                if (colon > 0) {
+                    values.put(trimmed.substring(0, colon).trim().toLowerCase(), trimmed.substring(colon + 1).trim());
+                }
+            }
+        }
+        return new SystemConfig(values);
+    }
+
+    public static SystemConfig defaults() {
+        return new SystemConfig(new HashMap<>());
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = values.get(key);
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = values.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring invalid value for " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = values.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring invalid value for " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = values.get(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
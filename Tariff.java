@@ -0,0 +1,385 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Parking rates compiled into per-type lookup tables, so a fare is priced in
+ * constant time without allocating.
+ *
+ * parkingrate.txt keeps its {@code type: hourly rate} lines and may add
+ * {@code type.field: value} overrides or bare {@code field: value} defaults
+ * for every type:
+ * <pre>
+ * car: 40              hourly rate
+ * car.first.hour: 60   rate of the first billed hour
+ * car.night.rate: 20   hourly rate between night.start and night.end
+ * car.weekend.rate: 30 hourly rate on Saturday and Sunday (night rate wins at night)
+ * car.daily.cap: 300   most charged for any 24 hours from entry
+ * grace.minutes: 10    stays this short are free
+ * night.start: 22      hour of day; night.end: 6
+ * </pre>
+ * Amounts are dollars with up to two decimals. As before, every started hour
+ * is billed; each is priced by the hour of the week in which it starts.
+ * Instances are immutable and safe to share between threads.
+ */
+public class Tariff {
+    public static final long UNSET = -1;
+
+    private static final int[] DEFAULT_HOURLY = {50, 30, 80};
+    private static final int TYPES = VehicleType.values().length;
+    private static final int WEEK_HOURS = 168;
+    private static final long HOUR_MILLIS = 60L * 60 * 1000;
+
+    private static final int HOURLY = 0;
+    private static final int FIRST_HOUR = 1;
+    private static final int NIGHT_RATE = 2;
+    private static final int WEEKEND_RATE = 3;
+    private static final int DAILY_CAP = 4;
+    private static final int GRACE_MINUTES = 5;
+    private static final String[] FIELDS = {"", "first.hour", "night.rate", "weekend.rate", "daily.cap", "grace.minutes"};
+
+    // Rules as configured, per type and field, in cents (minutes for grace); UNSET if absent
+    private final long[][] settings;
+    private final int nightStart;
+    private final int nightEnd;
+    private final ZoneId zone;
+    private final ZoneOffsets offsets;
+
+    // Compiled tables
+    private final long[][] hourPrefix = new long[TYPES][2 * WEEK_HOURS + 1];
+    private final long[] firstHour = new long[TYPES];
+    private final long[] dailyCap = new long[TYPES];
+    private final long[] graceMillis = new long[TYPES];
+    private final long[][] dayCost = new long[TYPES][WEEK_HOURS];
+    private final long[][] weekOfDaysCost = new long[TYPES][WEEK_HOURS];
+
+    private Tariff(long[][] settings, int nightStart, int nightEnd, ZoneId zone) {
+        this.settings = settings;
+        this.nightStart = nightStart;
+        this.nightEnd = nightEnd;
+        this.zone = zone;
+        this.offsets = ZoneOffsets.of(zone);
+        for (int type = 0; type < TYPES; type++) {
+            compile(type);
+        }
+    }
+
+    public static Tariff load(Path file) throws IOException {
+        return parse(Files.readAllLines(file), ZoneId.systemDefault());
+    }
+
+    /**
+     * The rates used when there is no parkingrate.txt.
+     */
+    public static Tariff defaults() {
+        long[][] settings = emptySettings();
+        for (int type = 0; type < TYPES; type++) {
+            settings[type][HOURLY] = DEFAULT_HOURLY[type] * 100L;
+        }
+        return new Tariff(settings, 22, 6, ZoneId.systemDefault());
+    }
+
+    public static Tariff parse(List<String> lines, ZoneId zone) {
+        long[][] settings = emptySettings();
+        long[] defaults = new long[FIELDS.length];
+        Arrays.fill(defaults, UNSET);
+        int nightStart = 22;
+        int nightEnd = 6;
+        for (String line : lines) {
+            String trimmed = line.trim();
+            int colon = trimmed.indexOf(':');
+            if (trimmed.isEmpty() || trimmed.startsWith("#") || colon <= 0) {
+                continue;
+            }
+            String key = trimmed.substring(0, colon).trim().toLowerCase();
+            String value = trimmed.substring(colon + 1).trim();
+            try {
+                if (key.equals("night.start")) {
+                    nightStart = parseHour(value);
+                    continue;
+                }
+                if (key.equals("night.end")) {
+                    nightEnd = parseHour(value);
+                    continue;
+                }
+                int dot = key.indexOf('.');
+                VehicleType type = VehicleType.fromName(dot < 0 ? key : key.substring(0, dot));
+                int field = fieldIndex(type == null ? key : dot < 0 ? "" : key.substring(dot + 1));
+                if (field < 0 || (type == null && field == HOURLY)) {
+                    System.err.println("Ignoring unknown rate setting: " + key);
+                } else if (type == null) {
+                    defaults[field] = parseValue(field, value);
+                } else {
+                    settings[type.ordinal()][field] = parseValue(field, value);
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring invalid value for " + key + ": " + value);
+            }
+        }
+        for (long[] typeSettings : settings) {
+            for (int field = 0; field < FIELDS.length; field++) {
+                if (typeSettings[field] == UNSET) {
+                    typeSettings[field] = defaults[field];
+                }
+            }
+            if (typeSettings[HOURLY] == UNSET) {
+                typeSettings[HOURLY] = 0;
+            }
+        }
+        return new Tariff(settings, nightStart, nightEnd, zone);
+    }
+
+    /**
+     * A copy with one type's rules replaced; amounts in cents, {@link #UNSET}
+     * for rules that do not apply.
+     */
+    public Tariff withRates(VehicleType vehicleType, long hourlyCents, long firstHourCents, long nightCents,
+                            long weekendCents, long dailyCapCents, long graceMinutes) {
+        long[][] copy = new long[TYPES][];
+        for (int type = 0; type < TYPES; type++) {
+            copy[type] = settings[type].clone();
+        }
+        copy[vehicleType.ordinal()] = new long[]{hourlyCents, firstHourCents, nightCents, weekendCents, dailyCapCents, graceMinutes};
+        return new Tariff(copy, nightStart, nightEnd, zone);
+    }
+
+    /**
+     * The rules in parkingrate.txt form, one set of lines per type.
+     */
+    public List<String> toLines() {
+        List<String> lines = new ArrayList<>();
+        for (VehicleType type : VehicleType.values()) {
+            long[] typeSettings = settings[type.ordinal()];
+            String name = type.getLabel().toLowerCase();
+            lines.add(name + ": " + formatAmount(typeSettings[HOURLY]));
+            for (int field = FIRST_HOUR; field < FIELDS.length; field++) {
+                if (typeSettings[field] != UNSET) {
+                    String value = field == GRACE_MINUTES ? String.valueOf(typeSettings[field]) : formatAmount(typeSettings[field]);
+                    lines.add(name + "." + FIELDS[field] + ": " + value);
+                }
+            }
+        }
+        lines.add("night.start: " + nightStart);
+        lines.add("night.end: " + nightEnd);
+        return lines;
+    }
+
+    public long getHourlyCents(VehicleType vehicleType) {
+        return settings[vehicleType.ordinal()][HOURLY];
+    }
+
+    /**
+     * -1 when the first hour is billed like any other.
+     */
+    public long getFirstHourCents(VehicleType vehicleType) {
+        return settings[vehicleType.ordinal()][FIRST_HOUR];
+    }
+
+    public long getNightCents(VehicleType vehicleType) {
+        return settings[vehicleType.ordinal()][NIGHT_RATE];
+    }
+
+    public long getWeekendCents(VehicleType vehicleType) {
+        return settings[vehicleType.ordinal()][WEEKEND_RATE];
+    }
+
+    public long getDailyCapCents(VehicleType vehicleType) {
+        return settings[vehicleType.ordinal()][DAILY_CAP];
+    }
+
+    public long getGraceMinutes(VehicleType vehicleType) {
+        return settings[vehicleType.ordinal()][GRACE_MINUTES];
+    }
+
+    public int getNightStart() {
+        return nightStart;
+    }
+
+    public int getNightEnd() {
+        return nightEnd;
+    }
+
+    /**
+     * One line summary of a type's rules, e.g. "$40.00/hour, night $20.00/hour".
+     */
+    public String describe(VehicleType vehicleType) {
+        long[] typeSettings = settings[vehicleType.ordinal()];
+        StringBuilder text = new StringBuilder("$").append(formatAmount(typeSettings[HOURLY])).append("/hour");
+        if (typeSettings[FIRST_HOUR] != UNSET) {
+            text.append(", first hour $").append(formatAmount(typeSettings[FIRST_HOUR]));
+        }
+        if (typeSettings[NIGHT_RATE] != UNSET) {
+            text.append(", night $").append(formatAmount(typeSettings[NIGHT_RATE])).append("/hour");
+        }
+        if (typeSettings[WEEKEND_RATE] != UNSET) {
+            text.append(", weekend $").append(formatAmount(typeSettings[WEEKEND_RATE])).append("/hour");
+        }
+        if (typeSettings[DAILY_CAP] != UNSET) {
+            text.append(", max $").append(formatAmount(typeSettings[DAILY_CAP])).append("/day");
+        }
+        if (typeSettings[GRACE_MINUTES] > 0) {
+            text.append(", first ").append(typeSettings[GRACE_MINUTES]).append(" min free");
+        }
+        return text.toString();
+    }
+
+    public double fare(VehicleType vehicleType, long entryTime, long exitTime) {
+        return fareCents(vehicleType.ordinal(), entryTime, exitTime) / 100.0;
+    }
+
+    public long fareCents(VehicleType vehicleType, long entryTime, long exitTime) {
+        return fareCents(vehicleType.ordinal(), entryTime, exitTime);
+    }
+
+    /**
+     * Prices {@code count} sessions given as engine type codes and entry and
+     * exit times, storing each fare in {@code faresOut} (may be null) and
+     * returning the total, all in cents.
+     */
+    public long priceAll(byte[] typeCodes, long[] entryTimes, long[] exitTimes, long[] faresOut, int count) {
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            long cents = fareCents(typeCodes[i] - 1, entryTimes[i], exitTimes[i]);
+            if (faresOut != null) {
+                faresOut[i] = cents;
+            }
+            total += cents;
+        }
+        return total;
+    }
+
+    private long fareCents(int type, long entryTime, long exitTime) {
+        long duration = exitTime - entryTime;
+        if (duration <= graceMillis[type]) {
+            return 0;
+        }
+        long hours = (duration + HOUR_MILLIS - 1) / HOUR_MILLIS;
+        int slot = hourOfWeek(entryTime);
+        long[] prefix = hourPrefix[type];
+        long cap = dailyCap[type];
+
+        // First 24 hours, where the first hour may have its own rate
+        int firstDayHours = (int) Math.min(hours, 24);
+        long firstHourCents = firstHour[type] != UNSET ? firstHour[type] : prefix[slot + 1] - prefix[slot];
+        long total = Math.min(cap, firstHourCents + prefix[slot + firstDayHours] - prefix[slot + 1]);
+
+        // Whole later days repeat every 7 days
+        long remaining = hours - firstDayHours;
+        long days = remaining / 24;
+        int start = (slot + 24) % WEEK_HOURS;
+        total += days / 7 * weekOfDaysCost[type][start];
+        for (int day = 0; day < days % 7; day++) {
+            total += dayCost[type][start];
+            start = (start + 24) % WEEK_HOURS;
+        }
+
+        // Last partial day
+        int lastHours = (int) (remaining % 24);
+        total += Math.min(cap, prefix[start + lastHours] - prefix[start]);
+        return total;
+    }
+
+    private void compile(int type) {
+        long[] typeSettings = settings[type];
+        long[] prefix = hourPrefix[type];
+        for (int hour = 0; hour < 2 * WEEK_HOURS; hour++) {
+            prefix[hour + 1] = prefix[hour] + hourRate(typeSettings, hour % WEEK_HOURS);
+        }
+        firstHour[type] = typeSettings[FIRST_HOUR];
+        dailyCap[type] = typeSettings[DAILY_CAP] == UNSET ? Long.MAX_VALUE : typeSettings[DAILY_CAP];
+        graceMillis[type] = Math.max(0, typeSettings[GRACE_MINUTES]) * 60 * 1000;
+        for (int slot = 0; slot < WEEK_HOURS; slot++) {
+            dayCost[type][slot] = Math.min(dailyCap[type], prefix[slot + 24] - prefix[slot]);
+        }
+        for (int slot = 0; slot < WEEK_HOURS; slot++) {
+            long week = 0;
+            for (int day = 0; day < 7; day++) {
+                week += dayCost[type][(slot + day * 24) % WEEK_HOURS];
+            }
+            weekOfDaysCost[type][slot] = week;
+        }
+    }
+
+    // Slot 0 is Monday 00:00
+    private long hourRate(long[] typeSettings, int slot) {
+        int hour = slot % 24;
+        boolean night = nightStart <= nightEnd ? hour >= nightStart && hour < nightEnd : hour >= nightStart || hour < nightEnd;
+        if (night && typeSettings[NIGHT_RATE] != UNSET) {
+            return typeSettings[NIGHT_RATE];
+        }
+        if (slot >= 5 * 24 && typeSettings[WEEKEND_RATE] != UNSET) {
+            return typeSettings[WEEKEND_RATE];
+        }
+        return typeSettings[HOURLY];
+    }
+
+    // Local hour of the week
+    private int hourOfWeek(long millis) {
+        long localSeconds = offsets.localSeconds(millis);
+        long epochDay = Math.floorDiv(localSeconds, 86400L);
+        int dayOfWeek = (int) Math.floorMod(epochDay + 3, 7L); // 1970-01-01 was a Thursday
+        int hour = (int) (Math.floorMod(localSeconds, 86400L) / 3600);
+        return dayOfWeek * 24 + hour;
+    }
+
+    private static long[][] emptySettings() {
+        long[][] settings = new long[TYPES][FIELDS.length];
+        for (long[] typeSettings : settings) {
+            Arrays.fill(typeSettings, UNSET);
+        }
+        return settings;
+    }
+
+    private static int fieldIndex(String name) {
+        for (int field = 0; field < FIELDS.length; field++) {
+            if (FIELDS[field].equals(name)) {
+                return field;
+            }
+        }
+        return -1;
+    }
+
+    private static long parseValue(int field, String value) {
+        if (field == GRACE_MINUTES) {
+            return Math.max(0, Long.parseLong(value));
+        }
+        return parseAmount(value);
+    }
+
+    /**
+     * Parses a dollar amount such as "40" or "2.50" into cents.
+     *
+     * @throws NumberFormatException if it is negative or has more than two decimals
+     */
+    public static long parseAmount(String value) {
+        try {
+            long cents = new BigDecimal(value.trim()).movePointRight(2).longValueExact();
+            if (cents < 0) {
+                throw new NumberFormatException("Negative amount: " + value);
+            }
+            return cents;
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Not a whole number of cents: " + value);
+        }
+    }
+
+    private static int parseHour(String value) {
+        int hour = Integer.parseInt(value);
+        if (hour < 0 || hour > 23) {
+            throw new NumberFormatException("Hour out of range");
+        }
+        return hour;
+    }
+
+    /**
+     * Dollars with cents only when needed, e.g. "40" or "2.50".
+     */
+    public static String formatAmount(long cents) {
+        return cents % 100 == 0 ? String.valueOf(cents / 100) : BigDecimal.valueOf(cents, 2).toPlainString();
+    }
+}
@@ -0,0 +1,46 @@
+public enum VehicleType {
+    CAR("Car"),
+    MOTOR("Motor"),
+    TRUCK("Truck");
+
+    private final String label;
+
+    VehicleType(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    // Code stored in the engine's byte arrays; 0 is reserved for an empty space
+    public byte getCode() {
+        return (byte) (ordinal() + 1);
+    }
+
+    public static VehicleType fromCode(int code) {
+        return code <= 0 ? null : values()[code - 1];
+    }
+
+    public static VehicleType fromName(String name) {
+        if (name == null) {
+            return null;
+        }
+        switch (name.trim().toLowerCase()) {
+            case "car":
+                return CAR;
+            case "motor":
+            case "motorcycle":
+                return MOTOR;
+            case "truck":
+                return TRUCK;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+}
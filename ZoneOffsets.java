@@ -0,0 +1,71 @@
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Arrays;
+
+/**
+ * A time zone's UTC offsets as a sorted table of transitions, so the local
+ * offset at an instant is a binary search with no allocation and no shared
+ * mutable state. Transitions from 1900 to 2200 are tabulated; earlier or later
+ * instants use the first or last offset.
+ */
+public final class ZoneOffsets {
+    private static final long FROM_MILLIS = Instant.parse("1900-01-01T00:00:00Z").toEpochMilli();
+    private static final long UNTIL_MILLIS = Instant.parse("2200-01-01T00:00:00Z").toEpochMilli();
+
+    // offsets[i] applies from transitions[i - 1] (inclusive) to transitions[i]
+    private final long[] transitions;
+    private final int[] offsets;
+
+    private ZoneOffsets(long[] transitions, int[] offsets) {
+        this.transitions = transitions;
+        this.offsets = offsets;
+    }
+
+    public static ZoneOffsets of(ZoneId zone) {
+        ZoneRules rules = zone.getRules();
+        Instant instant = Instant.ofEpochMilli(FROM_MILLIS);
+        long[] transitions = new long[16];
+        int[] offsets = new int[17];
+        offsets[0] = rules.getOffset(instant).getTotalSeconds();
+        int count = 0;
+        ZoneOffsetTransition next;
+        while ((next = rules.nextTransition(instant)) != null && next.toEpochSecond() * 1000 < UNTIL_MILLIS) {
+            if (count == transitions.length) {
+                transitions = Arrays.copyOf(transitions, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2 + 1);
+            }
+            transitions[count] = next.toEpochSecond() * 1000;
+            offsets[count + 1] = next.getOffsetAfter().getTotalSeconds();
+            count++;
+            instant = next.getInstant();
+        }
+        return new ZoneOffsets(Arrays.copyOf(transitions, count), Arrays.copyOf(offsets, count + 1));
+    }
+
+    public int offsetSeconds(long millis) {
+        int low = 0;
+        int high = transitions.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (transitions[middle] <= millis) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return offsets[low];
+    }
+
+    /**
+     * Seconds since the epoch on the local clock at {@code millis}.
+     */
+    public long localSeconds(long millis) {
+        return Math.floorDiv(millis, 1000) + offsetSeconds(millis);
+    }
+
+    public long localEpochDay(long millis) {
+        return Math.floorDiv(localSeconds(millis), 86400L);
+    }
+}